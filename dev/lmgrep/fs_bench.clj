@@ -0,0 +1,64 @@
+(ns lmgrep.fs-bench
+  "Compares binary file detection by reading the file header in process
+  with forking the `file` program for every file.
+  Run with: clojure -M:dev -m lmgrep.fs-bench [NUMBER_OF_FILES]"
+  (:require [clojure.java.io :as io]
+            [clojure.java.shell :as sh]
+            [criterium.core :as criterium]
+            [lmgrep.fs :as fs])
+  (:import (java.io File)
+           (java.nio.file Files)
+           (java.nio.file.attribute FileAttribute)
+           (java.util Random)))
+
+(defn file-command-binary-file?
+  "Binary file detection that was used before the in process detector."
+  [^String file-path]
+  (.contains ^String (:out (sh/sh "file" (case (System/getProperty "os.name")
+                                           "Mac OS X" "-I"
+                                           "-ib")
+                                  file-path))
+             "charset=binary"))
+
+(defn generate-mixed-tree
+  "Writes text, UTF-8, gzip-like, PNG-like and random binary files into a temp directory."
+  [number-of-files]
+  (let [dir (.toFile (Files/createTempDirectory "lmgrep-binary-bench" (make-array FileAttribute 0)))
+        rnd (Random. 42)
+        text (apply str (repeat 200 "The quick brown fox jumps over the lazy dog\n"))
+        utf8-text (apply str (repeat 200 "Greita rudoji lapė peršoka tingų šunį\n"))]
+    (dotimes [i number-of-files]
+      (let [^File file (io/file dir (format "%03d/file-%d" (mod i 100) i))]
+        (io/make-parents file)
+        (case (int (mod i 5))
+          0 (spit file text)
+          1 (spit file utf8-text :encoding "UTF-8")
+          2 (with-open [out (io/output-stream file)]
+              (.write out (byte-array (map unchecked-byte [0x1F 0x8B 0x08 0x00])))
+              (.write out (.getBytes ^String text)))
+          3 (with-open [out (io/output-stream file)]
+              (.write out (byte-array (map unchecked-byte [0x89 0x50 0x4E 0x47 0x0D 0x0A 0x1A 0x0A])))
+              (.write out (.getBytes ^String text)))
+          4 (let [bs (byte-array 4096)]
+              (.nextBytes rnd bs)
+              (with-open [out (io/output-stream file)]
+                (.write out bs))))))
+    (.getPath dir)))
+
+(defn -main [& [number-of-files]]
+  (let [dir (generate-mixed-tree (Integer/parseInt (or number-of-files "1000")))
+        files (fs/get-files (str dir "/**") {})]
+    (println (format "Detecting binary files among %s files in %s" (count files) dir))
+    (println "In process detection:")
+    (criterium/quick-bench (doall (filter fs/binary-file? files)))
+    (println "In process detection, files are changed between runs (cache is not used):")
+    (criterium/quick-bench (do (doseq [^String file files]
+                                 ; a big step, so that the mtime changes at any filesystem granularity
+                                 (let [f (io/file file)]
+                                   (.setLastModified f (+ (.lastModified f) 10000))))
+                               (doall (filter fs/binary-file? files))))
+    (println "Forking the `file` program:")
+    (criterium/quick-bench (doall (filter file-command-binary-file? files)))
+    (println "Parallel walk with binary file skipping:")
+    (criterium/quick-bench (fs/get-files (str dir "/**") {:skip-binary-files true}))
+    (shutdown-agents)))
@@ -0,0 +1,18 @@
+(ns build
+  (:require [clojure.tools.build.api :as b]))
+
+(def basis (b/create-basis {:project "deps.edn"}))
+(def class-dir "target/classes")
+
+(defn clean [& _]
+  (b/delete {:path "target"}))
+
+(defn compile-java [_]
+  (clean)
+  ; JMH generates the benchmark harness with an annotation processor
+  (b/javac {:src-dirs  ["java"]
+            :class-dir class-dir
+            :basis     basis
+            :javac-opts ["-source" "11" "-target" "11"
+                         "-processor" "org.openjdk.jmh.generators.BenchmarkProcessor"]})
+  (println "DONE COMPILING LMGREP BENCHMARKS!"))
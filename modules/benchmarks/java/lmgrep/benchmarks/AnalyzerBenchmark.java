@@ -0,0 +1,60 @@
+package lmgrep.benchmarks;
+
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Analysis of a line with the predefined analyzers, i.e. the analyzer chains of the queries and texts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyzerBenchmark {
+    // map of lower-cased analyzer names to analyzers
+    private static final IFn ANALYZERS = (IFn) ((IDeref) Clj.fn("lmgrep.predefined-analyzers", "analyzers")).deref();
+    private static final IFn LINES = Clj.fn("lmgrep.benchmarks.corpus", "lines");
+    private static final int LINE_COUNT = 1024;
+
+    @Param({"standard", "english", "whitespace", "classic", "finnish", "cjk"})
+    public String analyzerName;
+
+    @Param({"80", "1000"})
+    public int lineLength;
+
+    private Analyzer analyzer;
+    private String[] lines;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        analyzer = (Analyzer) ANALYZERS.invoke(analyzerName);
+        if (analyzer == null) {
+            throw new IllegalArgumentException("Analyzer '" + analyzerName + "' is not available");
+        }
+        lines = (String[]) LINES.invoke(LINE_COUNT, lineLength);
+    }
+
+    @Benchmark
+    public void analyze(Blackhole blackhole) throws IOException {
+        next = (next + 1) & (LINE_COUNT - 1);
+        try (TokenStream tokenStream = analyzer.tokenStream("text", lines[next])) {
+            CharTermAttribute term = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+                blackhole.consume(term.length());
+            }
+            tokenStream.end();
+        }
+    }
+}
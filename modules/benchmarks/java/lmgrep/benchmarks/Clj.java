@@ -0,0 +1,20 @@
+package lmgrep.benchmarks;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+
+final class Clj {
+    private static final IFn REQUIRE = Clojure.var("clojure.core", "require");
+
+    private Clj() {}
+
+    /** Requires the namespace and returns the var. */
+    static IFn fn(String ns, String name) {
+        REQUIRE.invoke(Clojure.read(ns));
+        return Clojure.var(ns, name);
+    }
+
+    static Object read(String edn) {
+        return Clojure.read(edn);
+    }
+}
@@ -0,0 +1,114 @@
+package lmgrep.benchmarks;
+
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output of a matched line: the string formatter alone and the whole
+ * {@code lmgrep.matching/matcher-fn} that matches and formats a line in every output format.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatterBenchmark {
+    private static final IFn MATCHER = Clj.fn("lmgrep.benchmarks.corpus", "matcher");
+    private static final IFn LINES = Clj.fn("lmgrep.benchmarks.corpus", "lines");
+    private static final IFn STRING_OUTPUT_ARGS = Clj.fn("lmgrep.benchmarks.corpus", "string-output-args");
+    private static final IFn OUTPUT_OPTIONS = Clj.fn("lmgrep.benchmarks.corpus", "output-options");
+    private static final IFn MATCHER_FN = Clj.fn("lmgrep.benchmarks.corpus", "matcher-fn");
+    private static final IFn STRING_OUTPUT = Clj.fn("lmgrep.formatter", "string-output");
+    private static final IFn STRING_OUTPUT_FN = Clj.fn("lmgrep.formatter", "string-output-fn");
+    private static final int LINE_COUNT = 1024;
+    private static final int DICTIONARY_SIZE = 10000;
+
+    @State(Scope.Benchmark)
+    public static class StringOutputState {
+        @Param({"string", "template"})
+        public String output;
+
+        @Param({"80", "1000"})
+        public int lineLength;
+
+        Object options;
+        IFn compiled;
+        Object[] highlights;
+        Object[] details;
+        int count;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            options = OUTPUT_OPTIONS.invoke(output, false);
+            compiled = (IFn) STRING_OUTPUT_FN.invoke(options);
+            String[] lines = (String[]) LINES.invoke(LINE_COUNT, lineLength);
+            try (Closeable matcher = (Closeable) MATCHER.invoke(DICTIONARY_SIZE, "term-filtered")) {
+                // only the lines with highlights are formatted
+                List<?> args = (List<?>) STRING_OUTPUT_ARGS.invoke(matcher, lines);
+                count = args.size();
+                highlights = new Object[count];
+                details = new Object[count];
+                for (int i = 0; i < count; i++) {
+                    List<?> highlightsAndDetails = (List<?>) args.get(i);
+                    highlights[i] = highlightsAndDetails.get(0);
+                    details[i] = highlightsAndDetails.get(1);
+                }
+            }
+        }
+
+        int nextIndex() {
+            next = next + 1 == count ? 0 : next + 1;
+            return next;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MatcherFnState {
+        @Param({"string", "template", "json", "edn"})
+        public String output;
+
+        @Param({"false", "true"})
+        public boolean withDetails;
+
+        Closeable matcher;
+        IFn matcherFn;
+        String[] lines;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            matcher = (Closeable) MATCHER.invoke(DICTIONARY_SIZE, "term-filtered");
+            matcherFn = (IFn) MATCHER_FN.invoke(matcher, output, withDetails);
+            lines = (String[]) LINES.invoke(LINE_COUNT, 200);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            matcher.close();
+        }
+    }
+
+    @Benchmark
+    public Object stringOutput(StringOutputState state) {
+        int i = state.nextIndex();
+        return STRING_OUTPUT.invoke(state.highlights[i], state.details[i], state.options);
+    }
+
+    @Benchmark
+    public Object compiledStringOutput(StringOutputState state) {
+        int i = state.nextIndex();
+        return state.compiled.invoke(state.highlights[i], state.details[i]);
+    }
+
+    @Benchmark
+    public Object matcherFn(MatcherFnState state) {
+        state.next = (state.next + 1) & (LINE_COUNT - 1);
+        return state.matcherFn.invoke((long) state.next + 1, state.lines[state.next]);
+    }
+}
@@ -0,0 +1,55 @@
+package lmgrep.benchmarks;
+
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to grep a file of short or long lines with a task per line and with micro-batches of lines.
+ * Throughput in lines per second is LINE_COUNT divided by the score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GrepThroughputBenchmark {
+    private static final IFn MATCHER = Clj.fn("lmgrep.benchmarks.corpus", "matcher");
+    private static final IFn LINES_FILE = Clj.fn("lmgrep.benchmarks.corpus", "lines-file");
+    private static final IFn GREP_FILE = Clj.fn("lmgrep.benchmarks.corpus", "grep-file");
+    private static final int LINE_COUNT = 100000;
+
+    @Param({"1000"})
+    public int dictionarySize;
+
+    @Param({"40", "1000"})
+    public int lineLength;
+
+    @Param({"false", "true"})
+    public boolean microBatching;
+
+    private Closeable matcher;
+    private String path;
+    private Object options;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        matcher = (Closeable) MATCHER.invoke(dictionarySize, "term-filtered");
+        path = (String) LINES_FILE.invoke(LINE_COUNT, lineLength);
+        options = Clj.read("{:micro-batching " + microBatching + "}");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        matcher.close();
+    }
+
+    @Benchmark
+    public Object grepFile() {
+        return GREP_FILE.invoke(matcher, path, options);
+    }
+}
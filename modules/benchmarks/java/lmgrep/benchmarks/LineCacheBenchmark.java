@@ -0,0 +1,56 @@
+package lmgrep.benchmarks;
+
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to grep a log where a share of the lines repeat, without and with the line cache.
+ * Throughput in lines per second is LINE_COUNT divided by the score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineCacheBenchmark {
+    private static final IFn MATCHER = Clj.fn("lmgrep.benchmarks.corpus", "matcher");
+    private static final IFn LOG_FILE = Clj.fn("lmgrep.benchmarks.corpus", "log-file");
+    private static final IFn GREP_FILE = Clj.fn("lmgrep.benchmarks.corpus", "grep-file");
+    private static final int LINE_COUNT = 100000;
+    private static final int LINE_LENGTH = 120;
+
+    @Param({"100000"})
+    public int dictionarySize;
+
+    @Param({"0.0", "0.5", "0.9"})
+    public double repeatedShare;
+
+    @Param({"0", "67108864"})
+    public long lineCacheBytes;
+
+    private Closeable matcher;
+    private String path;
+    private Object options;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        matcher = (Closeable) MATCHER.invoke(dictionarySize, "term-filtered");
+        path = (String) LOG_FILE.invoke(LINE_COUNT, LINE_LENGTH, repeatedShare);
+        options = Clj.read("{:line-cache-bytes " + lineCacheBytes + "}");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        matcher.close();
+    }
+
+    @Benchmark
+    public Object grepFile() {
+        return GREP_FILE.invoke(matcher, path, options);
+    }
+}
@@ -0,0 +1,87 @@
+package lmgrep.benchmarks;
+
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching of a line against a generated dictionary with every presearcher.
+ * Dictionaries of 1M queries take minutes to set up, narrow the run with e.g. {@code -p dictionarySize=1000}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchingBenchmark {
+    private static final IFn MATCHER = Clj.fn("lmgrep.benchmarks.corpus", "matcher");
+    private static final IFn MONITOR = Clj.fn("lmgrep.benchmarks.corpus", "monitor");
+    private static final IFn FIELD_NAMES = Clj.fn("lmgrep.benchmarks.corpus", "field-names");
+    private static final IFn DESCRIPTORS = Clj.fn("lmgrep.benchmarks.corpus", "descriptors");
+    private static final IFn LINES = Clj.fn("lmgrep.benchmarks.corpus", "lines");
+    private static final IFn MATCH_TEXT = Clj.fn("lmgrep.lucene.matching", "match-text");
+    private static final IFn MATCH_WITH_SCORE = Clj.fn("lmgrep.lucene.matching", "match-with-score");
+    private static final IFn MATCH_WITH_SCORING_HIGHLIGHTS = Clj.fn("lmgrep.lucene.matching", "match-with-scoring-highlights");
+    private static final Object NO_OPTS = Clj.read("{}");
+    private static final Object OFFSETS_ONLY = Clj.read("{:offsets-only true}");
+    private static final int LINE_COUNT = 1024;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int dictionarySize;
+
+    @Param({"80", "1000", "10000"})
+    public int lineLength;
+
+    @Param({"no-filtering", "term-filtered", "multipass-term-filtered"})
+    public String presearcher;
+
+    private Closeable matcher;
+    private Object monitor;
+    private Object fieldNames;
+    private Object descriptors;
+    private String[] lines;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        matcher = (Closeable) MATCHER.invoke(dictionarySize, presearcher);
+        monitor = MONITOR.invoke(matcher);
+        fieldNames = FIELD_NAMES.invoke(matcher);
+        descriptors = DESCRIPTORS.invoke(matcher);
+        lines = (String[]) LINES.invoke(LINE_COUNT, lineLength);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        matcher.close();
+    }
+
+    private String nextLine() {
+        next = (next + 1) & (LINE_COUNT - 1);
+        return lines[next];
+    }
+
+    @Benchmark
+    public Object matchText() {
+        return MATCH_TEXT.invoke(nextLine(), monitor, fieldNames, descriptors, NO_OPTS);
+    }
+
+    @Benchmark
+    public Object matchTextOffsetsOnly() {
+        return MATCH_TEXT.invoke(nextLine(), monitor, fieldNames, descriptors, OFFSETS_ONLY);
+    }
+
+    @Benchmark
+    public Object matchWithScore() {
+        return MATCH_WITH_SCORE.invoke(nextLine(), monitor, fieldNames, descriptors);
+    }
+
+    @Benchmark
+    public Object matchWithScoredHighlights() {
+        return MATCH_WITH_SCORING_HIGHLIGHTS.invoke(nextLine(), monitor, fieldNames, descriptors);
+    }
+}
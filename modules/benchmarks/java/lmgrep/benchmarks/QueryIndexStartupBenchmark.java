@@ -0,0 +1,47 @@
+package lmgrep.benchmarks;
+
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start of a matcher on a stored queries index: time to open the index
+ * and match the first line, with every query parsed up front or only the candidates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueryIndexStartupBenchmark {
+    private static final IFn QUERIES_INDEX = Clj.fn("lmgrep.benchmarks.corpus", "queries-index");
+    private static final IFn DISK_MATCHER = Clj.fn("lmgrep.benchmarks.corpus", "disk-matcher");
+    private static final IFn LINES = Clj.fn("lmgrep.benchmarks.corpus", "lines");
+    private static final IFn MATCH = Clj.fn("lmgrep.lucene", "match");
+
+    @Param({"100000", "1000000"})
+    public int dictionarySize;
+
+    @Param({"false", "true"})
+    public boolean lazy;
+
+    private String dir;
+    private String line;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        dir = (String) QUERIES_INDEX.invoke(dictionarySize);
+        line = ((String[]) LINES.invoke(1, 80))[0];
+    }
+
+    @Benchmark
+    public Object openAndMatchFirstLine() throws IOException {
+        try (Closeable matcher = (Closeable) DISK_MATCHER.invoke(dir, lazy)) {
+            return MATCH.invoke(matcher, line);
+        }
+    }
+}
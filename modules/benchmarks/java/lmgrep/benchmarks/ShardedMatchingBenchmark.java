@@ -0,0 +1,56 @@
+package lmgrep.benchmarks;
+
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of matching one line with the dictionary split into shards.
+ * Sample time mode reports the percentiles, compare p0.99 of the shard counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShardedMatchingBenchmark {
+    private static final IFn SHARDED_MATCHER = Clj.fn("lmgrep.benchmarks.corpus", "sharded-matcher");
+    private static final IFn LINES = Clj.fn("lmgrep.benchmarks.corpus", "lines");
+    private static final IFn MATCH = Clj.fn("lmgrep.lucene", "match");
+    private static final Object OFFSETS_ONLY = Clj.read("{:offsets-only true}");
+    private static final int LINE_COUNT = 1024;
+
+    @Param({"100000", "1000000"})
+    public int dictionarySize;
+
+    @Param({"80", "1000"})
+    public int lineLength;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    private Closeable matcher;
+    private String[] lines;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        matcher = (Closeable) SHARDED_MATCHER.invoke(dictionarySize, shards);
+        lines = (String[]) LINES.invoke(LINE_COUNT, lineLength);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        matcher.close();
+    }
+
+    @Benchmark
+    public Object matchLine() {
+        next = (next + 1) & (LINE_COUNT - 1);
+        return MATCH.invoke(matcher, lines[next], OFFSETS_ONLY);
+    }
+}
@@ -0,0 +1,66 @@
+(ns lmgrep.benchmarks.compare
+  "Compares two JMH JSON results, e.g. before and after a dependency upgrade.
+  Exits with status 1 when any benchmark got slower than the threshold."
+  (:require [clojure.string :as str]
+            [jsonista.core :as json]))
+
+(def DEFAULT_THRESHOLD_PERCENT 10.0)
+
+(defn- benchmark-key [result]
+  [(get result "benchmark") (into (sorted-map) (get result "params"))])
+
+(defn- read-results [file]
+  (into {}
+        (map (fn [result] [(benchmark-key result) result]))
+        (json/read-value (slurp file))))
+
+(defn- higher-is-better? [result]
+  ; throughput is ops per time unit, the other modes measure time per op
+  (= "thrpt" (get result "mode")))
+
+(defn change-percent
+  "Positive when the current result is better than the baseline."
+  [baseline current]
+  (let [before (double (get-in baseline ["primaryMetric" "score"]))
+        after (double (get-in current ["primaryMetric" "score"]))
+        change (* 100.0 (/ (- after before) before))]
+    (if (higher-is-better? current) change (- change))))
+
+(defn compare-results
+  "Returns a row per benchmark that is in both results."
+  [baseline-results current-results threshold]
+  (for [[k current] (sort-by key current-results)
+        :let [baseline (get baseline-results k)]
+        :when baseline]
+    (let [change (change-percent baseline current)]
+      {:benchmark  (first k)
+       :params     (second k)
+       :baseline   (get-in baseline ["primaryMetric" "score"])
+       :current    (get-in current ["primaryMetric" "score"])
+       :unit       (get-in current ["primaryMetric" "scoreUnit"])
+       :change     change
+       :regression (< change (- threshold))})))
+
+(defn- format-row [{:keys [benchmark params baseline current unit change regression]}]
+  (format "%-70s %14.3f %14.3f %-10s %+8.2f%% %s"
+          (str (str/replace benchmark #"^lmgrep\.benchmarks\." "")
+               (when (seq params) (str " " (str/join "," (map (fn [[k v]] (str k "=" v)) params)))))
+          (double baseline) (double current) unit change (if regression "REGRESSION" "")))
+
+(defn -main [& [baseline-file current-file threshold]]
+  (when-not (and baseline-file current-file)
+    (println "Usage: clojure -M:compare BASELINE.json CURRENT.json [THRESHOLD_PERCENT]")
+    (System/exit 2))
+  (let [threshold (if threshold (Double/parseDouble threshold) DEFAULT_THRESHOLD_PERCENT)
+        baseline-results (read-results baseline-file)
+        current-results (read-results current-file)
+        rows (compare-results baseline-results current-results threshold)
+        missing (remove (set (keys current-results)) (keys baseline-results))]
+    (println (format "%-70s %14s %14s %-10s %9s" "Benchmark" "Baseline" "Current" "Unit" "Change"))
+    (doseq [row rows]
+      (println (format-row row)))
+    (doseq [[benchmark params] missing]
+      (println "Missing in the current results:" benchmark params))
+    (let [regressions (count (filter :regression rows))]
+      (println (format "%d benchmarks compared, %d regressions over %.1f%%" (count rows) regressions threshold))
+      (System/exit (if (pos? regressions) 1 0)))))
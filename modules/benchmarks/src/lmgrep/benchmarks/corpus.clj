@@ -0,0 +1,165 @@
+(ns lmgrep.benchmarks.corpus
+  "Deterministic generated dictionaries and texts, benchmarks run offline
+  and the same parameters always produce the same corpus."
+  (:require [clojure.java.io :as io]
+            [clojure.string :as str]
+            [lmgrep.lucene :as lucene]
+            [lmgrep.matching :as matching]
+            [lmgrep.unordered :as unordered])
+  (:import (java.io Writer)
+           (java.util Random)
+           (lmgrep.lucene LuceneMonitorMatcher)))
+
+(set! *warn-on-reflection* true)
+
+(def SEED 20231017)
+(def VOCABULARY_SIZE 50000)
+
+(defn- word [^Random random]
+  (let [length (+ 3 (.nextInt random 7))
+        chars (char-array length)]
+    (dotimes [i length]
+      (aset chars i (char (+ (int \a) (.nextInt random 26)))))
+    (String. chars)))
+
+(def vocabulary
+  (delay
+    (let [random (Random. SEED)]
+      (into [] (comp (distinct) (take VOCABULARY_SIZE)) (repeatedly #(word random))))))
+
+(defn- skewed-word
+  "Frequent words come up more often than rare ones, roughly as in natural texts."
+  [^Random random]
+  (let [words @vocabulary]
+    (nth words (int (* (count words) (Math/pow (.nextDouble random) 3))))))
+
+(defn- uniform-word [^Random random]
+  (let [words @vocabulary]
+    (nth words (.nextInt random (count words)))))
+
+(defn dictionary
+  "Dictionary of single term queries and phrase queries, every fourth one is a phrase."
+  [size]
+  (let [random (Random. (+ SEED size))]
+    (mapv (fn [i]
+            {:id    (str i)
+             :query (if (zero? (mod i 4))
+                      (str "\"" (uniform-word random) " " (uniform-word random) "\"")
+                      (uniform-word random))})
+          (range size))))
+
+(defn line
+  "Line of words that is at least of the given length."
+  [^Random random line-length]
+  (let [sb (StringBuilder.)]
+    (while (< (.length sb) (long line-length))
+      (when (pos? (.length sb))
+        (.append sb " "))
+      (.append sb ^String (skewed-word random)))
+    (str sb)))
+
+(defn lines
+  "Distinct lines of the given length."
+  ^"[Ljava.lang.String;" [n line-length]
+  (let [random (Random. (+ SEED line-length))]
+    (into-array String (repeatedly n #(line random line-length)))))
+
+(defn lines-file
+  "File of n lines of the given length, created once per parameters."
+  ^String [n line-length]
+  (let [file (io/file (str "target/lines-" n "-" line-length ".txt"))]
+    (when-not (.exists file)
+      (io/make-parents file)
+      (spit file (str/join "\n" (lines n line-length))))
+    (str file)))
+
+(def ^:private log-templates
+  ["GET /health 200 OK"
+   "INFO  c.e.scheduler.Heartbeat - heartbeat sent"
+   "java.lang.IllegalStateException: connection pool exhausted"
+   "\tat com.example.db.Pool.acquire(Pool.java:142)"
+   "\tat com.example.db.Repository.find(Repository.java:77)"
+   "\tat com.example.api.Handler.handle(Handler.java:35)"
+   "WARN  c.e.cache.Evictor - evicted 0 entries"])
+
+(defn log-file
+  "File of n log lines where the repeated share of the lines are the same few template lines,
+  as health checks, heartbeats and stack traces repeat in production logs, and the rest are distinct.
+  Created once per parameters."
+  ^String [n line-length repeated-share]
+  (let [file (io/file (str "target/log-" n "-" line-length "-" repeated-share ".txt"))]
+    (when-not (.exists file)
+      (io/make-parents file)
+      (let [random (Random. (+ SEED n))]
+        (spit file (str/join "\n" (repeatedly n (fn []
+                                                   (if (< (.nextDouble random) (double repeated-share))
+                                                     (nth log-templates (.nextInt random (count log-templates)))
+                                                     (line random line-length))))))))
+    (str file)))
+
+(defn grep-file
+  "Greps the file with the matcher and the options, the output is discarded."
+  [matcher ^String path options]
+  (binding [*out* (Writer/nullWriter)]
+    (unordered/grep [path] matcher (assoc options :format :json))))
+
+(defn matcher
+  "Matcher with a generated dictionary."
+  ^LuceneMonitorMatcher [dictionary-size presearcher]
+  (lucene/highlighter-obj (dictionary dictionary-size) {:presearcher (keyword presearcher)}))
+
+(defn sharded-matcher
+  "Matcher of the generated dictionary split into shards, the Monitor matches all lines."
+  [dictionary-size shards]
+  (lucene/highlighter-obj (dictionary dictionary-size) {:presearcher     :term-filtered
+                                                        :shards          shards
+                                                        :token-automaton false}))
+
+(defn queries-index
+  "Directory of a queries index with the generated dictionary, created once per dictionary size."
+  ^String [dictionary-size]
+  (let [dir (str "target/queries-index-" dictionary-size)]
+    (when-not (.exists (io/file dir))
+      (with-open [_ (lucene/highlighter-obj (dictionary dictionary-size) {:presearcher       :term-filtered
+                                                                          :queries-index-dir dir})]))
+    dir))
+
+(defn disk-matcher
+  "Matcher of the queries index, the queries are parsed when the index is opened or, when lazy, on demand."
+  ^LuceneMonitorMatcher [^String dir lazy]
+  (lucene/highlighter-obj [] {:presearcher       :term-filtered
+                              :queries-index-dir dir
+                              :lazy-queries      lazy}))
+
+(defn monitor [^LuceneMonitorMatcher matcher] (.-monitor matcher))
+
+(defn field-names [^LuceneMonitorMatcher matcher] (.-field-names matcher))
+
+(defn descriptors [^LuceneMonitorMatcher matcher] (.-descriptors matcher))
+
+(defn output-options
+  "Options of the output format, one of: string, template, json, edn."
+  [output with-details]
+  (case output
+    "string" {:format :string}
+    "template" {:format :string :template "{{file}}:{{line-number}}:{{highlighted-line}}"}
+    "json" {:format :json :with-details with-details}
+    "edn" {:format :edn :with-details with-details}))
+
+(defn matcher-fn [matcher output with-details]
+  (matching/matcher-fn matcher "corpus.txt" (output-options output with-details)))
+
+(defn string-output-args
+  "Pairs of highlight maps and details of the lines that have highlights."
+  [matcher lines]
+  (into []
+        (keep-indexed (fn [i line]
+                        (when-let [highlights (seq (lucene/match matcher line {}))]
+                          [(vec highlights) {:file "corpus.txt" :line-number (inc i) :line line}])))
+        lines))
+
+(comment
+  (take 3 (dictionary 10))
+  (str/join "\n" (take 3 (lines 3 80)))
+  (with-open [m (matcher 1000 "no-filtering")]
+    (lucene/match m (first (lines 1 80)) {})))
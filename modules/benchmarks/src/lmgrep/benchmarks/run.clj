@@ -0,0 +1,12 @@
+(ns lmgrep.benchmarks.run
+  "Runs the JMH benchmarks. Arguments are passed to JMH as is, results are written
+  as JSON to target/jmh-result.json unless the result format is given."
+  (:import (org.openjdk.jmh Main)))
+
+(def DEFAULT_RESULT_FILE "target/jmh-result.json")
+
+(defn -main [& args]
+  (let [args (if (some #{"-rf" "-rff"} args)
+               args
+               (concat ["-rf" "json" "-rff" DEFAULT_RESULT_FILE] args))]
+    (Main/main (into-array String args))))
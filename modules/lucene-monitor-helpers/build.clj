@@ -13,4 +13,6 @@
             :class-dir class-dir
             :basis     basis
             :java-opts ["-source" "11" "-target" "11"]})
+  (b/copy-dir {:src-dirs   ["resources"]
+               :target-dir class-dir})
   (println"DONE COMPILING LMGREP LUCENE MONITOR HELPERS!"))
@@ -0,0 +1,139 @@
+package org.apache.lucene.analysis.miscellaneous;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenFilterFactory;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.KeywordAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Analyzes every token with the wrapped token filter one term at a time and caches the
+ * resulting terms. Meant for the token filters that map a token to one or more tokens
+ * at the same position, e.g. stemmers. Extra terms are output at the same position,
+ * a token without terms is removed. Keyword tokens are not analyzed.
+ */
+public final class MemoizingTokenFilter extends TokenFilter {
+
+    private static final String[] NO_TERMS = new String[0];
+
+    private final CharTermAttribute charTermAttribute = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute positionIncrementAttribute = addAttribute(PositionIncrementAttribute.class);
+    private final KeywordAttribute keywordAttribute = addAttribute(KeywordAttribute.class);
+
+    private final TermCache<String[]> cache;
+    private final TermSource source = new TermSource();
+    private final TokenStream analysis;
+    private final CharTermAttribute analyzedTermAttribute;
+
+    private final Deque<String> alternatives = new ArrayDeque<>();
+    private State current;
+
+    /** Without a cache every term is analyzed. */
+    public MemoizingTokenFilter(TokenStream input, TokenFilterFactory filterFactory, TermCache<String[]> cache) {
+        super(input);
+        this.cache = cache;
+        this.analysis = filterFactory.create(source);
+        this.analyzedTermAttribute = analysis.addAttribute(CharTermAttribute.class);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (!alternatives.isEmpty()) {
+            restoreState(current);
+            positionIncrementAttribute.setPositionIncrement(0);
+            charTermAttribute.setEmpty().append(alternatives.removeFirst());
+            return true;
+        }
+
+        int skippedPositions = 0;
+        while (input.incrementToken()) {
+            if (keywordAttribute.isKeyword()) {
+                positionIncrementAttribute.setPositionIncrement(positionIncrementAttribute.getPositionIncrement() + skippedPositions);
+                return true;
+            }
+            String[] terms = analyze(charTermAttribute.toString());
+            if (terms.length == 0) {
+                skippedPositions += positionIncrementAttribute.getPositionIncrement();
+                continue;
+            }
+            positionIncrementAttribute.setPositionIncrement(positionIncrementAttribute.getPositionIncrement() + skippedPositions);
+            charTermAttribute.setEmpty().append(terms[0]);
+            if (terms.length > 1) {
+                current = captureState();
+                for (int i = 1; i < terms.length; i++) {
+                    alternatives.add(terms[i]);
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private String[] analyze(String term) {
+        return cache == null ? analyzeUncached(term) : cache.get(term, this::analyzeUncached);
+    }
+
+    private String[] analyzeUncached(String term) {
+        try {
+            source.setTerm(term);
+            analysis.reset();
+            List<String> terms = new ArrayList<>(1);
+            while (analysis.incrementToken()) {
+                terms.add(analyzedTermAttribute.toString());
+            }
+            analysis.end();
+            return terms.isEmpty() ? NO_TERMS : terms.toArray(NO_TERMS);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            try {
+                analysis.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        alternatives.clear();
+        current = null;
+    }
+
+    /** Token stream of one term. */
+    private static final class TermSource extends TokenStream {
+        private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+        private String term;
+        private boolean done;
+
+        void setTerm(String term) {
+            this.term = term;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (done) {
+                return false;
+            }
+            clearAttributes();
+            termAttribute.setEmpty().append(term);
+            done = true;
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            done = false;
+        }
+    }
+}
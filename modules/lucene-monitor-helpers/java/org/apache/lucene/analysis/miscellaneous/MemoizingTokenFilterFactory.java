@@ -0,0 +1,60 @@
+package org.apache.lucene.analysis.miscellaneous;
+
+import org.apache.lucene.analysis.TokenFilterFactory;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.util.ResourceLoader;
+import org.apache.lucene.util.ResourceLoaderAware;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches the terms of another token filter, e.g.
+ * {"name": "memoizing", "args": {"filter": "snowballPorter", "language": "Finnish", "cacheSize": "100000"}}.
+ * All the args except filter and cacheSize are passed to the wrapped token filter.
+ * Token streams of the factory share the cache, cacheSize 0 disables it.
+ */
+public class MemoizingTokenFilterFactory extends TokenFilterFactory implements ResourceLoaderAware {
+
+    /** SPI name */
+    public static final String NAME = "memoizing";
+
+    public static final String FILTER_KEY = "filter";
+    public static final String CACHE_SIZE_KEY = "cacheSize";
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+
+    private final TokenFilterFactory filterFactory;
+    private final TermCache<String[]> cache;
+
+    /** Creates a new MemoizingTokenFilterFactory */
+    public MemoizingTokenFilterFactory(Map<String, String> args) {
+        super(args);
+        String filter = require(args, FILTER_KEY);
+        int cacheSize = getInt(args, CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE);
+        filterFactory = TokenFilterFactory.forName(filter, new HashMap<>(args));
+        args.clear();
+        cache = cacheSize > 0 ? new TermCache<>(filter, cacheSize) : null;
+    }
+
+    public MemoizingTokenFilterFactory() {
+        throw defaultCtorException();
+    }
+
+    @Override
+    public void inform(ResourceLoader loader) throws IOException {
+        if (filterFactory instanceof ResourceLoaderAware) {
+            ((ResourceLoaderAware) filterFactory).inform(loader);
+        }
+    }
+
+    @Override
+    public TokenStream create(TokenStream input) {
+        return new MemoizingTokenFilter(input, filterFactory, cache);
+    }
+
+    /** Stats of the cache of the factory, null when the cache is disabled. */
+    public Map<String, Object> cacheStats() {
+        return cache == null ? null : cache.stats();
+    }
+}
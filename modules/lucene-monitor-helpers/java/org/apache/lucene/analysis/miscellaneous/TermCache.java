@@ -0,0 +1,90 @@
+package org.apache.lucene.analysis.miscellaneous;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded thread-safe cache of the analysis of a term, e.g. stems or base forms of words.
+ * Entries are kept in two generations of half of the max size: when the young generation
+ * is full it becomes the old one and the previous old generation is dropped.
+ * Lookups don't lock and the terms that keep coming up are moved to the young generation.
+ */
+public final class TermCache<V> {
+
+    private static final List<WeakReference<TermCache<?>>> CACHES = new CopyOnWriteArrayList<>();
+
+    private final String name;
+    private final int generationSize;
+    private volatile ConcurrentHashMap<String, V> young = new ConcurrentHashMap<>();
+    private volatile ConcurrentHashMap<String, V> old = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public TermCache(String name, int maxSize) {
+        this.name = name;
+        this.generationSize = Math.max(1, maxSize / 2);
+        CACHES.removeIf(ref -> ref.get() == null);
+        CACHES.add(new WeakReference<>(this));
+    }
+
+    public V get(String term, Function<String, V> analyze) {
+        V value = young.get(term);
+        if (value != null) {
+            hits.increment();
+            return value;
+        }
+        value = old.get(term);
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            value = analyze.apply(term);
+        }
+        put(term, value);
+        return value;
+    }
+
+    private void put(String term, V value) {
+        ConcurrentHashMap<String, V> current = young;
+        current.put(term, value);
+        if (current.size() > generationSize) {
+            synchronized (this) {
+                if (young == current) {
+                    old = current;
+                    young = new ConcurrentHashMap<>();
+                }
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("name", name);
+        stats.put("size", young.size() + old.size());
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hit-rate", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        return stats;
+    }
+
+    /** Stats of all the caches that are in use. */
+    public static List<Map<String, Object>> allStats() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        for (WeakReference<TermCache<?>> ref : CACHES) {
+            TermCache<?> cache = ref.get();
+            if (cache != null) {
+                stats.add(cache.stats());
+            }
+        }
+        return stats;
+    }
+}
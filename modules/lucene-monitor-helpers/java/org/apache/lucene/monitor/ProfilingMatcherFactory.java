@@ -0,0 +1,61 @@
+package org.apache.lucene.monitor;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Wraps a MatcherFactory and reports how long it took to match every candidate query.
+ * Matches are collected by the wrapped matcher.
+ */
+public class ProfilingMatcherFactory<T extends QueryMatch> implements MatcherFactory<T> {
+
+    public interface Listener {
+        /**
+         * Called after the candidate query was matched against all the documents of the batch.
+         */
+        void onCandidate(String queryId, long nanos, int documents);
+    }
+
+    private final MatcherFactory<T> factory;
+    private final Listener listener;
+
+    public ProfilingMatcherFactory(MatcherFactory<T> factory, Listener listener) {
+        this.factory = factory;
+        this.listener = listener;
+    }
+
+    @Override
+    public CandidateMatcher<T> createMatcher(IndexSearcher searcher) {
+        CandidateMatcher<T> delegate = factory.createMatcher(searcher);
+        int documents = searcher.getIndexReader().maxDoc();
+        return new CandidateMatcher<T>(searcher) {
+            @Override
+            protected void matchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    delegate.matchQuery(queryId, matchQuery, metadata);
+                } finally {
+                    listener.onCandidate(queryId, System.nanoTime() - start, documents);
+                }
+            }
+
+            @Override
+            public T resolve(T match1, T match2) {
+                return delegate.resolve(match1, match2);
+            }
+
+            @Override
+            void reportError(String queryId, Exception e) {
+                delegate.reportError(queryId, e);
+            }
+
+            @Override
+            MultiMatchingQueries<T> finish(long buildTime, int queryCount) {
+                return delegate.finish(buildTime, queryCount);
+            }
+        };
+    }
+}
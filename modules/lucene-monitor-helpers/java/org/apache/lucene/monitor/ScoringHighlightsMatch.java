@@ -4,12 +4,17 @@ import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
 
 import java.io.IOException;
 import java.util.*;
 
 public class ScoringHighlightsMatch extends QueryMatch {
 
+    /**
+     * Matcher that scores the matches with the similarity and collects their hits.
+     * Works with batches of documents, every match is of its own document.
+     */
     public static final MatcherFactory<ScoringHighlightsMatch> matchWithSimilarity(Similarity similarity) {
         return searcher -> {
             searcher.setSimilarity(similarity);
@@ -24,34 +29,27 @@ public class ScoringHighlightsMatch extends QueryMatch {
                     return null;
                 }
 
+                // One scoring pass over the documents that match the query, the matches (highlights)
+                // are collected only for the scored documents.
                 @Override
                 protected void matchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
                     Weight w = searcher.createWeight(searcher.rewrite(matchQuery), ScoreMode.COMPLETE, 1);
                     for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
-                        for (int i = 0; i < ctx.reader().maxDoc(); i++) {
-                            Matches matches = w.matches(ctx, i);
-
-                            Collector results = new SimpleCollector() {
-
-                                private Scorable scorer;
-                                @Override
-                                public ScoreMode scoreMode() {
-                                    return ScoreMode.COMPLETE;
-                                }
-
-                                @Override
-                                public void collect(int doc) throws IOException {
-                                    ScoringHighlightsMatch match = buildMatch(matches, queryId, scorer.score(), doc);
-                                    addMatch(match, doc);
-                                }
-
-                                @Override
-                                public void setScorer(Scorable scorer) {
-                                    this.scorer = scorer;
-                                }
-                            };
-                            // SCORE of the match
-                            w.bulkScorer(ctx).score(results.getLeafCollector(ctx), ctx.reader().getLiveDocs());
+                        Scorer scorer = w.scorer(ctx);
+                        if (scorer == null) {
+                            continue;
+                        }
+                        Bits liveDocs = ctx.reader().getLiveDocs();
+                        DocIdSetIterator docs = scorer.iterator();
+                        for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc()) {
+                            if (liveDocs != null && !liveDocs.get(doc)) {
+                                continue;
+                            }
+                            Matches matches = w.matches(ctx, doc);
+                            if (matches != null) {
+                                int docId = ctx.docBase + doc;
+                                addMatch(buildMatch(matches, queryId, scorer.score(), docId), docId);
+                            }
                         }
                     }
                 }
@@ -3,6 +3,7 @@ package org.apache.lucene.analysis.fi;
 import fi.evident.raudikko.Analyzer;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.miscellaneous.TermCache;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 
@@ -17,6 +18,7 @@ public final class RaudikkoTokenFilter extends TokenFilter {
     private final boolean analyzeAll;
     private final int minimumWordSize;
     private final int maximumWordSize;
+    private final TermCache<List<String>> cache;
 
     private final CharTermAttribute charTermAttribute = addAttribute(CharTermAttribute.class);
     private final PositionIncrementAttribute positionIncrementAttribute = addAttribute(PositionIncrementAttribute.class);
@@ -26,11 +28,18 @@ public final class RaudikkoTokenFilter extends TokenFilter {
     private static final Pattern VALID_WORD_PATTERN = Pattern.compile("[a-zA-ZåäöÅÄÖ-]+");
 
     public RaudikkoTokenFilter(TokenStream input, Analyzer analyzer, boolean analyzeAll, int minimumWordSize, int maximumWordSize) {
+        this(input, analyzer, analyzeAll, minimumWordSize, maximumWordSize, null);
+    }
+
+    /** Base forms are cached in the cache that is shared by the filters of a factory, null disables caching. */
+    public RaudikkoTokenFilter(TokenStream input, Analyzer analyzer, boolean analyzeAll, int minimumWordSize, int maximumWordSize,
+                               TermCache<List<String>> cache) {
         super(input);
         raudikkoAnalyzer = analyzer;
         this.analyzeAll = analyzeAll;
         this.minimumWordSize = minimumWordSize;
         this.maximumWordSize = maximumWordSize;
+        this.cache = cache;
     }
 
     @Override
@@ -67,7 +76,7 @@ public final class RaudikkoTokenFilter extends TokenFilter {
 
     private List<String> analyze(CharSequence wordSeq) {
         String word = wordSeq.toString();
-        return analyzeUncached(word);
+        return cache == null ? analyzeUncached(word) : cache.get(word, this::analyzeUncached);
     }
 
     private List<String> analyzeUncached(String word) {
@@ -79,7 +88,7 @@ public final class RaudikkoTokenFilter extends TokenFilter {
             case 1:
                 return Collections.singletonList(results.get(0));
             default:
-                return new ArrayList<>(results);
+                return Collections.unmodifiableList(new ArrayList<>(results));
         }
     }
 
@@ -5,7 +5,9 @@ import fi.evident.raudikko.Morphology;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.TokenFilterFactory;
 import org.apache.lucene.analysis.fi.RaudikkoTokenFilter;
+import org.apache.lucene.analysis.miscellaneous.TermCache;
 
+import java.util.List;
 import java.util.Map;
 
 public class RaudikkoTokenFilterFactory extends TokenFilterFactory {
@@ -16,11 +18,15 @@ public class RaudikkoTokenFilterFactory extends TokenFilterFactory {
     final boolean analyzeAll;
     final int minimumWordSize;
     final int maximumWordSize;
+    final int cacheSize;
     public static final String ANALYZE_ALL_KEY = "analyzeAll";
     public static final String MINIMUM_WORD_SIZE_KEY = "minimumWordSize";
     public static final String MAXIMUM_WORD_SIZE_KEY = "maximumWordSize";
+    public static final String CACHE_SIZE_KEY = "cacheSize";
+    public static final int DEFAULT_CACHE_SIZE = 100000;
     private final Morphology morphology;
     private final Analyzer analyzer;
+    private final TermCache<List<String>> cache;
 
 
     /** Creates a new RaudikkoTokenFilterFactory */
@@ -29,8 +35,11 @@ public class RaudikkoTokenFilterFactory extends TokenFilterFactory {
         analyzeAll = getBoolean(args, ANALYZE_ALL_KEY, true);
         minimumWordSize = getInt(args, MINIMUM_WORD_SIZE_KEY, 3);
         maximumWordSize = getInt(args, MAXIMUM_WORD_SIZE_KEY, 100);
+        cacheSize = getInt(args, CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE);
         morphology = Morphology.loadBundled();
         analyzer = morphology.newAnalyzer();
+        // base forms are shared by all the token streams of the factory
+        cache = cacheSize > 0 ? new TermCache<>(NAME, cacheSize) : null;
         if (!args.isEmpty()) {
             throw new IllegalArgumentException("Unknown parameters: " + args);
         }
@@ -42,6 +51,6 @@ public class RaudikkoTokenFilterFactory extends TokenFilterFactory {
 
     @Override
     public TokenStream create(TokenStream input) {
-        return new RaudikkoTokenFilter(input, analyzer, analyzeAll, minimumWordSize, maximumWordSize);
+        return new RaudikkoTokenFilter(input, analyzer, analyzeAll, minimumWordSize, maximumWordSize, cache);
     }
 }
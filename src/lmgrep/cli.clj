@@ -12,9 +12,15 @@
 (defn remove-text-analysis-flags [options]
   (apply dissoc options ac/analysis-keys))
 
+(defn check-conflicts [{:keys [options] :as parsed}]
+  (let [conflicts (parser/conflict-errors options)]
+    (cond-> parsed
+            (seq conflicts) (update :errors (fnil into []) conflicts))))
+
 (defn handle-args [args]
   (-> args
       (cli/parse-opts parser/cli-options)
+      check-conflicts
       prepare-analysis
       (update-in [:options] remove-text-analysis-flags)))
 
@@ -57,6 +57,11 @@
     "A file path to the Lucene query strings with their config. If specified then all the positional arguments are interpreted as files."]
    [nil "--queries-index-dir QUERIES_INDEX_DIR"
     "A directory where Lucene Monitor queries are stored."]
+   [nil "--sync-queries" "Modifies --queries-index-dir. Apply only the added, updated and deleted queries of the queries file to the stored queries."]
+   [nil "--lazy-queries" "Modifies --queries-index-dir. Open the stored queries read-only, a query is parsed only when it is a candidate for a match."]
+   [nil "--lazy-queries-cache-size SIZE" "Modifies --lazy-queries. How many parsed queries to keep. Default: 10000."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
    [nil "--tokenizer TOKENIZER" (str "Tokenizer to use, one of: " (options-to-str tokenizers))
     :parse-fn #(keyword (str/lower-case %))
     :validate [#(contains? tokenizers %) (str "Tokenizer must be one of: " (options-to-str tokenizers))]]
@@ -81,7 +86,7 @@
    [nil "--pre-tags PRE_TAGS" "A string that the highlighted text is wrapped in, use in conjunction with --post-tags"]
    [nil "--post-tags POST_TAGS" "A string that the highlighted text is wrapped in, use in conjunction with --pre-tags"]
    [nil "--excludes EXCLUDES" "A GLOB that filters out files that were matched with a GLOB"]
-   [nil "--skip-binary-files" "If a file that is detected to be binary should be skipped. Available for Linux and MacOS only."
+   [nil "--skip-binary-files" "If a file that is detected to be binary should be skipped."
     :default false]
    [nil "--[no-]hidden" "Search in hidden files. Default: true."
     :default true]
@@ -89,10 +94,30 @@
     :parse-fn #(Integer/parseInt %)]
    [nil "--with-empty-lines" "When provided on the input that does not match write an empty line to STDOUT."
     :default false]
+   ["-l" "--files-with-matches" "Print only the paths of the files that have matching lines, reading a file stops at the first match."]
+   ["-c" "--count" "Print only the count of matching lines per file."]
+   [nil "--max-count N" "Stop reading a file after N matching lines."
+    :parse-fn #(Long/parseLong %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
    [nil "--with-scored-highlights" "ALPHA: Instructs to highlight with scoring."
     :default false]
-   [nil "--[no-]split" "If a file (or STDIN) should be split by newline."
+   [nil "--similarity SIMILARITY" "Similarity of the scores of --with-score and --with-scored-highlights: bm25 or classic. Default: bm25."
+    :parse-fn str/lower-case
+    :validate [#(contains? #{"bm25" "classic"} %) "Similarity must be one of: bm25, classic"]]
+   [nil "--bm25-k1 K1" "BM25 term frequency saturation parameter. Default: 1.2."
+    :parse-fn #(Double/parseDouble %)
+    :validate [(fn [value] (<= 0 value)) "Must be >= 0"]]
+   [nil "--bm25-b B" "BM25 length normalization parameter. Default: 0.75."
+    :parse-fn #(Double/parseDouble %)
+    :validate [(fn [value] (<= 0 value 1)) "Must be between 0 and 1"]]
+   [nil "--[no-]split" "If a file (or STDIN) should be split by newline. With --no-split the output is one entry per part of a window with matches, not one per file."
     :default true]
+   [nil "--no-split-window-size CHARS" "With --no-split a file is matched in overlapping windows of CHARS characters. Default: 65536."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
+   [nil "--no-split-window-overlap CHARS" "With --no-split windows overlap by CHARS characters, matches up to half of it long are found across windows. Default: 4096."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (<= 0 value)) "Must be >= 0"]]
    [nil "--hyperlink" "If a file should be printed as hyperlinks."
     :default false]
    [nil "--with-details" "For JSON and EDN output adds raw highlights list."
@@ -118,17 +143,101 @@
     :parse-fn #(Integer/parseInt %)
     :validate [(fn [value] (< 0 value)) "Must be > 0"]
     :default 1024]
+   [nil "--batch-size SIZE" "Number of lines matched with one Lucene Monitor call. Default: 1."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
+   [nil "--micro-batching" "Group lines into worker tasks sized by the observed processing time per line."]
+   [nil "--micro-batch-max-lines N" "Modifies --micro-batching. Maximum number of lines of a worker task. Default: 1024."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
+   [nil "--micro-batch-max-bytes BYTES" "Modifies --micro-batching. Maximum number of characters of a worker task. Default: 1048576."
+    :parse-fn #(Long/parseLong %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
+   [nil "--mmap-threshold BYTES" "Files of at least BYTES size are memory-mapped and matched in parallel chunks when UTF-8 is the platform charset."
+    :parse-fn #(Long/parseLong %)
+    :validate [(fn [value] (<= 0 value)) "Must be >= 0"]]
+   [nil "--mmap-chunk-size BYTES" "Size of a chunk of a memory-mapped file in bytes. Default: 16777216."
+    :parse-fn #(Long/parseLong %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
+   [nil "--virtual-threads" "Read every file smaller than 1 MiB on its own virtual thread (JDK 21), or on a pool of --max-open-files threads when virtual threads are not available."]
+   [nil "--max-open-files N" "Modifies --virtual-threads. Maximum number of files that are read at the same time. Default: 256."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
+   [nil "--line-cache-bytes BYTES" "Cache the highlights of repeated lines in about BYTES of memory. Default: no cache."
+    :parse-fn #(Long/parseLong %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
    [nil "--reader-buffer-size BUFFER_SIZE" "Buffer size of the BufferedReader in bytes."
     :parse-fn #(Integer/parseInt %)]
    [nil "--writer-buffer-size BUFFER_SIZE" "Buffer size of the BufferedWriter in bytes."
     :parse-fn #(Integer/parseInt %)]
    [nil "--[no-]preserve-order" "If the input order should be preserved."
     :default true]
+   [nil "--reorder-window SIZE" "Modifies --preserve-order. How many lines (or batches) can be processed ahead of the next line to output. Default: 4096."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
    [nil "--config-dir DIR" "A base directory from which to load text analysis resources, e.g. synonym files. Default: current dir."]
    [nil "--analyzers-file FILE"
     "A file that contains definitions of text analyzers. Works in combinations with --config-dir flag."
     :multi true
     :update-fn conj]
-   [nil "--query-update-buffer-size NUMBER" "Number of queries to be buffered in memory before being committed to the queryindex. Default 100000."]
+   [nil "--query-update-buffer-size NUMBER" "Number of queries to be buffered in memory before being committed to the queryindex. Default 100000."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
+   [nil "--shards N" "Split the queries into N Lucene Monitors that match every line in parallel. Default: 1."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
+   [nil "--[no-]token-automaton" "ALPHA: Match dictionaries of only term and exact phrase queries with a token automaton instead of the Lucene Monitor."
+    :default false]
+   [nil "--load-progress" "Print progress and timings of loading the queries as JSON to STDERR." :default false]
    [nil "--streamed" "Listens on STDIN for json with both query and a piece of text to be analyzed" :default false]
+   [nil "--streamed-cache-size SIZE" "Modifies --streamed. How many ready to use matchers to keep for the repeating queries, 0 disables the cache. Default: 1000."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (<= 0 value)) "Must be >= 0"]]
+   [nil "--streamed-cache-ttl SECONDS" "Modifies --streamed. After how many seconds a cached matcher is rebuilt."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
+   [nil "--stats" "Print runtime statistics as JSON to STDERR: periodically and a final summary." :default false]
+   [nil "--stats-interval SECONDS" "Modifies --stats. How often to print the statistics. Default: 10."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
+   [nil "--stats-file FILE" "Write the final runtime statistics as JSON to the FILE."]
+   [nil "--server" "Load the dictionary once and serve match requests over HTTP until stopped." :default false]
+   [nil "--server-host HOST" "Modifies --server. Interface to listen on. Default: 127.0.0.1."]
+   [nil "--server-port PORT" "Modifies --server. Port to listen on, 0 picks a free port. Default: 8080."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (<= 0 value 65535)) "Must be between 0 and 65535"]]
+   [nil "--server-url URL" "Send the files or STDIN to the lmgrep server at URL, e.g. http://127.0.0.1:8080, instead of matching locally."]
+   [nil "--profile-queries" "Print the most expensive queries and the presearcher effectiveness as JSON to STDERR." :default false]
+   [nil "--profile-queries-top N" "Modifies --profile-queries. How many of the most expensive queries to print. Default: 20."
+    :parse-fn #(Integer/parseInt %)
+    :validate [(fn [value] (< 0 value)) "Must be > 0"]]
    ["-h" "--help"]])
+
+(defn- flag [k] (fn [options] (get options k)))
+
+(defn- no-split? [options] (false? (get options :split)))
+
+(def ^:private early-termination-flags
+  [["-l/--files-with-matches" (flag :files-with-matches)]
+   ["-c/--count" (flag :count)]
+   ["--max-count" (flag :max-count)]])
+
+(def incompatible-flags
+  "Pairs of flag groups that can't be combined, a flag is its name and a predicate of the options."
+  [[early-termination-flags
+    [["--no-split" no-split?]
+     ["--virtual-threads" (flag :virtual-threads)]
+     ["--micro-batching" (flag :micro-batching)]
+     ["--mmap-threshold" (flag :mmap-threshold)]]]
+   [[["--no-split" no-split?]]
+    [["--with-empty-lines" (flag :with-empty-lines)]]]])
+
+(defn conflict-errors
+  "Errors for the flags of the options that can't be combined."
+  [options]
+  (vec (for [[flags other-flags] incompatible-flags
+             [flag-name present?] flags
+             :when (present? options)
+             [other-flag-name other-present?] other-flags
+             :when (other-present? options)]
+         (format "%s can't be combined with %s" flag-name other-flag-name))))
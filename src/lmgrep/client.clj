@@ -0,0 +1,119 @@
+(ns lmgrep.client
+  "Thin client of the lmgrep server: files or STDIN are sent to the server in batches
+  of lines and the output of the server is printed, the dictionary is not loaded."
+  (:require [jsonista.core :as json]
+            [lmgrep.concurrent :as c]
+            [lmgrep.fs :as fs]
+            [lmgrep.reorder :as reorder]
+            [lmgrep.server :as server]
+            [lmgrep.unordered :as unordered])
+  (:import (java.io BufferedReader BufferedWriter FileReader InputStream IOException OutputStreamWriter PrintWriter Writer)
+           (java.net HttpURLConnection URL URLEncoder)
+           (java.nio.charset StandardCharsets)
+           (java.util.concurrent ExecutorService)
+           (java.util.concurrent.atomic AtomicReference)))
+
+(set! *warn-on-reflection* true)
+
+(def DEFAULT_BATCH_SIZE 1000)
+
+(defn- output-params
+  "Query params of the output options that are given to the client, the server formats
+  the output with them instead of its own."
+  [options]
+  (apply str (for [k server/output-option-keys
+                   :let [value (get options k)]
+                   :when (and (some? value) (not (false? value)))]
+               (str "&" (name k) "=" (URLEncoder/encode ^String (if (keyword? value) (name value) (str value)) "UTF-8")))))
+
+(defn- grep-url ^URL [server-url path first-line-nr output-params]
+  (URL. (str server-url "/grep?line-number=" first-line-nr
+             (when path (str "&file=" (URLEncoder/encode ^String path "UTF-8")))
+             output-params)))
+
+(defn- error-message [^HttpURLConnection connection]
+  (with-open [^InputStream is (or (.getErrorStream connection) (.getInputStream connection))]
+    (get (json/read-value is) "error")))
+
+(defn remote-batch-matcher-fn
+  "Returns a function that given the line number of the first line and a vector of lines
+  returns a vector of output strings (nil when a line has no matches) as formatted by the server
+  with the output options that are given in the options."
+  [server-url path options]
+  (let [output-params (output-params options)]
+    (fn [^long first-line-nr lines]
+      (let [^HttpURLConnection connection (.openConnection (grep-url server-url path first-line-nr output-params))
+            status (try
+                     (.setRequestMethod connection "POST")
+                     (.setDoOutput connection true)
+                     (.setRequestProperty connection "Content-Type" "text/plain; charset=utf-8")
+                     (with-open [^Writer writer (BufferedWriter. (OutputStreamWriter. (.getOutputStream connection) StandardCharsets/UTF_8))]
+                       (doseq [^String line lines]
+                         (.write writer line)
+                         (.write writer "\n")))
+                     (.getResponseCode connection)
+                     (catch IOException e
+                       (throw (Exception. (format "lmgrep server at %s failed: %s" server-url (.getMessage e)) e))))]
+        (if (= 200 status)
+          (with-open [is (.getInputStream connection)]
+            (json/read-value is))
+          (throw (Exception. (format "lmgrep server at %s responded with %s: %s"
+                                     server-url status (error-message connection)))))))))
+
+(defn- consume-reader
+  "Reads the batches of lines of the reader and calls (submit! first-line-nr lines) for each of them
+  until a request has failed."
+  [reader batch-size ^AtomicReference failure submit!]
+  (with-open [^BufferedReader rdr reader]
+    (loop [lines (unordered/read-batch rdr batch-size)
+           line-nr 1]
+      (when (and lines (nil? (.get failure)))
+        (submit! line-nr lines)
+        (recur (unordered/read-batch rdr batch-size) (+ line-nr (count lines)))))))
+
+(defn grep
+  "Sends the lines of the files, or STDIN when there are no files, to the server.
+  Reading stops at the first failed request and its exception is thrown after
+  the requests in flight are done."
+  [server-url files-pattern files options]
+  (let [file-paths (concat (fs/stream-files files-pattern options) (fs/filter-files files))
+        preserve-order? (get options :preserve-order true)
+        batch-size (get options :batch-size DEFAULT_BATCH_SIZE)
+        with-empty-lines (get options :with-empty-lines)
+        ^PrintWriter writer (PrintWriter. (BufferedWriter. *out* (get options :writer-buffer-size 8192))
+                                          ^Boolean (empty? file-paths))
+        ^ExecutorService request-executor (c/thread-pool-executor (get options :concurrency (.availableProcessors (Runtime/getRuntime)))
+                                                                  (get options :queue-size 1024))
+        ^ExecutorService writer-executor (c/single-thread-executor)
+        ordered-output (when preserve-order? (unordered/ordered-output writer with-empty-lines options))
+        ; the first failed request, the requests after it are not sent
+        failure (AtomicReference.)
+        request (fn [batch-matcher-fn line-nr lines]
+                  (when (nil? (.get failure))
+                    (try
+                      (batch-matcher-fn line-nr lines)
+                      (catch Exception e
+                        (.compareAndSet failure nil e)
+                        nil))))]
+    (doseq [^String path (if (empty? file-paths) [nil] file-paths)
+            :while (nil? (.get failure))]
+      (let [reader (if path
+                     (BufferedReader. (FileReader. path) (get options :reader-buffer-size 8192))
+                     (BufferedReader. *in* (get options :reader-buffer-size 8192)))
+            batch-matcher-fn (remote-batch-matcher-fn server-url path options)]
+        (consume-reader reader batch-size failure
+                        (if preserve-order?
+                          (fn [line-nr lines]
+                            (reorder/submit! ordered-output request-executor
+                                             (fn [] (request batch-matcher-fn line-nr lines))))
+                          (fn [line-nr lines]
+                            (.execute request-executor
+                                      ^Runnable (fn []
+                                                  (when-let [out-strs (request batch-matcher-fn line-nr lines)]
+                                                    (.execute writer-executor
+                                                              ^Runnable (fn [] (unordered/write-outputs writer out-strs with-empty-lines)))))))))))
+    (c/shutdown-thread-pool-executors request-executor writer-executor)
+    (when ordered-output (reorder/await-drained! ordered-output))
+    (.flush writer)
+    (when-let [^Exception e (.get failure)]
+      (throw e))))
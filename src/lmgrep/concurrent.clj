@@ -1,5 +1,5 @@
 (ns lmgrep.concurrent
-  (:import (java.util.concurrent ExecutorService Executors
+  (:import (java.util.concurrent ExecutionException ExecutorService Executors Future RejectedExecutionHandler
                                  ThreadPoolExecutor ThreadPoolExecutor$CallerRunsPolicy
                                  LinkedBlockingQueue TimeUnit)))
 
@@ -8,13 +8,57 @@
     (.shutdown executor)
     (.awaitTermination executor 60 TimeUnit/SECONDS)))
 
-(defn single-thread-executor []
-  (Executors/newSingleThreadExecutor))
+(defn single-thread-executor
+  "The same as Executors/newSingleThreadExecutor but the queue can be inspected."
+  ^ThreadPoolExecutor []
+  (ThreadPoolExecutor. 1 1 0 TimeUnit/MILLISECONDS (LinkedBlockingQueue.)))
 
-(defn thread-pool-executor [^Integer concurrency ^Integer queue-size]
-  (ThreadPoolExecutor.
-    concurrency concurrency
-    0 TimeUnit/MILLISECONDS
-    (LinkedBlockingQueue. queue-size)
-    (Executors/defaultThreadFactory)
-    (ThreadPoolExecutor$CallerRunsPolicy.)))
+(defn- counting-caller-runs-policy
+  "CallerRunsPolicy that calls on-caller-runs every time the task runs on the caller thread."
+  [on-caller-runs]
+  (let [policy (ThreadPoolExecutor$CallerRunsPolicy.)]
+    (reify RejectedExecutionHandler
+      (rejectedExecution [_ runnable executor]
+        (on-caller-runs)
+        (.rejectedExecution policy runnable executor)))))
+
+(defn thread-pool-executor
+  (^ThreadPoolExecutor [concurrency queue-size] (thread-pool-executor concurrency queue-size nil))
+  (^ThreadPoolExecutor [^Integer concurrency ^Integer queue-size on-caller-runs]
+   (ThreadPoolExecutor.
+     concurrency concurrency
+     0 TimeUnit/MILLISECONDS
+     (LinkedBlockingQueue. queue-size)
+     (Executors/defaultThreadFactory)
+     (if on-caller-runs
+       (counting-caller-runs-policy on-caller-runs)
+       (ThreadPoolExecutor$CallerRunsPolicy.)))))
+
+(defn virtual-thread-executor
+  "Executor that starts a virtual thread per task, nil when virtual threads are not available,
+  e.g. before JDK 21 or in the native image."
+  ^ExecutorService []
+  (try
+    (.invoke (.getMethod Executors "newVirtualThreadPerTaskExecutor" (make-array Class 0))
+             nil (object-array 0))
+    (catch Exception _ nil)))
+
+(defn chunked-pmapv
+  "Like mapv but chunks of the coll are mapped in parallel on concurrency threads.
+  The order is preserved. A coll that fits into one chunk is mapped on the calling thread.
+  The first exception of f is rethrown as is."
+  [f coll concurrency chunk-size]
+  (let [chunks (partition-all chunk-size coll)]
+    (if (or (<= concurrency 1) (empty? (rest chunks)))
+      (mapv f coll)
+      (let [^ExecutorService executor (Executors/newFixedThreadPool concurrency)]
+        (try
+          (let [futures (mapv (fn [chunk] (.submit executor ^Callable (fn [] (mapv f chunk)))) chunks)]
+            (into [] (mapcat (fn [^Future future]
+                               (try
+                                 (.get future)
+                                 (catch ExecutionException e
+                                   (throw (.getCause e))))))
+                  futures))
+          (finally
+            (.shutdownNow executor)))))))
@@ -3,11 +3,13 @@
             [clojure.string :as str]
             [jsonista.core :as json]
             [lmgrep.cli :as cli]
+            [lmgrep.client :as client]
             [lmgrep.lucene.analyzer :as analyzers]
             [lmgrep.grep :as grep]
             [lmgrep.only-analyze :as analyze]
             [lmgrep.predefined-analyzers :as predefined]
             [lmgrep.print :as print]
+            [lmgrep.server :as server]
             [lmgrep.streamed :as streamed])
   (:import (java.util.logging Logger Level))
   (:gen-class))
@@ -49,6 +51,19 @@
       (when (get options :streamed)
         (streamed/grep options)
         (System/exit 0))
+      (when-let [server-url (get options :server-url)]
+        ; the client sends files to the server, all positional arguments are files
+        (client/grep server-url (first positional-arguments) (rest positional-arguments) options)
+        (System/exit 0))
+      (when (get options :server)
+        (when (zero-queries? arguments options)
+          (print-summary-msg summary)
+          (System/exit 1))
+        (server/serve (or (seq (:query options))
+                          (when-not (or (:queries-file options) (:queries-index-dir options))
+                            [lucene-query]))
+                      options)
+        (System/exit 0))
       (if (:only-analyze options)
         (analyze/analyze-lines (first positional-arguments) (rest positional-arguments) options)
         (do
@@ -0,0 +1,196 @@
+(ns lmgrep.early-termination
+  "Output modes that need to know only whether, or how many, lines of a file match:
+  --files-with-matches, --count and --max-count. Lines of a file are read in chunks that are
+  matched on the matcher threads. The reader stops reading the file as soon as the answer
+  is known, and the chunks of the file that are still queued are skipped.
+  Chunks are written in order through a reorder buffer, so the first --max-count matching
+  lines of a file are the ones that are written (or counted).
+  With --files-with-matches and --count lines are matched without highlighting or scoring.
+  Lines of a chunk are matched in batches of --batch-size lines.
+  When matching of a chunk fails the file is failed: its error is written to STDERR instead of
+  the answer for the file, and the rest of the file is not read."
+  (:require [lmgrep.concurrent :as c]
+            [lmgrep.line-cache :as line-cache]
+            [lmgrep.lucene :as lucene]
+            [lmgrep.lucene.profiler :as profiler]
+            [lmgrep.matching :as matching]
+            [lmgrep.print :as print]
+            [lmgrep.reorder :as reorder]
+            [lmgrep.stats :as stats]
+            [lmgrep.unordered :as unordered])
+  (:import (java.io BufferedReader BufferedWriter FileReader PrintWriter)
+           (java.util.concurrent ExecutorService)
+           (java.util.concurrent.atomic AtomicLong)))
+
+(set! *warn-on-reflection* true)
+
+(def CHUNK_SIZE 256)
+
+(def STDIN_LABEL "(standard input)")
+
+(defn enabled? [options]
+  (boolean (or (get options :files-with-matches) (get options :count) (get options :max-count))))
+
+(defn- summary? [options]
+  (boolean (or (get options :files-with-matches) (get options :count))))
+
+(defn- limit
+  "Number of matching lines after which the rest of a file doesn't matter, nil when all of them count."
+  [options]
+  (cond
+    (get options :files-with-matches) 1
+    (get options :max-count) (long (get options :max-count))
+    :else nil))
+
+(defn- file-state [path]
+  {:path     path
+   ; matching lines that the matcher threads found, in any order
+   :matched  (AtomicLong.)
+   ; matching lines in the order of lines, counted when chunks are written
+   :written  (volatile! 0)
+   :done     (volatile! false)
+   ; set by the matcher thread of the chunk that failed
+   :failed   (volatile! false)
+   ; the error of the file is written
+   :reported (volatile! false)})
+
+(defn- answered? [{:keys [^AtomicLong matched done failed]} limit]
+  (or @done @failed (and limit (<= (long limit) (.get matched)))))
+
+(defn- batch-fn
+  "Function of the line number of the first line and a batch of lines to the vector of their
+  outputs: true (or the output string) for a matching line, nil otherwise.
+  With a batch size above 1 the lines of a batch are matched with one Monitor call."
+  [highlighter path ^long batch-size options]
+  (if (summary? options)
+    (let [opts (assoc (matching/highlight-opts options) :matches-only true)
+          cache (line-cache/cache-of options)
+          match (fn [line] (lucene/match highlighter line opts))
+          match-batch (fn [lines] (lucene/match-batch highlighter lines opts))
+          matches? (fn [ids] (when (seq ids) true))]
+      (if (< 1 batch-size)
+        (fn [_ lines]
+          (mapv matches? (if cache
+                           (line-cache/lookup-batch cache lines match-batch)
+                           (match-batch lines))))
+        (fn [_ lines]
+          (let [line (first lines)]
+            [(matches? (if cache
+                         (line-cache/lookup cache line (fn [] (match line)))
+                         (match line)))]))))
+    (if (< 1 batch-size)
+      (matching/batch-matcher-fn highlighter path options)
+      (let [line-fn (matching/matcher-fn highlighter path options)]
+        (fn [first-line-nr lines]
+          [(line-fn first-line-nr (first lines))])))))
+
+(defn- match-chunk
+  "Outputs of the lines of the chunk matched in batches, matching stops when the file is done."
+  [{:keys [^AtomicLong matched done failed]} batch-fn batch-size first-line-nr lines]
+  (let [line-count (count lines)
+        batch-size (long batch-size)
+        first-line-nr (long first-line-nr)]
+    (loop [i 0
+           outs (transient [])]
+      (if (or (<= line-count i) @done @failed)
+        (persistent! outs)
+        (let [batch-outs (batch-fn (+ first-line-nr i) (subvec lines i (min line-count (+ i batch-size))))]
+          (.addAndGet matched (count (filter some? batch-outs)))
+          (recur (+ i batch-size) (reduce conj! outs batch-outs)))))))
+
+(defn consume-reader
+  "Reads the chunks of lines of the reader until the answer for the file is known,
+  the end of the file is marked in the reorder buffer after the chunks."
+  [reader state batch-fn batch-size limit ^ExecutorService matcher-thread-pool-executor ordered-output]
+  (with-open [^BufferedReader rdr reader]
+    (loop [line-nr 1]
+      (when-not (answered? state limit)
+        (when-let [lines (unordered/read-batch rdr (max (long CHUNK_SIZE) (long batch-size)))]
+          (reorder/submit! ordered-output matcher-thread-pool-executor
+                           (fn []
+                             (try
+                               {:file state :outs (match-chunk state batch-fn batch-size line-nr lines)}
+                               (catch Exception e
+                                 (vreset! (:failed state) true)
+                                 {:file state :error e}))))
+          (recur (+ line-nr (count lines)))))))
+  (reorder/put! ordered-output (reorder/acquire! ordered-output) {:file state :end true}))
+
+(defn- write-fn
+  "Writes chunks and ends of files in order: the first limit matching lines of a file,
+  or the file path when it has matches, or the count of its matching lines.
+  The first error of a file is written to STDERR and nothing is written for the file after it."
+  [^PrintWriter writer limit options]
+  (let [files-with-matches (get options :files-with-matches)
+        count? (get options :count)
+        lines? (not (summary? options))
+        with-empty-lines (get options :with-empty-lines)]
+    (fn [{:keys [file outs end ^Exception error]}]
+      (let [{:keys [path written done reported]} file]
+        (cond
+          (or (nil? file) @reported) nil
+          error
+          (do
+            (vreset! reported true)
+            (when (Boolean/parseBoolean (System/getenv "DEBUG_MODE"))
+              (print/throwable error))
+            (print/to-err (format "%s: %s" (or path STDIN_LABEL) (.getMessage error))))
+          end
+          (cond
+            files-with-matches (when (pos? (long @written))
+                                 (print/to-writer writer (or path STDIN_LABEL)))
+            count? (print/to-writer writer (if path (str path ":" @written) (str @written))))
+          :else
+          (doseq [out outs]
+            (when-not @done
+              (if out
+                (let [n (vswap! written inc)]
+                  (when lines? (print/to-writer writer out))
+                  (when (and limit (<= (long limit) (long n)))
+                    (vreset! done true)))
+                (when (and lines? with-empty-lines)
+                  (print/to-writer writer))))))))))
+
+(defn grep [file-paths-to-analyze highlighter options]
+  (let [recorder (stats/recorder options)
+        profiler (profiler/create options)
+        line-cache (line-cache/from-options options)
+        options (-> options
+                    (stats/with-recorder recorder)
+                    (profiler/with-profiler profiler)
+                    (line-cache/with-cache line-cache))
+        batch-size (long (get options :batch-size 1))
+        reader-buffer-size (get options :reader-buffer-size 8192)
+        print-writer-buffer-size (get options :writer-buffer-size 8192)
+        concurrency (get options :concurrency (.availableProcessors (Runtime/getRuntime)))
+        queue-size (get options :queue-size 1024)
+        limit (limit options)
+        ^PrintWriter writer (stats/timed-writer recorder
+                                                (PrintWriter. (BufferedWriter. *out* print-writer-buffer-size)
+                                                              ^Boolean (empty? file-paths-to-analyze)))
+        ^ExecutorService matcher-thread-pool-executor (c/thread-pool-executor
+                                                        concurrency queue-size
+                                                        (when recorder (stats/caller-runs-counter recorder)))
+        ordered-output (reorder/create (get options :reorder-window reorder/DEFAULT_WINDOW)
+                                       (write-fn writer limit options))]
+    (stats/watch-executor! recorder "matcher" matcher-thread-pool-executor)
+    (when line-cache (stats/watch-cache! recorder "line-cache" #(line-cache/stats line-cache)))
+    (stats/start! recorder)
+    (doseq [^String path (if (empty? file-paths-to-analyze)
+                           [nil]                            ;; STDIN is an input
+                           file-paths-to-analyze)]
+      (consume-reader (stats/timed-reader recorder
+                                          (if path
+                                            (BufferedReader. (FileReader. path) reader-buffer-size)
+                                            (BufferedReader. *in* reader-buffer-size)))
+                      (file-state path)
+                      (batch-fn highlighter path batch-size options)
+                      batch-size
+                      limit
+                      matcher-thread-pool-executor
+                      ordered-output))
+    (c/shutdown-thread-pool-executors matcher-thread-pool-executor)
+    (reorder/await-drained! ordered-output)
+    (.flush writer)
+    (stats/finish! recorder)
+    (unordered/print-profile! highlighter profiler options)))
@@ -1,84 +1,241 @@
 (ns lmgrep.formatter
   (:require [lmgrep.ansi-escapes :as ansi]
             [clojure.string :as str]
-            [clojure.java.io :as io]))
+            [clojure.java.io :as io])
+  (:import (java.util Arrays)
+           (java.util.function Supplier)))
+
+(set! *warn-on-reflection* true)
 
 (defn no-color? []
   (not (str/blank? (System/getenv "NO_COLOR"))))
 
+(def ^:private RED_START (str \ "[1;31m"))
+(def ^:private PURPLE_START (str \ "[0;35m"))
+(def ^:private GREEN_START (str \ "[0;32m"))
+(def ^:private COLOR_END (str \ "[0m"))
+
+(defn- highlight-appender
+  "Returns a function that appends the [start, end) range of the string to
+  the StringBuilder wrapped as a highlight."
+  [options]
+  (let [pre-tags (:pre-tags options)
+        post-tags (:post-tags options)]
+    (if (and (string? pre-tags) (string? post-tags))
+      (fn [^StringBuilder sb ^String s ^long start ^long end]
+        (-> sb (.append ^String pre-tags) (.append s (int start) (int end)) (.append ^String post-tags)))
+      (if (no-color?)
+        (fn [^StringBuilder sb ^String s ^long start ^long end]
+          (.append sb s (int start) (int end)))
+        (fn [^StringBuilder sb ^String s ^long start ^long end]
+          (-> sb (.append ^String RED_START) (.append s (int start) (int end)) (.append ^String COLOR_END)))))))
+
+(def ^:private long-array-class (class (long-array 0)))
+
+(defn- highlight-offsets
+  "Highlights as [begin end begin end ...], matching produces this form
+  when the highlight details are not needed."
+  ^longs [highlights]
+  (if (instance? long-array-class highlights)
+    highlights
+    (let [offsets (long-array (* 2 (count highlights)))]
+      (reduce (fn [^long i highlight]
+                (aset offsets i (long (:begin-offset highlight)))
+                (aset offsets (inc i) (long (:end-offset highlight)))
+                (+ i 2))
+              0 highlights)
+      offsets)))
+
+(defn- by-begin-offset
+  "Sorted highlights as begin offset in the high and the highlight index in the low 32 bits,
+  i.e. a stable sort by the begin offset."
+  ^longs [^longs offsets]
+  (let [n (quot (alength offsets) 2)
+        sorted (long-array n)]
+    (dotimes [i n]
+      (aset sorted i (bit-or (bit-shift-left (aget offsets (* 2 i)) 32) i)))
+    (Arrays/sort sorted)
+    sorted))
+
+(defn- append-highlighted-line!
+  "Appends the line with highlights to the StringBuilder.
+  Overlapping highlights are combined under one highlight."
+  [^StringBuilder sb ^String line highlights append-highlight]
+  (let [offsets (highlight-offsets highlights)
+        sorted (by-begin-offset offsets)
+        n (alength sorted)]
+    (loop [i 0
+           last-position 0]
+      (let [k (aget sorted i)
+            begin (bit-shift-right k 32)
+            end (aget offsets (inc (* 2 (bit-and k 0xFFFFFFFF))))]
+        (.append sb line (int last-position) (int (max last-position begin)))
+        (if (< begin last-position)
+          ; adjusting highlight text for overlap
+          (append-highlight sb line (min end last-position) end)
+          (append-highlight sb line begin end))
+        (if (= (inc i) n)
+          (.append sb line (int end) (.length line))
+          (let [next-begin (bit-shift-right (aget sorted (inc i)) 32)
+                next-position (max next-begin end)]
+            (.append sb line (int end) (int next-position))
+            (recur (inc i) next-position)))))
+    sb))
+
 (defn highlight-line
   "TODO: overlapping phrase highlights are combined under one color, maybe solve it?"
   [line-str highlights options]
   (if (:with-score options)
     line-str
     (when (seq highlights)
-      (let [highlights (sort-by :begin-offset highlights)
-            highlight-fn (if (and (string? (:pre-tags options)) (string? (:post-tags options)))
-                           #(str (:pre-tags options) % (:post-tags options))
-                           (if (no-color?)
-                             str
-                             ansi/red-text))]
-        (loop [[[ann next-ann] & ann-pairs] (partition 2 1 nil highlights)
-               acc ""
-               last-position 0]
-          (let [prefix (subs line-str last-position (max last-position (:begin-offset ann)))
-                highlight (let [text-to-highlight (subs line-str (:begin-offset ann) (:end-offset ann))]
-                            (if (< (:begin-offset ann) last-position)
-                              ; adjusting highlight text for overlap
-                              (highlight-fn (subs text-to-highlight (min (.length text-to-highlight)
-                                                                         (- last-position (:begin-offset ann)))))
-                              (highlight-fn text-to-highlight)))
-                suffix (if (nil? next-ann)
-                         (subs line-str (:end-offset ann))
-                         (subs line-str (:end-offset ann) (max (:begin-offset next-ann)
-                                                               (:end-offset ann))))]
-            (if (nil? next-ann)
-              (str acc prefix highlight suffix)
-              (recur ann-pairs
-                     (str acc prefix highlight suffix)
-                     (long (max (:begin-offset next-ann)
-                                (:end-offset ann)))))))))))
+      (str (append-highlighted-line! (StringBuilder. (+ 32 (count line-str)))
+                                     line-str highlights (highlight-appender options))))))
 
 (defn file-string [file line-number options]
   (if (and (:hyperlink options) file)
-    (ansi/link file (str (.toURI (io/file file)) "#" line-number))
+    (ansi/link file (str (.toURI (io/file ^String file)) "#" line-number))
     file))
 
-(defn colored-non-template-string-output [highlights details options]
-  (if (:score details)
-    (format "%s:%s:%s:%s"
-            (ansi/purple-text (or (file-string (:file details) (:line-number details) options) "*STDIN*"))
-            (ansi/green-text (:line-number details))
-            (ansi/purple-text (:score details))
-            (highlight-line (:line details) highlights options))
-    (format "%s:%s:%s"
-            (ansi/purple-text (or (file-string (:file details) (:line-number details) options) "*STDIN*"))
-            (ansi/green-text (:line-number details))
-            (highlight-line (:line details) highlights options))))
-
-
-(defn colorless-non-template-string-output [highlights details options]
-  (if (:score details)
-    (format "%s:%s:%s:%s"
-            (or (file-string (:file details) (:line-number details) options) "*STDIN*")
-            (:line-number details)
-            (:score details)
-            (highlight-line (:line details) highlights options))
-    (format "%s:%s:%s"
-            (or (file-string (:file details) (:line-number details) options) "*STDIN*")
-            (:line-number details)
-            (highlight-line (:line details) highlights options))))
+(def ^:private MAX_RETAINED_CAPACITY (* 64 1024))
 
-(defn string-output [highlights details options]
+(def ^:private ^ThreadLocal string-builder
+  (ThreadLocal/withInitial (reify Supplier (get [_] (StringBuilder. 1024)))))
+
+(defn- reusable-string-builder ^StringBuilder []
+  (let [^StringBuilder sb (.get string-builder)]
+    (if (< MAX_RETAINED_CAPACITY (.capacity sb))
+      (let [sb (StringBuilder. 1024)]
+        (.set string-builder sb)
+        sb)
+      (doto sb (.setLength 0)))))
+
+(defn- colored ^StringBuilder [^StringBuilder sb ^String color-start value]
+  (-> sb (.append color-start) (.append (str value)) (.append ^String COLOR_END)))
+
+(defn- non-template-string-output-fn
+  "The same as `(format \"%s:%s:%s\" file line-number highlighted-line)`
+  with the score before the highlighted line when present."
+  [options]
+  (let [append-highlight (highlight-appender options)
+        with-score? (:with-score options)
+        color? (not (no-color?))]
+    (fn [highlights details]
+      (let [sb (reusable-string-builder)
+            file (or (file-string (:file details) (:line-number details) options) "*STDIN*")
+            ^String line (:line details)]
+        (if color?
+          (-> sb
+              (colored PURPLE_START file) (.append ":")
+              (colored GREEN_START (:line-number details)) (.append ":"))
+          (-> sb
+              (.append (str file)) (.append ":")
+              (.append (str (:line-number details))) (.append ":")))
+        (when-let [score (:score details)]
+          (if color?
+            (colored sb PURPLE_START score)
+            (.append sb (str score)))
+          (.append sb ":"))
+        (if with-score?
+          (.append sb line)
+          (append-highlighted-line! sb line highlights append-highlight))
+        (.toString sb)))))
+
+(def ^:private placeholders
+  [["{{file}}" :file]
+   ["{{line-number}}" :line-number]
+   ["{{highlighted-line}}" :highlighted-line]
+   ["{{line}}" :line]
+   ["{{score}}" :score]])
+
+(defn- brace-free? [^String s]
+  (and (nil? (str/index-of s \{)) (nil? (str/index-of s \}))))
+
+(defn compile-template
+  "Splits the template into a vector of literal strings and placeholder keywords."
+  [^String template]
+  (loop [i 0
+         literal-start 0
+         segments []]
+    (if (< i (.length template))
+      (if-let [[placeholder k] (when (.startsWith template "{{" i)
+                                 (first (filter (fn [[placeholder]] (.startsWith template ^String placeholder i))
+                                                placeholders)))]
+        (let [literal (subs template literal-start i)
+              next-i (+ i (count placeholder))]
+          (recur next-i next-i (cond-> segments (seq literal) (conj literal) true (conj k))))
+        (recur (inc i) literal-start segments))
+      (let [literal (subs template literal-start)]
+        (cond-> segments (seq literal) (conj literal))))))
+
+(defn- replace-placeholders
+  "Placeholders are replaced one after another, a value can introduce a placeholder
+  that is replaced by a later step."
+  [^String template values]
+  (-> template
+      (str/replace "{{file}}" (:file values))
+      (str/replace "{{line-number}}" (:line-number values))
+      (str/replace "{{highlighted-line}}" (:highlighted-line values))
+      (str/replace "{{line}}" (:line values))
+      (str/replace "{{score}}" (:score values))))
+
+(defn- single-pass-safe?
+  "A value can't form a placeholder together with the template text or other values
+  when it has no `{{` or `}}` and doesn't start or end with a brace."
+  [^String value]
+  (or (= 0 (.length value))
+      (not (or (str/includes? value "{{")
+               (str/includes? value "}}")
+               (contains? #{\{ \}} (.charAt value 0))
+               (contains? #{\{ \}} (.charAt value (dec (.length value))))))))
+
+(defn- template-string-output-fn
+  "Template is parsed once. The output is rendered in a single pass unless the values
+  might be affected by the sequential placeholder replacement."
+  [^String template options]
+  (let [segments (compile-template template)
+        single-pass-template? (and (every? (fn [segment] (or (keyword? segment) (brace-free? segment))) segments)
+                                   (every? (fn [tags] (or (not (string? tags)) (brace-free? tags)))
+                                           [(:pre-tags options) (:post-tags options)]))
+        used (set (filter keyword? segments))
+        append-highlight (highlight-appender options)
+        with-score? (:with-score options)
+        highlighted-line (fn [^String line highlights]
+                           (if with-score?
+                             line
+                             (str (append-highlighted-line! (StringBuilder. (+ 32 (.length line)))
+                                                            line highlights append-highlight))))]
+    (fn [highlights details]
+      (let [line (:line details)
+            values {:file             (if (used :file)
+                                        (or (file-string (:file details) (:line-number details) options) "")
+                                        "")
+                    :line-number      (str (:line-number details))
+                    :highlighted-line (if (used :highlighted-line)
+                                        (highlighted-line line highlights)
+                                        "")
+                    :line             line
+                    :score            (str (:score details))}]
+        (if (and single-pass-template? (every? single-pass-safe? (vals values)))
+          (let [sb (reusable-string-builder)]
+            (doseq [segment segments]
+              (if (keyword? segment)
+                (.append sb ^String (get values segment))
+                (.append sb ^String segment)))
+            (.toString sb))
+          ; the file path can introduce a placeholder that is not in the template
+          (replace-placeholders template (if (used :highlighted-line)
+                                           values
+                                           (assoc values :highlighted-line (highlighted-line line highlights)))))))))
+
+(defn string-output-fn
+  "Returns a function of highlights and details that produces the output string.
+  The template is parsed once."
+  [options]
   (if-let [template (:template options)]
     (if (str/blank? template)
-      ""
-      (-> template
-          (str/replace "{{file}}" (or (file-string (:file details) (:line-number details) options) ""))
-          (str/replace "{{line-number}}" (str (:line-number details)))
-          (str/replace "{{highlighted-line}}" (highlight-line (:line details) highlights options))
-          (str/replace "{{line}}" (:line details))
-          (str/replace "{{score}}" (str (:score details)))))
-    (if (no-color?)
-      (colorless-non-template-string-output highlights details options)
-      (colored-non-template-string-output highlights details options))))
+      (constantly "")
+      (template-string-output-fn template options))
+    (non-template-string-output-fn options)))
+
+(defn string-output [highlights details options]
+  ((string-output-fn options) highlights details))
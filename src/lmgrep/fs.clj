@@ -1,22 +1,142 @@
 (ns lmgrep.fs
   (:require [clojure.java.io :as io]
-            [clojure.java.shell :as sh]
             [clojure.string :as str]
             [babashka.fs :as bfs]
             [lmgrep.print :as print])
-  (:import (java.nio.file FileSystems Path Files LinkOption)
-           (java.io File IOException)))
+  (:import (java.nio.file FileSystems Path Files LinkOption OpenOption)
+           (java.io File IOException)
+           (java.util.concurrent BlockingQueue ConcurrentHashMap ForkJoinPool ForkJoinPool$ManagedBlocker
+                                 ForkJoinTask LinkedBlockingQueue RecursiveTask)))
 
 (set! *warn-on-reflection* true)
 
-(def file-options (case (System/getProperty "os.name")
-                    "Linux" "-ib"
-                    "Mac OS X" "-I"
-                    nil))
+(def ^:const BINARY_SAMPLE_SIZE 8192)
 
-(defn binary-file? [^String file-path]
-  (.contains ^String (:out (sh/sh "file" file-options file-path))
-             "charset=binary"))
+(defn- signature [& bs]
+  (byte-array (map unchecked-byte bs)))
+
+(def magic-numbers
+  "Signatures of common binary file formats."
+  [(signature 0x89 0x50 0x4E 0x47)                          ; PNG
+   (signature 0xFF 0xD8 0xFF)                               ; JPEG
+   (signature 0x47 0x49 0x46 0x38)                          ; GIF
+   (signature 0x25 0x50 0x44 0x46)                          ; PDF
+   (signature 0x50 0x4B 0x03 0x04)                          ; ZIP, JAR, DOCX
+   (signature 0x1F 0x8B)                                    ; GZIP
+   (signature 0x42 0x5A 0x68)                               ; BZIP2
+   (signature 0xFD 0x37 0x7A 0x58 0x5A 0x00)                ; XZ
+   (signature 0x28 0xB5 0x2F 0xFD)                          ; ZSTD
+   (signature 0x37 0x7A 0xBC 0xAF 0x27 0x1C)                ; 7z
+   (signature 0x7F 0x45 0x4C 0x46)                          ; ELF
+   (signature 0xCA 0xFE 0xBA 0xBE)                          ; Java class, Mach-O fat binary
+   (signature 0xCF 0xFA 0xED 0xFE)                          ; Mach-O 64 bit
+   (signature 0xCE 0xFA 0xED 0xFE)                          ; Mach-O 32 bit
+   (signature 0x4F 0x67 0x67 0x53)                          ; OGG
+   (signature 0x49 0x44 0x33)                               ; MP3
+   (signature 0x52 0x49 0x46 0x46)])                        ; RIFF: WAV, AVI, WEBP
+
+(defn- starts-with? [^bytes sample ^long len ^bytes magic]
+  (and (<= (alength magic) len)
+       (loop [i 0]
+         (cond
+           (= i (alength magic)) true
+           (= (aget sample i) (aget magic i)) (recur (inc i))
+           :else false))))
+
+(defn- utf8-continuation-count
+  "Number of continuation bytes after the UTF-8 lead byte, -1 for invalid lead bytes."
+  ^long [^long b]
+  (cond
+    (<= 0xC2 b 0xDF) 1
+    (<= 0xE0 b 0xEF) 2
+    (<= 0xF0 b 0xF4) 3
+    :else -1))
+
+(defn- continuation-bytes? [^bytes sample ^long from ^long to]
+  (loop [i from]
+    (cond
+      (= i to) true
+      (= 0x80 (bit-and 0xC0 (aget sample i))) (recur (inc i))
+      :else false)))
+
+(defn- utf-16-bom? [^bytes sample ^long len]
+  (and (<= 2 len)
+       (let [b0 (bit-and 0xFF (aget sample 0))
+             b1 (bit-and 0xFF (aget sample 1))]
+         (or (and (= 0xFE b0) (= 0xFF b1))
+             (and (= 0xFF b0) (= 0xFE b1))))))
+
+(defn- nul-counts
+  "Numbers of NUL bytes at the even and at the odd positions of the sample."
+  [^bytes sample ^long len]
+  (loop [i 0
+         even 0
+         odd 0]
+    (cond
+      (= i len) [even odd]
+      (not (zero? (aget sample i))) (recur (inc i) even odd)
+      (even? i) (recur (inc i) (inc even) odd)
+      :else (recur (inc i) even (inc odd)))))
+
+(defn binary-sample?
+  "Sample is binary when it starts with a magic number of a binary file format,
+  contains NUL bytes that are not evenly spaced as in UTF-16 text, or more than 10%
+  of its bytes are either invalid UTF-8 or control characters that are not expected in text.
+  A UTF-16 BOM means text. Invalid UTF-8 bytes that are Latin-1 letters or symbols
+  (0xA0-0xFF) are not suspicious, so Latin-1 text is text too."
+  [^bytes sample]
+  (let [len (alength sample)
+        [even-nuls odd-nuls] (nul-counts sample len)
+        nuls (+ (long even-nuls) (long odd-nuls))]
+    (cond
+      (some (fn [magic] (starts-with? sample len magic)) magic-numbers) true
+      (utf-16-bom? sample len) false
+      ; UTF-16 text without a BOM has NULs at every other byte, e.g. in the ASCII range
+      (pos? nuls) (not (and (or (zero? (long even-nuls)) (zero? (long odd-nuls)))
+                            (<= (max 2 (quot len 16)) nuls)))
+      :else
+      (loop [i 0
+             suspicious 0]
+        (if (< i len)
+          (let [b (bit-and 0xFF (aget sample i))]
+            (if (< b 0x80)
+              (recur (inc i) (case b
+                               (7 8 9 10 11 12 13 27) suspicious
+                               (if (< b 32) (inc suspicious) suspicious)))
+              (let [n (utf8-continuation-count b)
+                    end (+ i 1 n)]
+                (cond
+                  (neg? n) (recur (inc i) (if (< b 0xA0) (inc suspicious) suspicious))
+                  ; multibyte char is cut at the end of the sample
+                  (< len end) (recur len suspicious)
+                  (continuation-bytes? sample (inc i) end) (recur end suspicious)
+                  ; a lead byte without continuation bytes is a Latin-1 letter
+                  :else (recur (inc i) suspicious)))))
+          (< len (* 10 suspicious)))))))
+
+(def ^:private MAX_CACHED_VERDICTS 100000)
+
+(def ^:private ^ConcurrentHashMap binary-verdicts (ConcurrentHashMap.))
+
+(defn binary-file?
+  "Reads only the first BINARY_SAMPLE_SIZE bytes of the file.
+  The verdict is cached per file path and modification time.
+  Files that can't be read are not binary, reading them fails later."
+  [^String file-path]
+  (try
+    (let [path (Path/of file-path (make-array String 0))
+          modified (.toMillis (Files/getLastModifiedTime path (make-array LinkOption 0)))
+          [cached-modified cached-verdict] (.get binary-verdicts file-path)]
+      (if (= modified cached-modified)
+        cached-verdict
+        (let [verdict (with-open [in (Files/newInputStream path (make-array OpenOption 0))]
+                        (binary-sample? (.readNBytes in BINARY_SAMPLE_SIZE)))]
+          (when (< MAX_CACHED_VERDICTS (.size binary-verdicts))
+            (.clear binary-verdicts))
+          (.put binary-verdicts file-path [modified verdict])
+          verdict)))
+    (catch IOException _
+      false)))
 
 (defn filter-files [files]
   (filterv (fn [^String file-path] (.isFile ^File (io/file file-path))) files))
@@ -35,9 +155,99 @@
       (str/lower-case)
       (str/includes? "win")))
 
-(defn fs-glob
-  "Given a file and glob pattern, returns matches as vector of
-  files. Patterns containing ** or / will cause a recursive walk over
+(def ^:private END (Object.))
+
+(defn- queue-seq
+  "Lazy sequence of items taken from the queue until the END marker.
+  A Throwable taken from the queue is rethrown."
+  [^BlockingQueue queue]
+  (lazy-seq
+    (let [item (.take queue)]
+      (cond
+        (identical? END item) nil
+        (instance? Throwable item) (throw item)
+        :else (cons item (queue-seq queue))))))
+
+(defn- put!
+  "Puts the item into the queue. A ForkJoinPool worker that waits for room in the queue
+  is blocked as a managed blocker, so the pool can run the other tasks of the walk meanwhile."
+  [^BlockingQueue queue item]
+  (ForkJoinPool/managedBlock
+    (reify ForkJoinPool$ManagedBlocker
+      (block [_]
+        (.put queue item)
+        true)
+      (isReleasable [_]
+        (.offer queue item)))))
+
+(defn- list-dir
+  "Sorted entries of a directory so that the walk order is deterministic."
+  [^Path dir handle-error]
+  (try
+    (with-open [stream (Files/newDirectoryStream dir)]
+      (sort (vec stream)))
+    (catch IOException exception
+      (if handle-error
+        (do
+          (when (System/getenv "DEBUG_MODE")
+            (print/to-err (format "Visiting %s failed: %s" dir (type exception))))
+          [])
+        (throw exception)))))
+
+(defn- real-path
+  "Real path of the directory, nil when it can't be resolved and errors are handled."
+  [^Path dir handle-error]
+  (try
+    (.toRealPath dir (make-array LinkOption 0))
+    (catch IOException exception
+      (if handle-error
+        (do
+          (when (System/getenv "DEBUG_MODE")
+            (print/to-err (format "Visiting %s failed: %s" dir (type exception))))
+          nil)
+        (throw exception)))))
+
+(defn- dir-walker
+  "Returns a function that given a directory, its depth and the real paths of the directories
+  that lead to it creates a RecursiveTask that lists the directory and forks a subtask for
+  every subdirectory that descend returns the real paths of the directories for.
+  When ordered? the task returns entries in the listing order where subdirectories
+  are represented by their tasks. Otherwise, paths are put to the queue as soon as
+  they are found."
+  [match descend handle-error ordered? ^BlockingQueue queue]
+  (fn walk [^Path dir ^long depth ancestors]
+    (proxy [RecursiveTask] []
+      (compute []
+        (let [entries (reduce (fn [entries ^Path path]
+                                (let [entries (cond-> entries (match path) (conj path))]
+                                  (if-let [path-ancestors (descend path (inc depth) ancestors)]
+                                    (conj entries (.fork ^ForkJoinTask (walk path (inc depth) path-ancestors)))
+                                    entries)))
+                              [] (list-dir dir handle-error))]
+          (if ordered?
+            entries
+            (do
+              (doseq [entry entries]
+                (when-not (instance? ForkJoinTask entry)
+                  (put! queue entry)))
+              (doseq [entry entries]
+                (when (instance? ForkJoinTask entry)
+                  (.join ^ForkJoinTask entry)))
+              nil)))))))
+
+(defn- put-in-order
+  "Depth first traversal of the task results, waits for subdirectory tasks as needed."
+  [entries ^BlockingQueue queue]
+  (doseq [entry entries]
+    (if (instance? ForkJoinTask entry)
+      (put-in-order (.join ^ForkJoinTask entry) queue)
+      (put! queue entry))))
+
+(defn fs-glob-seq
+  "Given a file and glob pattern, returns a lazy sequence of matched paths.
+  Directories are walked in parallel on a ForkJoinPool and matched paths are
+  put into a bounded queue from which the sequence is realized while the walk
+  is still running. Patterns containing ** or / will cause a recursive walk over
   path. Glob interpretation is done using the rules described in
   https://docs.oracle.com/javase/7/docs/api/java/nio/file/FileSystem.html#getPathMatcher(java.lang.String).
 
@@ -50,27 +260,33 @@
   - :handle-error: just skip the problematic (e.g. no permission) files.
   - :only-files: remove directories from the result.
   - :skip-binary-files: skip files that are binary.
-  - :excludes: GLOB that removes files."
-  ([root pattern] (fs-glob root pattern nil))
+  - :excludes: GLOB that removes files.
+  - :preserve-order: paths are returned in the depth first order of sorted directory entries,
+  otherwise in the order they are found. Default: true.
+  - :queue-size: how many found paths can wait to be consumed.
+  - :concurrency: parallelism of the walk."
+  ([root pattern] (fs-glob-seq root pattern nil))
   ([root pattern {:keys [hidden follow-links max-depth
                          handle-error only-files skip-binary-files
-                         excludes]}]
-   (let [base-path (-> root bfs/absolutize bfs/normalize)
+                         excludes preserve-order queue-size concurrency]
+                  :or   {max-depth      Integer/MAX_VALUE
+                         preserve-order true
+                         queue-size     1024}}]
+   (let [^Path root-path (-> root bfs/absolutize bfs/normalize)
          base-path (if windows?
-                     (str/replace base-path bfs/file-separator (str "\\" bfs/file-separator))
-                     base-path)
+                     (str/replace (str root-path) bfs/file-separator (str "\\" bfs/file-separator))
+                     (str root-path))
          skip-hidden? (not hidden)
-         results (atom (transient []))
-         past-root? (volatile! nil)
-         [base-path pattern recursive]
-         (let [recursive (or (str/includes? pattern "**")
-                             (str/includes? pattern bfs/file-separator))
-               pattern (str base-path
-                            ;; we need to escape the file separator on Windows
-                            (when windows? "\\")
-                            bfs/file-separator
-                            pattern)]
-           [base-path pattern recursive])
+         link-options (if follow-links
+                        (make-array LinkOption 0)
+                        (into-array LinkOption [LinkOption/NOFOLLOW_LINKS]))
+         recursive (or (str/includes? pattern "**")
+                       (str/includes? pattern bfs/file-separator))
+         pattern (str base-path
+                      ;; we need to escape the file separator on Windows
+                      (when windows? "\\")
+                      bfs/file-separator
+                      pattern)
          matcher (.getPathMatcher
                    (FileSystems/getDefault)
                    (str "glob:" pattern))
@@ -82,63 +298,80 @@
                                                 (when windows? "\\")
                                                 bfs/file-separator
                                                 excludes))))
+         hidden-skipped? (fn [^Path path] (and skip-hidden? (bfs/hidden? path)))
          match (fn [^Path path]
-                 (if (and (.matches matcher path)
-                          (not (and excludes-matcher (.matches excludes-matcher path))))
-                   (when
-                     (or (Files/isRegularFile path (make-array LinkOption 0))
-                         (and (Files/isDirectory path (make-array LinkOption 0))
-                              (false? only-files)))
-                     (when-not (and skip-binary-files (binary-file? (str path)))
-                       (swap! results conj! path)))
-                   nil))]
-     (bfs/walk-file-tree
-       base-path
-       {:max-depth         max-depth
-        :follow-links      follow-links
-        :pre-visit-dir     (fn [dir _attrs]
-                             (if (and @past-root?
-                                      (or (not recursive)
-                                          (and skip-hidden?
-                                               (bfs/hidden? dir))))
-                               :skip-subtree
-                               (do
-                                 (if @past-root? (match dir)
-                                                 (vreset! past-root? true))
-                                 :continue)))
-        :visit-file        (fn [path _attrs]
-                             (when-not (and skip-hidden?
-                                            (bfs/hidden? path))
-                               (match path))
-                             :continue)
-        :visit-file-failed (if handle-error
-                             (fn [path ^IOException exception]
-                               (when (System/getenv "DEBUG_MODE")
-                                 (print/to-err (format "Visiting %s failed: %s" path (type exception))))
-                               :skip-subtree)
-                             nil)})
-     (let [results (persistent! @results)
-           absolute-cwd (bfs/absolutize "")]
-       (if (bfs/relative? root)
-         (mapv #(bfs/relativize absolute-cwd %)
-               results)
-         results)))))
+                 (and (.matches matcher path)
+                      (not (and excludes-matcher (.matches excludes-matcher path)))
+                      (not (hidden-skipped? path))
+                      (or (Files/isRegularFile path (make-array LinkOption 0))
+                          (and recursive
+                               (Files/isDirectory path (make-array LinkOption 0))
+                               (false? only-files)))
+                      (not (and skip-binary-files (binary-file? (str path))))))
+         descend (fn [^Path path ^long depth ancestors]
+                   (when (and recursive
+                              (< depth max-depth)
+                              (Files/isDirectory path link-options)
+                              (not (hidden-skipped? path)))
+                     (if follow-links
+                       ; symlinks can form cycles, a directory is not walked again inside of itself
+                       (when-let [real (real-path path handle-error)]
+                         (when-not (contains? ancestors real)
+                           (conj ancestors real)))
+                       ancestors)))
+         queue (LinkedBlockingQueue. (int queue-size))
+         walk (dir-walker match descend handle-error preserve-order queue)
+         root-ancestors (if-let [real (and follow-links (real-path root-path handle-error))] #{real} #{})
+         pool (ForkJoinPool. (int (or concurrency (.availableProcessors (Runtime/getRuntime)))))
+         absolute-cwd (bfs/absolutize "")
+         relativize (if (bfs/relative? root)
+                      #(bfs/relativize absolute-cwd %)
+                      identity)]
+     (doto (Thread. ^Runnable (fn []
+                                (try
+                                  (let [^ForkJoinTask root-task (.submit pool ^ForkJoinTask (walk root-path 0 root-ancestors))]
+                                    (if preserve-order
+                                      (put-in-order (.join root-task) queue)
+                                      (.join root-task)))
+                                  (put! queue END)
+                                  (catch Throwable t
+                                    (put! queue t))
+                                  (finally
+                                    (.shutdown pool))))
+                    "lmgrep-fs-walker")
+       (.setDaemon true)
+       (.start))
+     (map relativize (queue-seq queue)))))
 
-(defn get-files [^String glob options]
+(defn fs-glob
+  "Given a file and glob pattern, returns matches as vector of files.
+  See fs-glob-seq for options."
+  ([root pattern] (fs-glob root pattern nil))
+  ([root pattern options]
+   (vec (fs-glob-seq root pattern options))))
+
+(defn stream-files
+  "Lazy sequence of file paths that match the GLOB. Files are found
+  in parallel and the sequence is realized while the walk is still running."
+  [^String glob options]
   (when glob
     (let [^String root-folder (infer-root-folder glob)
           glob-pattern (if (= "." root-folder)
                          glob
                          (str/replace glob (re-pattern (format "%s/?" root-folder)) ""))]
-      (mapv str (fs-glob root-folder
-                         glob-pattern
-                         (merge {:hidden            true
-                                 :follow-links      false
-                                 :max-depth         Integer/MAX_VALUE
-                                 :handle-error      true
-                                 :only-files        true
-                                 :skip-binary-files false}
-                                options))))))
+      (map str (fs-glob-seq root-folder
+                            glob-pattern
+                            (merge {:hidden            true
+                                    :follow-links      false
+                                    :max-depth         Integer/MAX_VALUE
+                                    :handle-error      true
+                                    :only-files        true
+                                    :skip-binary-files false}
+                                   options))))))
+
+(defn get-files [^String glob options]
+  (when glob
+    (vec (stream-files glob options))))
 
 (comment
   (lmgrep.fs/get-files "*.md" {})
@@ -161,4 +394,5 @@
   (lmgrep.fs/get-files "**/*.clj" {})
   (time (count (lmgrep.fs/get-files "**.*" {:skip-binary-files true})))
   (time (count (lmgrep.fs/get-files "**.*" {:skip-binary-files false})))
-  (lmgrep.fs/get-files "/var/log/**.log" {}))
+  (lmgrep.fs/get-files "/var/log/**.log" {})
+  (take 10 (lmgrep.fs/stream-files "/var/log/**.log" {:preserve-order false})))
@@ -4,6 +4,8 @@
             [lmgrep.fs :as fs]
             [lmgrep.lucene :as lucene]
             [lmgrep.analysis :as analysis]
+            [lmgrep.early-termination :as early-termination]
+            [lmgrep.no-split :as no-split]
             [lmgrep.unordered :as unordered])
   (:import (java.io File)))
 
@@ -31,10 +33,17 @@
 (defn grep [lucene-query-strings files-pattern files options]
   (let [questionnaire (combine-questionnaire lucene-query-strings options)
         custom-analyzers (analysis/prepare-analyzers (get options :analyzers-file) options)
-        file-paths-to-analyze (into (fs/get-files files-pattern options)
-                                    (fs/filter-files files))]
+        ; files are matched while the directory walk is still running
+        file-paths-to-analyze (concat (fs/stream-files files-pattern options)
+                                      (fs/filter-files files))]
     (with-open [highlighter (lucene/highlighter-obj questionnaire options custom-analyzers)]
-      (unordered/grep file-paths-to-analyze highlighter options))))
+      (cond
+        (early-termination/enabled? options)
+        (early-termination/grep file-paths-to-analyze highlighter options)
+        (no-split/enabled? options)
+        (no-split/grep file-paths-to-analyze highlighter options)
+        :else
+        (unordered/grep file-paths-to-analyze highlighter options)))))
 
 (comment
   (lmgrep.grep/grep ["opt"] "**.md" nil {:format :edn})
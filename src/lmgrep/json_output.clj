@@ -0,0 +1,73 @@
+(ns lmgrep.json-output
+  "JSON output lines serialized straight into a reusable per thread byte buffer with a streaming
+  Jackson generator, without a String per line. The bytes are the same as of
+  `jsonista.core/write-value-as-string` encoded as UTF-8 and followed by the line separator,
+  so they are written to STDOUT as is when STDOUT is UTF-8."
+  (:require [jsonista.core :as json])
+  (:import (com.fasterxml.jackson.core JsonGenerator)
+           (com.fasterxml.jackson.core.util ByteArrayBuilder)
+           (com.fasterxml.jackson.databind ObjectMapper)
+           (java.io BufferedOutputStream FileDescriptor FileOutputStream OutputStream OutputStreamWriter Writer)
+           (java.nio.charset Charset StandardCharsets)
+           (java.util.function Supplier)))
+
+(set! *warn-on-reflection* true)
+
+(def ^"[B" LINE_SEPARATOR (.getBytes (System/lineSeparator) StandardCharsets/UTF_8))
+
+(defn- generator-state []
+  (let [buffer (ByteArrayBuilder. 8192)
+        generator (.createGenerator ^ObjectMapper json/default-object-mapper ^OutputStream buffer)]
+    ; root values are separated with line separators by `end-line!`
+    (.setRootValueSeparator generator nil)
+    [buffer generator]))
+
+(def ^:private ^ThreadLocal state
+  (ThreadLocal/withInitial (reify Supplier (get [_] (generator-state)))))
+
+(defn end-line!
+  "Ends the JSON value that was written with the generator of `encode` with the line separator."
+  [^JsonGenerator generator ^ByteArrayBuilder buffer]
+  (.flush generator)
+  (.write buffer LINE_SEPARATOR))
+
+(defn encode
+  "Calls write-fn with the generator and the buffer of the thread, returns the written bytes.
+  The generator and the buffer are reused, the buffer keeps only its last block between calls."
+  ^bytes [write-fn]
+  (let [[^ByteArrayBuilder buffer ^JsonGenerator generator] (.get state)]
+    (try
+      (.reset buffer)
+      (write-fn generator buffer)
+      (.flush generator)
+      (.toByteArray buffer)
+      (catch Exception e
+        ; the generator might be in the middle of a value
+        (.remove state)
+        (throw e)))))
+
+(defn encode-line
+  "UTF-8 bytes of the value as JSON followed by the line separator."
+  ^bytes [value]
+  (encode (fn [^JsonGenerator generator buffer]
+            (.writeObject generator value)
+            (end-line! generator buffer))))
+
+(defn utf-8-stdout?
+  "True when the writer is the STDOUT of the process that encodes text as UTF-8,
+  e.g. not when the output is captured with `with-out-str`."
+  [^Writer writer]
+  (and (identical? writer (.getRawRoot #'*out*))
+       (instance? OutputStreamWriter writer)
+       (= StandardCharsets/UTF_8 (Charset/forName (.getEncoding ^OutputStreamWriter writer)))))
+
+(defn stdout-stream
+  "STDOUT of the process for the output bytes. Whatever was written to *out* is flushed first.
+  Without buffering every write goes to STDOUT immediately, e.g. when reading STDIN."
+  ^OutputStream [buffer-size buffered?]
+  (.flush ^Writer *out*)
+  (.flush System/out)
+  (let [out (FileOutputStream. FileDescriptor/out)]
+    (if buffered?
+      (BufferedOutputStream. out (int buffer-size))
+      out)))
@@ -0,0 +1,113 @@
+(ns lmgrep.line-cache
+  "Highlights of repeated lines, e.g. the same health check or stack trace line of a log that
+  appears millions of times. Entries are keyed by the line (its hash, then equality), so a
+  repeated line skips text analysis and matching, the output is still formatted per line.
+  The cache keeps two generations of entries within a byte budget: new entries go into the
+  young generation, when its estimated size reaches half of the budget it becomes the old
+  generation and the previous old generation is dropped. A hit in the old generation moves
+  the entry into the young one, so lines that keep repeating stay cached."
+  (:import (java.util.concurrent ConcurrentHashMap)
+           (java.util.concurrent.atomic AtomicLong AtomicReference LongAdder)))
+
+(set! *warn-on-reflection* true)
+
+; rough JVM sizes of a map node, a String and a highlight map
+(def ^:private ENTRY_OVERHEAD_BYTES 64)
+(def ^:private HIGHLIGHT_BYTES 128)
+
+(def ^:private long-array-class (class (long-array 0)))
+
+(defn- generation []
+  {:entries (ConcurrentHashMap.)
+   :bytes   (AtomicLong.)})
+
+(defn create
+  "Cache of at most about max-bytes of lines and their highlights."
+  [max-bytes]
+  {:max-bytes   (long max-bytes)
+   ; [young old]
+   :generations (AtomicReference. [(generation) (generation)])
+   :hits        (LongAdder.)
+   :misses      (LongAdder.)})
+
+(defn from-options
+  "Cache of --line-cache-bytes, nil when the line cache is not enabled."
+  [options]
+  (when-let [max-bytes (get options :line-cache-bytes)]
+    (when (pos? (long max-bytes))
+      (create max-bytes))))
+
+(defn with-cache
+  "Options that carry the cache to the matcher functions."
+  [options cache]
+  (cond-> options cache (assoc ::cache cache)))
+
+(defn cache-of [options]
+  (get options ::cache))
+
+(defn- entry-bytes
+  "Estimated size of the line and its highlights, either a vector or an array of offsets."
+  ^long [^String line highlights]
+  (+ (long ENTRY_OVERHEAD_BYTES)
+     (* 2 (.length line))
+     (if (instance? long-array-class highlights)
+       (* 8 (alength ^longs highlights))
+       (* (long HIGHLIGHT_BYTES) (count highlights)))))
+
+(defn- put! [{:keys [max-bytes ^AtomicReference generations]} ^String line highlights]
+  (let [[young :as current] (.get generations)
+        entry-bytes (entry-bytes line highlights)
+        half (quot (long max-bytes) 2)]
+    ; a line that takes a big part of the budget would push out many others
+    (when (and (some? highlights) (< (* 8 entry-bytes) half))
+      (when (nil? (.putIfAbsent ^ConcurrentHashMap (:entries young) line highlights))
+        (when (<= half (.addAndGet ^AtomicLong (:bytes young) entry-bytes))
+          (.compareAndSet generations current [(generation) young]))))))
+
+(defn- cached
+  "Highlights of the line when it is in the cache, otherwise nil."
+  [{:keys [^AtomicReference generations ^LongAdder hits] :as cache} ^String line]
+  (let [[young old] (.get generations)]
+    (if-let [highlights (.get ^ConcurrentHashMap (:entries young) line)]
+      (do (.increment hits) highlights)
+      (when-let [highlights (.get ^ConcurrentHashMap (:entries old) line)]
+        (.increment hits)
+        (put! cache line highlights)
+        highlights))))
+
+(defn lookup
+  "Highlights of the line from the cache, or computed with (match-fn) and cached."
+  [{:keys [^LongAdder misses] :as cache} ^String line match-fn]
+  (or (cached cache line)
+      (let [highlights (match-fn)]
+        (.increment misses)
+        (put! cache line highlights)
+        highlights)))
+
+(defn lookup-batch
+  "Highlights of the lines, the lines that are not in the cache are matched with one
+  (batch-match-fn lines) call and cached."
+  [{:keys [^LongAdder misses] :as cache} lines batch-match-fn]
+  (let [lines (vec lines)
+        highlights-per-line (mapv (fn [line] (cached cache line)) lines)
+        miss-indexes (filterv (fn [i] (nil? (nth highlights-per-line i))) (range (count lines)))]
+    (if (empty? miss-indexes)
+      highlights-per-line
+      (do
+        (.add misses (count miss-indexes))
+        (reduce (fn [highlights-per-line [i highlights]]
+                  (put! cache (nth lines i) highlights)
+                  (assoc highlights-per-line i highlights))
+                highlights-per-line
+                (map vector miss-indexes (batch-match-fn (mapv lines miss-indexes))))))))
+
+(defn stats [{:keys [max-bytes ^AtomicReference generations ^LongAdder hits ^LongAdder misses]}]
+  (let [generations (.get generations)
+        hits (.sum hits)
+        misses (.sum misses)]
+    {:entries   (reduce + (map (fn [{:keys [^ConcurrentHashMap entries]}] (.size entries)) generations))
+     :bytes     (reduce + (map (fn [{:keys [^AtomicLong bytes]}] (.get bytes)) generations))
+     :max-bytes max-bytes
+     :hits      hits
+     :misses    misses
+     :hit-rate  (if (pos? (+ hits misses)) (double (/ hits (+ hits misses))) 0.0)}))
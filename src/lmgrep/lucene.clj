@@ -2,22 +2,80 @@
   (:require [clojure.string :as s]
             [lmgrep.lucene.matching :as matching]
             [lmgrep.lucene.monitor :as monitor]
-            [lmgrep.lucene.dictionary :as dictionary])
+            [lmgrep.lucene.dictionary :as dictionary]
+            [lmgrep.lucene.profiler :as profiler])
   (:import (java.io Closeable)
+           (java.util.concurrent ConcurrentHashMap ForkJoinPool ForkJoinTask)
            (org.apache.lucene.monitor Monitor)))
 
 (defprotocol IMatcher
-  (match [this text] [this text opts]))
+  (match [this text] [this text opts])
+  (match-batch [this texts opts]))
 
-(deftype LuceneMonitorMatcher [^Monitor monitor field-names]
+(deftype LuceneMonitorMatcher [^Monitor monitor field-names descriptors automaton]
   IMatcher
   (match [_ text]
-    (matching/match-monitor text monitor field-names {}))
+    (matching/match-automaton text automaton monitor field-names descriptors {}))
   (match [_ text opts]
-    (matching/match-monitor text monitor field-names opts))
+    (matching/match-automaton text automaton monitor field-names descriptors opts))
+  (match-batch [_ texts opts]
+    (matching/match-automaton-batch texts automaton monitor field-names descriptors opts))
   Closeable
   (close [_] (.close ^Monitor monitor)))
 
+(def ^:private long-array-class (class (long-array 0)))
+
+(defn- merge-highlights
+  "Highlights of all the shards, offsets only highlights are concatenated into one array."
+  [highlights-per-shard]
+  (if (some (fn [highlights] (instance? long-array-class highlights)) highlights-per-shard)
+    (let [arrays (filter (fn [highlights] (instance? long-array-class highlights)) highlights-per-shard)
+          offsets (long-array (reduce (fn [acc ^longs a] (+ (long acc) (alength a))) 0 arrays))]
+      (reduce (fn [position ^longs a]
+                (System/arraycopy a 0 offsets (int position) (alength a))
+                (+ (long position) (alength a)))
+              0 arrays)
+      offsets)
+    (into [] cat highlights-per-shard)))
+
+(defn- on-shards
+  "Calls f with every shard, the first shard on the calling thread and the rest in the pool.
+  Returns the results in the order of shards."
+  [^ForkJoinPool pool shards f]
+  (let [tasks (mapv (fn [shard] (.submit pool ^Callable (fn [] (f shard)))) (rest shards))
+        first-result (f (first shards))]
+    (into [first-result] (map (fn [^ForkJoinTask task] (.join task))) tasks)))
+
+(deftype ShardedMatcher [shards ^ForkJoinPool pool]
+  IMatcher
+  (match [this text]
+    (match this text {}))
+  (match [_ text opts]
+    (merge-highlights (on-shards pool shards (fn [shard] (match shard text opts)))))
+  (match-batch [_ texts opts]
+    (let [per-shard (on-shards pool shards (fn [shard] (match-batch shard texts opts)))]
+      (apply mapv (fn [& highlights-per-shard] (merge-highlights highlights-per-shard)) per-shard)))
+  Closeable
+  (close [_]
+    (doseq [^Closeable shard shards]
+      (.close shard))))
+
+(defn shard-of
+  "Index of the shard of the query id."
+  ^long [^String query-id shards]
+  (Math/floorMod (.hashCode query-id) (int shards)))
+
+(defn- shard-questionnaire
+  "Splits the questionnaire into shards by the query id, the id is the same as the one
+  given by `lmgrep.lucene.dictionary/normalize`."
+  [questionnaire shards options]
+  (let [groups (group-by (fn [entry]
+                           (shard-of (or (:id entry)
+                                         (dictionary/stable-id (dictionary/handle-query-parser-settings entry options)))
+                                     shards))
+                         questionnaire)]
+    (mapv (fn [i] (get groups i [])) (range shards))))
+
 (defn monitor-default-field-names
   [^Monitor monitor]
   (mapv (fn default-field-name [^String query-id]
@@ -26,24 +84,89 @@
               (get dictionary/DEFAULT_FIELD_NAME_KEY)))
         (.getQueryIds monitor)))
 
+(defn- default-type [{:keys [type-name]}]
+  (if (s/blank? type-name) "QUERY" type-name))
+
+(defn- monitor-matcher
+  ^LuceneMonitorMatcher [questionnaire options custom-analyzers]
+  (let [default-type (default-type options)
+        {:keys [monitor field-names descriptors automaton]} (monitor/setup questionnaire default-type options custom-analyzers)
+        field-names (if (and (:queries-index-dir options) (not (:lazy-queries options)))
+                      ; in case monitor is loaded from disk we need to collect
+                      ; the default field names from the monitor
+                      ; put names into the set to prevent duplicates,
+                      ; the lazy monitor takes them from the stored schema
+                      (set (concat field-names (monitor-default-field-names monitor)))
+                      field-names)]
+    (->LuceneMonitorMatcher monitor field-names descriptors automaton)))
+
 (defn highlighter-obj
-  (^LuceneMonitorMatcher [questionnaire] (highlighter-obj questionnaire {}))
-  (^LuceneMonitorMatcher [questionnaire options] (highlighter-obj questionnaire options {}))
-  (^LuceneMonitorMatcher [questionnaire {:keys [type-name] :as options} custom-analyzers]
-   (let [default-type (if (s/blank? type-name) "QUERY" type-name)
-         {:keys [monitor field-names]} (monitor/setup questionnaire default-type options custom-analyzers)
-         field-names (if (:queries-index-dir options)
-                       ; in case monitor is loaded from disk we need to collect
-                       ; the default field names from the monitor
-                       ; put names into the set to prevent duplicates
-                       (set (concat field-names (monitor-default-field-names monitor)))
-                       field-names)]
-     (->LuceneMonitorMatcher monitor field-names))))
+  "Matcher of the questionnaire. With the :shards option the queries are split
+  into that many Monitors that match every text in parallel on the common ForkJoinPool,
+  which all the sharded matchers share, e.g. the matchers of the streamed mode."
+  ([questionnaire] (highlighter-obj questionnaire {}))
+  ([questionnaire options] (highlighter-obj questionnaire options {}))
+  ([questionnaire options custom-analyzers]
+   (let [shards (get options :shards 1)]
+     (if (< 1 shards)
+       (do
+         (when (:queries-index-dir options)
+           (throw (Exception. "--shards can't be used together with --queries-index-dir")))
+         (->ShardedMatcher (mapv (fn [shard-questionnaire] (monitor-matcher shard-questionnaire options custom-analyzers))
+                                 (shard-questionnaire questionnaire shards options))
+                           (ForkJoinPool/commonPool)))
+       (monitor-matcher questionnaire options custom-analyzers)))))
+
+(defn sync-queries!
+  "Applies the changes of the questionnaire to the queries index of a running matcher:
+  registers the added and updated queries and deletes the queries that are not in the questionnaire.
+  Queries that are analyzed into fields that the Monitor doesn't have need a restart.
+  Returns the report of the changes."
+  [matcher questionnaire options custom-analyzers]
+  (when-not (and (instance? LuceneMonitorMatcher matcher) (:queries-index-dir options))
+    (throw (Exception. "Queries can be synced only with --queries-index-dir")))
+  (when (:lazy-queries options)
+    (throw (Exception. "Queries can't be synced with --lazy-queries, the queries index is read-only")))
+  (let [^LuceneMonitorMatcher matcher matcher
+        ^ConcurrentHashMap descriptors (.-descriptors matcher)
+        query-confs (dictionary/query-confs questionnaire (default-type options) options)
+        new-field-names (remove (set (.-field-names matcher)) (map :field-name query-confs))]
+    (when (seq new-field-names)
+      (throw (Exception. (str "Queries need analysis that the running Monitor doesn't have, restart to sync them: "
+                              (s/join ", " (distinct new-field-names))))))
+    (let [{:keys [report monitor-queries deleted]} (monitor/apply-sync! (.-monitor matcher) query-confs
+                                                                        options custom-analyzers)]
+      (.putAll descriptors (matching/descriptors monitor-queries))
+      (doseq [query-id deleted]
+        (.remove descriptors query-id))
+      report)))
+
+(defn query-count
+  "Number of queries registered in the matcher."
+  [matcher]
+  (if (instance? ShardedMatcher matcher)
+    (reduce + (map query-count (.-shards ^ShardedMatcher matcher)))
+    (.getQueryCount ^Monitor (.-monitor ^LuceneMonitorMatcher matcher))))
+
+(defn profile-report
+  "Per-query profile of the matcher with the queries described by their dictionary entries."
+  [matcher profiler top]
+  (profiler/report profiler
+                   (fn [query-id]
+                     (let [^LuceneMonitorMatcher m (if (instance? ShardedMatcher matcher)
+                                                     (let [shards (.-shards ^ShardedMatcher matcher)]
+                                                       (nth shards (shard-of query-id (count shards))))
+                                                     matcher)]
+                       (matching/query-description (.-monitor m) (.-descriptors m) query-id)))
+                   top))
 
 (comment
   ; Intended usage example
   (with-open [highlighter (highlighter-obj [{:query "text"}] {})]
-    (match highlighter "foo text bar")))
+    (match highlighter "foo text bar"))
+
+  (with-open [highlighter (highlighter-obj [{:query "text"}] {})]
+    (match-batch highlighter ["foo text bar" "no match" "text"] {})))
 
 (defn highlight
   "Convenience function that creates a highlighter, matches the text,
@@ -2,6 +2,7 @@
   (:require [jsonista.core :as json]
             [lucene.custom.query :as q]
             [lmgrep.lucene.analyzer :as analyzer]
+            [lmgrep.concurrent :as c]
             [lmgrep.lucene.field-name :as field-name]
             [lmgrep.print :as print])
   (:import (org.apache.lucene.queryparser.classic ParseException)
@@ -75,26 +76,33 @@
 (defn stable-id [m]
   (str (Math/abs ^int (.hashCode ^PersistentArrayMap m))))
 
-(defn prepare-query-entry
-  [questionnaire-entry default-type global-analysis-conf monitor-query-constructor-fn]
+(defn query-conf
+  "Everything that is needed to construct the MonitorQuery of the entry without parsing the query.
+  The :conf map is what is stored with the query in the queries index."
+  [questionnaire-entry default-type global-analysis-conf]
   (let [id (or (:id questionnaire-entry) (stable-id questionnaire-entry))
         analysis-conf (if (empty? (get questionnaire-entry :analysis))
                         global-analysis-conf
                         (assoc (get questionnaire-entry :analysis)
                           :config-dir (get global-analysis-conf :config-dir)))
         ; parameter for the query parser
-        default-field-name (get-field-name analysis-conf)
-        monitor-query (monitor-query-constructor-fn
-                        {:id                 id
-                         :query              (get questionnaire-entry :query)
-                         :meta               (assoc (get questionnaire-entry :meta) "_type" default-type)
-                         :default-field-name default-field-name
-                         :query-parser-name  (keyword (get questionnaire-entry :query-parser))
-                         :query-parser-conf  (get questionnaire-entry :query-parser-conf)
-                         :analyzer           analysis-conf})]
+        default-field-name (get-field-name analysis-conf)]
+    {:field-name    default-field-name
+     :analysis-conf analysis-conf
+     :conf          {:id                 id
+                     :query              (get questionnaire-entry :query)
+                     :meta               (assoc (get questionnaire-entry :meta) "_type" default-type)
+                     :default-field-name default-field-name
+                     :query-parser-name  (keyword (get questionnaire-entry :query-parser))
+                     :query-parser-conf  (get questionnaire-entry :query-parser-conf)
+                     :analyzer           analysis-conf}}))
+
+(defn prepare-query-entry
+  [questionnaire-entry default-type global-analysis-conf monitor-query-constructor-fn]
+  (let [{:keys [field-name analysis-conf conf]} (query-conf questionnaire-entry default-type global-analysis-conf)]
     (Dict.
-      default-field-name
-      monitor-query
+      field-name
+      (monitor-query-constructor-fn conf)
       analysis-conf)))
 
 (defn handle-query-parser-settings [questionnaire-entry options]
@@ -107,23 +115,42 @@
         :query-parser (get options :query-parser)
         :query-parser-conf (get options :query-parser-conf)))))
 
+(def ^:private NORMALIZATION_CHUNK_SIZE 1024)
+
+(defn global-analysis-conf [options]
+  (assoc (get options :analysis)
+    :config-dir (get options :config-dir)))
+
+(defn query-confs
+  "Query confs (see `query-conf`) of the questionnaire, queries are not parsed."
+  [questionnaire default-type options]
+  (let [global-analysis-conf (global-analysis-conf options)]
+    (mapv (fn [questionnaire-entry]
+            (query-conf (handle-query-parser-settings questionnaire-entry options) default-type global-analysis-conf))
+          questionnaire)))
+
+(defn construct
+  "Constructs Lucene MonitorQuery objects of the query confs, see `query-confs`.
+  Big questionnaires are constructed in parallel, the order of entries is preserved."
+  [query-confs options custom-analyzers]
+  (let [monitor-query-constructor-fn (if (:queries-index-dir options)
+                                       (monitor-query-constructor custom-analyzers)
+                                       (in-memory-query-constructor custom-analyzers))]
+    (c/chunked-pmapv (fn [{:keys [field-name analysis-conf conf]}]
+                       (Dict. field-name (monitor-query-constructor-fn conf) analysis-conf))
+                     query-confs
+                     (get options :concurrency (.availableProcessors (Runtime/getRuntime)))
+                     NORMALIZATION_CHUNK_SIZE)))
+
 (defn normalize
   "With global analysis configuration for each query:
   - add ID if missing;
   - construct field name;
   - construct analyzer;
-  - construct Lucene MonitorQuery object."
+  - construct Lucene MonitorQuery object.
+  Big questionnaires are normalized in parallel, the order of entries is preserved."
   [questionnaire default-type options custom-analyzers]
-  (let [global-analysis-conf (assoc (get options :analysis)
-                               :config-dir (get options :config-dir))
-        monitor-query-constructor-fn (if (:queries-index-dir options)
-                                       (monitor-query-constructor custom-analyzers)
-                                       (in-memory-query-constructor custom-analyzers))]
-    (mapv (fn [questionnaire-entry]
-            (prepare-query-entry (handle-query-parser-settings questionnaire-entry options)
-                                 default-type
-                                 global-analysis-conf
-                                 monitor-query-constructor-fn)) questionnaire)))
+  (construct (query-confs questionnaire default-type options) options custom-analyzers))
 
 (defn get-monitor-queries
   "Returns a vector of MonitorQuery"
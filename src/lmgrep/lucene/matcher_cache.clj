@@ -0,0 +1,112 @@
+(ns lmgrep.lucene.matcher-cache
+  "Bounded LRU cache of ready to use matchers. Matchers are reference counted:
+  an evicted matcher is closed only when no thread is using it."
+  (:require [lmgrep.print :as print])
+  (:import (java.io Closeable)
+           (java.util LinkedHashMap Map$Entry Iterator)
+           (java.util.concurrent TimeUnit)
+           (java.util.concurrent.atomic AtomicBoolean AtomicInteger AtomicLong)))
+
+(set! *warn-on-reflection* true)
+
+(def DEFAULT_MAX_SIZE 1000)
+
+(defn create
+  "Options:
+  - :max-size how many matchers to keep, least recently used are evicted.
+  - :ttl-ms after how many milliseconds since creation a matcher is rebuilt, nil means never."
+  [{:keys [max-size ttl-ms] :or {max-size DEFAULT_MAX_SIZE}}]
+  {:entries   (LinkedHashMap. 16 0.75 true)
+   :max-size  max-size
+   :ttl-ns    (when ttl-ms (.toNanos TimeUnit/MILLISECONDS ttl-ms))
+   :hits      (AtomicLong.)
+   :misses    (AtomicLong.)
+   :evictions (AtomicLong.)})
+
+(defn- close-entry! [{:keys [matcher ^AtomicBoolean closed]}]
+  (when (and (realized? matcher) (.compareAndSet closed false true))
+    (try
+      (.close ^Closeable @matcher)
+      (catch Exception e
+        (when (System/getenv "DEBUG_MODE")
+          (print/throwable e))))))
+
+(defn- evict! [{:keys [^AtomicLong evictions]} {:keys [^AtomicBoolean evicted ^AtomicInteger refs] :as entry}]
+  (.incrementAndGet evictions)
+  (.set evicted true)
+  (when (zero? (.get refs))
+    (close-entry! entry)))
+
+(defn- release! [{:keys [^AtomicBoolean evicted ^AtomicInteger refs] :as entry}]
+  (when (and (zero? (.decrementAndGet refs)) (.get evicted))
+    (close-entry! entry)))
+
+(defn- expired? [{:keys [ttl-ns]} {:keys [created-at]}]
+  (and ttl-ns (< (long ttl-ns) (- (System/nanoTime) (long created-at)))))
+
+(defn- acquire!
+  "Returns an entry for the key with an incremented reference count.
+  A missing entry is created with a delay so that the matcher is built only once."
+  [{:keys [^LinkedHashMap entries max-size ^AtomicLong hits ^AtomicLong misses] :as cache} key build-fn]
+  (locking entries
+    (let [entry (.get entries key)]
+      (if (and entry (not (expired? cache entry)))
+        (do
+          (.incrementAndGet hits)
+          (.incrementAndGet ^AtomicInteger (:refs entry))
+          entry)
+        (let [new-entry {:matcher    (delay (build-fn))
+                         :created-at (System/nanoTime)
+                         :refs       (AtomicInteger. 1)
+                         :evicted    (AtomicBoolean. false)
+                         :closed     (AtomicBoolean. false)}]
+          (.incrementAndGet misses)
+          (when entry
+            (evict! cache entry))
+          (.put entries key new-entry)
+          (let [^Iterator it (.iterator (.entrySet entries))]
+            (while (< max-size (.size entries))
+              (let [eldest (.getValue ^Map$Entry (.next it))]
+                (.remove it)
+                (evict! cache eldest))))
+          new-entry)))))
+
+(defn with-matcher
+  "Calls f with a matcher for the key. The matcher is built with build-fn on a cache miss.
+  Concurrent misses on the same key build the matcher once."
+  [{:keys [^LinkedHashMap entries] :as cache} key build-fn f]
+  (let [entry (acquire! cache key build-fn)]
+    (try
+      (f (try
+           @(:matcher entry)
+           (catch Exception e
+             ; do not cache failures
+             (locking entries
+               (when (identical? entry (.get entries key))
+                 (.remove entries key)))
+             (throw e))))
+      (finally
+        (release! entry)))))
+
+(defn stats [{:keys [^LinkedHashMap entries ^AtomicLong hits ^AtomicLong misses ^AtomicLong evictions]}]
+  (let [hits (.get hits)
+        misses (.get misses)]
+    {:size      (locking entries (.size entries))
+     :hits      hits
+     :misses    misses
+     :hit-rate  (if (pos? (+ hits misses)) (double (/ hits (+ hits misses))) 0.0)
+     :evictions (.get evictions)}))
+
+(defn close
+  "Closes all cached matchers that are not in use, the ones in use are closed when released."
+  [{:keys [^LinkedHashMap entries] :as cache}]
+  (locking entries
+    (doseq [entry (vec (.values entries))]
+      (evict! cache entry))
+    (.clear entries)))
+
+(comment
+  (let [cache (create {:max-size 2})]
+    (dotimes [i 5]
+      (with-matcher cache (mod i 3) (fn [] (reify Closeable (close [_] (println "closed")))) identity))
+    (stats cache)))
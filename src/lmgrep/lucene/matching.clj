@@ -1,13 +1,18 @@
 (ns lmgrep.lucene.matching
   (:require [clojure.string :as s]
-            [lmgrep.lucene.dictionary :as dictionary])
-  (:import (org.apache.lucene.monitor MonitorQuery Monitor
+            [lmgrep.lucene.dictionary :as dictionary]
+            [lmgrep.lucene.profiler :as profiler]
+            [lmgrep.lucene.similarity :as similarity]
+            [lmgrep.lucene.token-automaton :as token-automaton])
+  (:import (org.apache.lucene.monitor MonitorQuery Monitor MultiMatchingQueries
                                       HighlightsMatch HighlightsMatch$Hit
-                                      ScoringMatch
+                                      QueryMatch ScoringMatch
                                       ScoringHighlightsMatch ScoringHighlightsMatch$Hit MatcherFactory)
            (org.apache.lucene.document Document Field FieldType)
            (org.apache.lucene.index IndexOptions)
-           (java.util Map$Entry Set Iterator)))
+           (clojure.lang PersistentArrayMap)
+           (java.util Arrays Map Map$Entry Set Iterator)
+           (java.util.concurrent ConcurrentHashMap)))
 
 (def ^FieldType field-type
   (doto (FieldType.)
@@ -16,85 +21,321 @@
     (.setStoreTermVectors true)
     (.setStoreTermVectorOffsets true)))
 
+(defn query-descriptor
+  "Everything about the query that goes into the highlight, as a key-value array
+  in the order of the highlight map keys."
+  ^objects [^MonitorQuery query]
+  (let [meta (.getMetadata query)]
+    (object-array [:query (.getQueryString query)
+                   :type (get meta "_type")
+                   :dict-entry-id (.getId query)
+                   :meta (dissoc (into {} meta) "_type" dictionary/CONF_KEY dictionary/DEFAULT_FIELD_NAME_KEY)])))
+
+(defn descriptors
+  "Query id to descriptor lookup for the queries that are being registered.
+  Queries that are already in the monitor, e.g. loaded from disk, are added on the first match.
+  The lookup is keyed by the query id string and not by an int ordinal: the Monitor reports a
+  match only with its query id, so an ordinal would be one more lookup by the same string.
+  The hash of the id string is cached, so a lookup is one hash table probe."
+  ^ConcurrentHashMap [monitor-queries]
+  (let [table (ConcurrentHashMap.)]
+    (doseq [^MonitorQuery mq monitor-queries]
+      (.put table (.getId mq) (query-descriptor mq)))
+    table))
+
+(defn ^:private descriptor ^objects [^ConcurrentHashMap descriptors ^Monitor monitor ^String query-id]
+  (or (.get descriptors query-id)
+      (let [d (query-descriptor (.getQuery monitor query-id))]
+        (or (.putIfAbsent descriptors query-id d) d))))
+
+(defn ^:private with-extra
+  "Key-value array of the descriptor with room for n more key-values."
+  ^objects [^objects descriptor ^long n]
+  (Arrays/copyOf descriptor (+ (alength descriptor) (* 2 n))))
+
+(defn ^:private scored
+  "Highlight map of the descriptor with the score."
+  [^objects descriptor score]
+  (let [n (alength descriptor)
+        kvs (with-extra descriptor 1)]
+    (aset kvs n :score)
+    (aset kvs (+ n 1) score)
+    (PersistentArrayMap. kvs)))
+
+(defn ^:private hit-highlight
+  "Highlight map of the descriptor with the score (when not nil) and the hit offsets.
+  The keys are in the same order as when assoc-ed to the descriptor map one by one."
+  [^objects descriptor score start end]
+  (let [n (alength descriptor)
+        kvs (with-extra descriptor (if score 3 2))
+        i (if score (+ n 2) n)]
+    (when score
+      (aset kvs n :score)
+      (aset kvs (+ n 1) score))
+    (aset kvs i :begin-offset)
+    (aset kvs (+ i 1) start)
+    (aset kvs (+ i 2) :end-offset)
+    (aset kvs (+ i 3) end)
+    (PersistentArrayMap. kvs)))
+
 (defn ^:private highlights-match->highlights
-  [^HighlightsMatch query-match ^Monitor monitor]
-  (let [^MonitorQuery query (.getQuery monitor (.getQueryId query-match))
-        meta (.getMetadata query)
-        base {:query         (.getQueryString query)
-              :type          (get meta "_type")
-              :dict-entry-id (.getQueryId query-match)
-              :meta          (dissoc (into {} meta) "_type" dictionary/CONF_KEY dictionary/DEFAULT_FIELD_NAME_KEY)}
-        hits-iterator (.iterator (.entrySet (.getHits query-match)))
+  [^HighlightsMatch query-match ^Monitor monitor descriptors]
+  (let [descriptor (descriptor descriptors monitor (.getQueryId query-match))
+        ; values of the hits map are hits per field name
+        fields-iterator (.iterator (.values (.getHits query-match)))
         highlights (transient [])]
-    (while (.hasNext hits-iterator)
-      (let [^Map$Entry map-entry (.next hits-iterator)      ; key of the map entry is a field name
-            ^Set highlights-match-hits (.getValue map-entry)
-            iterator (.iterator highlights-match-hits)]
+    (while (.hasNext fields-iterator)
+      (let [^Iterator iterator (.iterator ^Set (.next fields-iterator))]
         (while (.hasNext iterator)
-          (conj! highlights (let [^HighlightsMatch$Hit hit (.next iterator)]
-                              (assoc (assoc base :begin-offset (.-startOffset hit))
-                                :end-offset (.-endOffset hit)))))))
+          (let [^HighlightsMatch$Hit hit (.next iterator)]
+            (conj! highlights (hit-highlight descriptor nil (.-startOffset hit) (.-endOffset hit)))))))
     (persistent! highlights)))
 
 (defn ^:private scoring-highlights-match->highlights
-  [^ScoringHighlightsMatch query-match ^Monitor monitor]
-  (let [^MonitorQuery query (.getQuery monitor (.getQueryId query-match))
-        meta (.getMetadata query)
-        base {:query         (.getQueryString query)
-              :type          (get meta "_type")
-              :dict-entry-id (.getQueryId query-match)
-              :meta          (dissoc (into {} meta) "_type" dictionary/CONF_KEY dictionary/DEFAULT_FIELD_NAME_KEY)
-              :score         (.getScore query-match)}
-        hits-iterator (.iterator (.entrySet (.getHits query-match)))
+  [^ScoringHighlightsMatch query-match ^Monitor monitor descriptors]
+  (let [descriptor (descriptor descriptors monitor (.getQueryId query-match))
+        ; boxed once, a let bound float would be widened to a double
+        score (Float/valueOf (.getScore query-match))
+        fields-iterator (.iterator (.values (.getHits query-match)))
         highlights (transient [])]
-    (while (.hasNext hits-iterator)
-      (let [^Map$Entry map-entry (.next hits-iterator)      ; key of the map entry is a field name
-            ^Set highlights-match-hits (.getValue map-entry)
-            iterator (.iterator highlights-match-hits)]
+    (while (.hasNext fields-iterator)
+      (let [^Iterator iterator (.iterator ^Set (.next fields-iterator))]
         (while (.hasNext iterator)
-          (conj! highlights (let [^ScoringHighlightsMatch$Hit hit (.next iterator)]
-                              (assoc (assoc base :begin-offset (.-startOffset hit))
-                                :end-offset (.-endOffset hit)))))))
+          (let [^ScoringHighlightsMatch$Hit hit (.next iterator)]
+            (conj! highlights (hit-highlight descriptor score (.-startOffset hit) (.-endOffset hit)))))))
     (persistent! highlights)))
 
-(defn ^:private match-and-collect
-  [^String text ^Monitor monitor field-names ^MatcherFactory matcher-factory collector-fn]
-  (let [combined-highlights (transient [])
-        doc (Document.)]
-    (doseq [field-name field-names]
-      (.add doc (Field. ^String field-name text field-type)))
-    (let [^Iterator miter (.iterator (.getMatches (.match monitor doc matcher-factory)))]
-      (while (.hasNext miter)
-        (reduce conj! combined-highlights (collector-fn (.next miter) monitor)))
-      (persistent! combined-highlights))))
-
-(defn match-text [^String text ^Monitor monitor field-names]
-  (match-and-collect ^String text ^Monitor monitor field-names
-                     (HighlightsMatch/MATCHER) highlights-match->highlights))
+(defn ^:private put-offsets!
+  "Puts start and end offsets of the hits into the array from the position, returns the next position."
+  ^long [^longs offsets ^long position ^Iterator hits]
+  (loop [i position]
+    (if (.hasNext hits)
+      (let [^HighlightsMatch$Hit hit (.next hits)]
+        (aset offsets i (long (.-startOffset hit)))
+        (aset offsets (inc i) (long (.-endOffset hit)))
+        (recur (+ i 2)))
+      i)))
 
-(defn match-with-scoring-highlights [^String text ^Monitor monitor field-names]
-  (match-and-collect ^String text ^Monitor monitor field-names
-                     (ScoringHighlightsMatch/MATCHER) scoring-highlights-match->highlights))
+(defn ^:private collect-offsets
+  "Offsets of all the hits as [begin end begin end ...] without the query details."
+  ^longs [^Iterable query-matches]
+  (let [hit-count (reduce (fn [acc ^HighlightsMatch query-match] (+ (long acc) (.getHitCount query-match)))
+                          0 query-matches)
+        offsets (long-array (* 2 (long hit-count)))]
+    (reduce (fn [position ^HighlightsMatch query-match]
+              (reduce (fn [position ^Set hits] (put-offsets! offsets position (.iterator hits)))
+                      position
+                      (.values (.getHits query-match))))
+            0 query-matches)
+    offsets))
 
-(defn match-with-score [^String text ^Monitor monitor field-names]
+(defn ^:private text->document ^Document [^String text field-names]
   (let [doc (Document.)]
     (doseq [field-name field-names]
       (.add doc (Field. ^String field-name text field-type)))
-    (mapv (fn [^ScoringMatch query-match]
-            (let [^MonitorQuery query (.getQuery monitor (.getQueryId query-match))
-                  meta (.getMetadata query)]
-              {:query         (.getQueryString query)
-               :type          (get meta "_type")
-               :dict-entry-id (.getQueryId query-match)
-               :meta          (dissoc (into {} meta) "_type" dictionary/CONF_KEY dictionary/DEFAULT_FIELD_NAME_KEY)
-               :score         (.getScore query-match)}))
-          (.getMatches (.match monitor doc (ScoringMatch/DEFAULT_MATCHER))))))
-
-(defn match-monitor [text monitor field-names opts]
-  (if (s/blank? text)
-    []
-    (if (:with-scored-highlights opts)
-      (match-with-scoring-highlights text monitor field-names)
-      (if (:with-score opts)
-        (match-with-score text monitor field-names)
-        (match-text text monitor field-names)))))
+    doc))
+
+(defn ^:private collect-matches [^Iterable query-matches ^Monitor monitor descriptors collector-fn]
+  (let [combined-highlights (transient [])
+        ^Iterator miter (.iterator query-matches)]
+    (while (.hasNext miter)
+      (reduce conj! combined-highlights (collector-fn (.next miter) monitor descriptors)))
+    (persistent! combined-highlights)))
+
+(defn ^:private collector
+  "Function of query matches of one document, the monitor and descriptors that returns highlights.
+  Offsets are collected without the query details when nothing else is needed."
+  [opts collector-fn]
+  (if (:offsets-only opts)
+    (fn [query-matches _ _] (collect-offsets query-matches))
+    (fn [query-matches monitor descriptors] (collect-matches query-matches monitor descriptors collector-fn))))
+
+(defn ^:private monitor-match
+  "Matches the documents with one Monitor call. With a profiler the time of every
+  candidate query and the matches per query are recorded."
+  ^MultiMatchingQueries [^"[Lorg.apache.lucene.document.Document;" docs ^Monitor monitor
+                         ^MatcherFactory matcher-factory profiler]
+  (if profiler
+    (let [mmq (.match monitor docs (profiler/wrap profiler matcher-factory))]
+      (profiler/record-matches! profiler mmq (alength docs) (.getQueryCount monitor))
+      mmq)
+    (.match monitor docs matcher-factory)))
+
+(defn ^:private match-and-collect
+  [^String text ^Monitor monitor field-names descriptors ^MatcherFactory matcher-factory collect profiler]
+  (if profiler
+    (let [docs (into-array Document [(text->document text field-names)])]
+      (collect (.getMatches (monitor-match docs monitor matcher-factory profiler) 0)
+               monitor descriptors))
+    (collect (.getMatches (.match monitor (text->document text field-names) matcher-factory))
+             monitor descriptors)))
+
+(defn ^:private batch-match-and-collect
+  "Matches all the texts with one Monitor call. Returns a vector of highlights
+  vectors in the same order as the texts. Blank texts are not sent to the Monitor."
+  [texts ^Monitor monitor field-names descriptors ^MatcherFactory matcher-factory collect profiler]
+  (let [texts (vec texts)
+        indexes (into [] (keep-indexed (fn [i text] (when-not (s/blank? text) i))) texts)
+        results (transient (vec (repeat (count texts) [])))]
+    (when (seq indexes)
+      (let [^"[Lorg.apache.lucene.document.Document;" docs
+            (into-array Document (map (fn [i] (text->document (nth texts i) field-names)) indexes))
+            mmq (monitor-match docs monitor matcher-factory profiler)]
+        (dotimes [doc-id (alength docs)]
+          (assoc! results (nth indexes doc-id)
+                  (collect (.getMatches mmq (int doc-id)) monitor descriptors)))))
+    (persistent! results)))
+
+(defn ^:private scoring-highlights-matcher ^MatcherFactory [opts]
+  (if-let [similarity (similarity/similarity-of opts)]
+    (ScoringHighlightsMatch/matchWithSimilarity similarity)
+    ScoringHighlightsMatch/MATCHER))
+
+(defn ^:private scoring-matcher ^MatcherFactory [opts]
+  (if-let [similarity (similarity/similarity-of opts)]
+    (ScoringMatch/matchWithSimilarity similarity)
+    ScoringMatch/DEFAULT_MATCHER))
+
+(defn ^:private scoring-match->highlights
+  [^ScoringMatch query-match ^Monitor monitor descriptors]
+  [(scored (descriptor descriptors monitor (.getQueryId query-match)) (.getScore query-match))])
+
+(defn ^:private matches-only-collector
+  "Ids of the matching queries, for when only whether the text matches is needed."
+  [^Iterable query-matches _ _]
+  (into [] (map (fn [^QueryMatch query-match] (.getQueryId query-match))) query-matches))
+
+(defn match-text
+  ([text monitor field-names] (match-text text monitor field-names (ConcurrentHashMap.) {}))
+  ([^String text ^Monitor monitor field-names descriptors opts]
+   (match-and-collect text monitor field-names descriptors
+                      (HighlightsMatch/MATCHER) (collector opts highlights-match->highlights)
+                      (profiler/profiler-of opts))))
+
+(defn match-with-scoring-highlights
+  ([text monitor field-names] (match-with-scoring-highlights text monitor field-names (ConcurrentHashMap.)))
+  ([text monitor field-names descriptors] (match-with-scoring-highlights text monitor field-names descriptors {}))
+  ([^String text ^Monitor monitor field-names descriptors opts]
+   (match-and-collect text monitor field-names descriptors
+                      (scoring-highlights-matcher opts) (collector {} scoring-highlights-match->highlights)
+                      (profiler/profiler-of opts))))
+
+(defn match-with-score
+  ([text monitor field-names] (match-with-score text monitor field-names (ConcurrentHashMap.)))
+  ([text monitor field-names descriptors] (match-with-score text monitor field-names descriptors {}))
+  ([^String text ^Monitor monitor field-names descriptors opts]
+   (match-and-collect text monitor field-names descriptors
+                      (scoring-matcher opts) (collector {} scoring-match->highlights)
+                      (profiler/profiler-of opts))))
+
+(defn match-monitor
+  "Returns a vector of highlight maps. With the :offsets-only option (and without scores)
+  returns a long array of [begin end begin end ...] offsets instead. With the :matches-only
+  option returns a vector of the ids of the matching queries, nothing is highlighted or scored."
+  ([text monitor field-names opts]
+   (match-monitor text monitor field-names (ConcurrentHashMap.) opts))
+  ([text monitor field-names descriptors opts]
+   (cond
+     (s/blank? text) []
+     (:matches-only opts) (match-and-collect text monitor field-names descriptors
+                                             QueryMatch/SIMPLE_MATCHER matches-only-collector
+                                             (profiler/profiler-of opts))
+     :else
+     (if (:with-scored-highlights opts)
+       (match-with-scoring-highlights text monitor field-names descriptors opts)
+       (if (:with-score opts)
+         (match-with-score text monitor field-names descriptors opts)
+         (match-text text monitor field-names descriptors opts))))))
+
+(defn match-monitor-batch
+  "Matches a batch of texts with one Monitor call.
+  Returns a vector of highlights, one per text, in the input order."
+  ([texts monitor field-names opts]
+   (match-monitor-batch texts monitor field-names (ConcurrentHashMap.) opts))
+  ([texts monitor field-names descriptors opts]
+   (cond
+     (:matches-only opts)
+     (batch-match-and-collect texts monitor field-names descriptors
+                              QueryMatch/SIMPLE_MATCHER matches-only-collector
+                              (profiler/profiler-of opts))
+     (:with-scored-highlights opts)
+     (batch-match-and-collect texts monitor field-names descriptors
+                              (scoring-highlights-matcher opts) (collector {} scoring-highlights-match->highlights)
+                              (profiler/profiler-of opts))
+     (:with-score opts)
+     (batch-match-and-collect texts monitor field-names descriptors
+                              (scoring-matcher opts) (collector {} scoring-match->highlights)
+                              (profiler/profiler-of opts))
+     :else
+     (batch-match-and-collect texts monitor field-names descriptors
+                              (HighlightsMatch/MATCHER) (collector opts highlights-match->highlights)
+                              (profiler/profiler-of opts)))))
+
+(defn ^:private automaton-highlights
+  "Hits of the automaton in the same form as `match-text` returns."
+  [^Map hits ^Monitor monitor descriptors opts]
+  (cond
+    (:matches-only opts) (vec (.keySet hits))
+    (:offsets-only opts)
+    (let [offsets (long-array (reduce (fn [acc ^longs query-offsets] (+ (long acc) (alength query-offsets)))
+                                      0 (.values hits)))]
+      (reduce (fn [position ^longs query-offsets]
+                (System/arraycopy query-offsets 0 offsets (int position) (alength query-offsets))
+                (+ (long position) (alength query-offsets)))
+              0 (.values hits))
+      offsets)
+    :else
+    (let [highlights (transient [])]
+      (doseq [^Map$Entry entry (.entrySet hits)]
+        (let [descriptor (descriptor descriptors monitor (.getKey entry))
+              ^longs query-offsets (.getValue entry)]
+          (loop [i 0]
+            (when (< i (alength query-offsets))
+              (conj! highlights (hit-highlight descriptor nil
+                                               (int (aget query-offsets i))
+                                               (int (aget query-offsets (inc i)))))
+              (recur (+ i 2))))))
+      (persistent! highlights))))
+
+(defn ^:private automaton-applicable?
+  "The automaton produces plain highlights, scores and profiles come from the Monitor."
+  [automaton opts]
+  (and automaton
+       (not (:with-score opts))
+       (not (:with-scored-highlights opts))
+       (nil? (profiler/profiler-of opts))))
+
+(defn match-automaton
+  "Matches the text with the token automaton, texts that the automaton can't match
+  (or when scores are requested) are matched with the Monitor."
+  [text automaton monitor field-names descriptors opts]
+  (if-let [hits (when (and (automaton-applicable? automaton opts) (not (s/blank? text)))
+                  (token-automaton/match-hits automaton text))]
+    (automaton-highlights hits monitor descriptors opts)
+    (match-monitor text monitor field-names descriptors opts)))
+
+(defn match-automaton-batch
+  "Matches a batch of texts with the token automaton, the rest of the texts are matched
+  with one Monitor call. Returns a vector of highlights, one per text, in the input order."
+  [texts automaton monitor field-names descriptors opts]
+  (if (automaton-applicable? automaton opts)
+    (let [texts (vec texts)
+          hits (mapv (fn [text] (when-not (s/blank? text) (token-automaton/match-hits automaton text))) texts)
+          ; blank texts are handled by the Monitor batch
+          monitor-indexes (filterv (fn [i] (nil? (nth hits i))) (range (count texts)))
+          monitor-results (when (seq monitor-indexes)
+                            (match-monitor-batch (mapv texts monitor-indexes) monitor field-names descriptors opts))]
+      (persistent!
+        (reduce (fn [results [i highlights]] (assoc! results i highlights))
+                (transient (mapv (fn [text-hits]
+                                   (when text-hits (automaton-highlights text-hits monitor descriptors opts)))
+                                 hits))
+                (map vector monitor-indexes monitor-results))))
+    (match-monitor-batch texts monitor field-names descriptors opts)))
+
+(defn query-description
+  "Dictionary entry id and the query string of the query id."
+  [^Monitor monitor descriptors ^String query-id]
+  (let [d (descriptor descriptors monitor query-id)]
+    {:dict-entry-id (aget d 5)
+     :query         (aget d 1)}))
@@ -5,14 +5,17 @@
             [lucene.custom.query :as query]
             [lmgrep.lucene.analyzer :as analyzer]
             [lmgrep.lucene.dictionary :as dictionary]
+            [lmgrep.lucene.matching :as matching]
+            [lmgrep.lucene.sync :as sync]
+            [lmgrep.lucene.token-automaton :as token-automaton]
             [lmgrep.print :as print])
-  (:import (org.apache.lucene.monitor MonitorConfiguration Monitor MonitorQuerySerializer Presearcher TermFilteredPresearcher MultipassTermFilteredPresearcher)
+  (:import (org.apache.lucene.monitor MonitorConfiguration Monitor MonitorQuery MonitorQuerySerializer Presearcher TermFilteredPresearcher MultipassTermFilteredPresearcher)
            (org.apache.lucene.analysis.miscellaneous PerFieldAnalyzerWrapper)
-           (java.util ArrayList)
+           (java.util LinkedHashMap List Map$Entry)
            (java.util.function Function)
            (java.nio.file Path)
            (org.apache.lucene.util BytesRef IOSupplier)
-           (org.apache.lucene.store ByteBuffersDirectory)))
+           (org.apache.lucene.store ByteBuffersDirectory FSDirectory)))
 
 (set! *warn-on-reflection* true)
 
@@ -31,6 +34,28 @@
             wo-meta-meta (update mq :meta dissoc dictionary/CONF_KEY)]
         (monitor-query-constructor-fn wo-meta-meta)))))
 
+(def DEFAULT_LAZY_QUERIES_CACHE_SIZE 10000)
+
+(defn lazy-monitor-query-serializer
+  "Serializer of the read-only Monitor that deserializes a stored query when it becomes
+  a candidate. Parsed queries are kept in a bounded LRU cache by the stored bytes, so the
+  JSON is parsed only on a cache miss; a read-only index never changes a stored query."
+  [monitor-query-constructor-fn cache-size]
+  (let [cache (proxy [LinkedHashMap] [16 0.75 true]
+                (removeEldestEntry [_]
+                  (< (long cache-size) (.size ^LinkedHashMap this))))]
+    (reify MonitorQuerySerializer
+      (serialize [_ monitor-query]
+        (BytesRef. ^CharSequence (.get (.getMetadata monitor-query) dictionary/CONF_KEY)))
+      (deserialize [_ bytes-ref]
+        ; BytesRef equality is by the content of the bytes
+        (or (locking cache (.get ^LinkedHashMap cache bytes-ref))
+            (let [mq (json/read-value (.utf8ToString ^BytesRef bytes-ref) json/keyword-keys-object-mapper)
+                  monitor-query (monitor-query-constructor-fn (update mq :meta dissoc dictionary/CONF_KEY))]
+              ; the caller might reuse the bytes of the BytesRef
+              (locking cache (.put ^LinkedHashMap cache (BytesRef/deepCopyOf bytes-ref) monitor-query))
+              monitor-query))))))
+
 (def default-analyzer (analyzer/create {}))
 
 (def SCHEMA_FILE_NAME "/schema.json")
@@ -65,23 +90,35 @@
                                   (when (fs/exists? schema-file)
                                     (json/read-value (slurp schema-file) json/keyword-keys-object-mapper))
                                   field-name->analysis-conf)]
-       (when-not (fs/exists? queries-index-dir)
-         (fs/create-dir queries-index-dir))
-       (when-not (fs/exists? schema-file)
-         (fs/create-file schema-file))
-       (spit schema-file (json/write-value-as-string field->analysis-conf))
+       ; the index of --lazy-queries is opened read-only
+       (when-not (get options :lazy-queries)
+         (when-not (fs/exists? queries-index-dir)
+           (fs/create-dir queries-index-dir))
+         (when-not (fs/exists? schema-file)
+           (fs/create-file schema-file))
+         (spit schema-file (json/write-value-as-string field->analysis-conf)))
        field->analysis-conf)
      field-name->analysis-conf)))
 
+(def DEFAULT_QUERY_UPDATE_BUFFER_SIZE 100000)
+
 (defn create [questionnaire-with-analyzers custom-analyzers options]
   (let [^MonitorConfiguration config (MonitorConfiguration.)
         presearcher (presearcher (get options :presearcher))]
-    (.setQueryUpdateBufferSize config (int (get options :query-update-buffer-size 100000)))
+    (.setQueryUpdateBufferSize config (int (get options :query-update-buffer-size DEFAULT_QUERY_UPDATE_BUFFER_SIZE)))
     (if-let [queries-index-dir (get options :queries-index-dir)]
-      (.setIndexPath config
-                     (Path/of queries-index-dir (into-array String []))
-                     (disk-oriented-monitor-query-serializer
-                       (dictionary/monitor-query-constructor custom-analyzers)))
+      (if (get options :lazy-queries)
+        (.setDirectoryProvider config
+                               (reify IOSupplier
+                                 (get [_] (FSDirectory/open (Path/of queries-index-dir (into-array String [])))))
+                               (lazy-monitor-query-serializer
+                                 (dictionary/monitor-query-constructor custom-analyzers)
+                                 (get options :lazy-queries-cache-size DEFAULT_LAZY_QUERIES_CACHE_SIZE))
+                               true)
+        (.setIndexPath config
+                       (Path/of queries-index-dir (into-array String []))
+                       (disk-oriented-monitor-query-serializer
+                         (dictionary/monitor-query-constructor custom-analyzers))))
       (.setDirectoryProvider config (reify IOSupplier
                                       (get [_] (ByteBuffersDirectory.)))
                              monitor-query-serializer))
@@ -90,29 +127,149 @@
           per-field-analyzers (PerFieldAnalyzerWrapper. default-analyzer field-name->analyzer)]
       (Monitor. per-field-analyzers presearcher config))))
 
-(defn defer-to-one-by-one-registration [^Monitor monitor monitor-queries]
-  (doseq [mq monitor-queries]
-    (try
-      (.register monitor (doto (ArrayList.) (.add mq)))
-      (catch Exception e
-        (when (System/getenv "DEBUG_MODE")
-          (print/throwable e))
-        (print/to-err (format "Failed to register query %s with exception '%s'" mq (.getMessage e)))))))
+(defn- report-load! [options m]
+  (when (get options :load-progress)
+    (print/to-err (json/write-value-as-string m))))
 
-(defn register-queries [^Monitor monitor monitor-queries]
+(defn- register-batch!
+  "Registers the queries with one call. When the call fails the batch is split in halves
+  so that only the failing queries are dropped. Returns the ids of the failed queries."
+  [^Monitor monitor monitor-queries]
   (try
     (.register monitor ^Iterable monitor-queries)
+    []
     (catch Exception e
       (when (System/getenv "DEBUG_MODE")
         (print/throwable e))
-      (print/to-err (format "Failed to register queries with exception '%s'" (.getMessage e)))
-      (defer-to-one-by-one-registration monitor monitor-queries))))
+      (if (= 1 (count monitor-queries))
+        (let [^MonitorQuery monitor-query (first monitor-queries)]
+          (print/to-err (format "Failed to register query %s with exception '%s'" monitor-query (.getMessage e)))
+          [(.getId monitor-query)])
+        (let [[left right] (split-at (quot (count monitor-queries) 2) monitor-queries)]
+          (into (register-batch! monitor (vec left))
+                (register-batch! monitor (vec right))))))))
+
+(defn register-queries
+  "Registers queries in batches of the query update buffer size, progress is reported
+  after every batch with the :load-progress option. Returns the ids of the failed queries."
+  ([monitor monitor-queries] (register-queries monitor monitor-queries {}))
+  ([^Monitor monitor monitor-queries options]
+   (let [batch-size (get options :query-update-buffer-size DEFAULT_QUERY_UPDATE_BUFFER_SIZE)
+         total (count monitor-queries)
+         start (System/nanoTime)]
+     (reduce (fn [failed batch]
+               (let [failed (into failed (register-batch! monitor (vec batch)))]
+                 (report-load! options {:stage           "register"
+                                        :registered      (.getQueryCount monitor)
+                                        :failed          (count failed)
+                                        :total           total
+                                        :elapsed-seconds (/ (- (System/nanoTime) start) 1e9)})
+                 failed))
+             []
+             (partition-all batch-size monitor-queries)))))
+
+(defn- update-manifest!
+  "Adds the registered queries to the manifest of the queries index. An index that has queries
+  but no manifest was created before manifests, its manifest is created on the first sync."
+  [options query-count-before questionnaire failed]
+  (let [queries-index-dir (get options :queries-index-dir)
+        manifest (sync/read-manifest queries-index-dir)]
+    (when (or manifest (zero? (long query-count-before)))
+      (sync/write-manifest! queries-index-dir
+                            (apply dissoc
+                                   (into (or manifest {})
+                                         (map (fn [{:keys [^MonitorQuery monitor-query]}]
+                                                [(.getId monitor-query) (sync/monitor-query-fingerprint monitor-query)]))
+                                         questionnaire)
+                                   failed)))))
+
+(defn apply-sync!
+  "Registers the added and updated queries and deletes the queries that are not in the query confs.
+  Returns a report of the changes, the registered MonitorQuery objects and the deleted query ids."
+  [^Monitor monitor query-confs options custom-analyzers]
+  (let [start (System/nanoTime)
+        queries-index-dir (get options :queries-index-dir)
+        manifest (or (sync/read-manifest queries-index-dir) (sync/monitor-manifest monitor))
+        {:keys [changed deleted added updated unchanged] :as diff} (sync/diff manifest query-confs)
+        monitor-queries (dictionary/get-monitor-queries (dictionary/construct changed options custom-analyzers))
+        failed (register-queries monitor monitor-queries options)]
+    (when (seq deleted)
+      (.deleteById monitor ^List deleted))
+    (sync/write-manifest! queries-index-dir (apply dissoc (:manifest diff) failed))
+    {:report          {:added     added
+                       :updated   updated
+                       :deleted   (count deleted)
+                       :unchanged unchanged
+                       :failed    (count failed)
+                       :seconds   (/ (- (System/nanoTime) start) 1e9)}
+     :monitor-queries monitor-queries
+     :deleted         deleted}))
+
+(defn- sync-setup
+  "Setups the monitor from the queries index applying only the changes of the questionnaire."
+  [questionnaire default-type options custom-analyzers]
+  (let [query-confs (dictionary/query-confs questionnaire default-type options)
+        monitor (create query-confs custom-analyzers options)
+        {:keys [report monitor-queries]} (apply-sync! monitor query-confs options custom-analyzers)]
+    (print/to-err (json/write-value-as-string {:sync report}))
+    {:monitor     monitor
+     :field-names (set (mapv :field-name query-confs))
+     :descriptors (matching/descriptors monitor-queries)
+     :automaton   nil}))
+
+(defn- eager-setup
+  "Setups the monitor and registers all the questionnaire entries."
+  [questionnaire default-type options custom-analyzers]
+  (let [start (System/nanoTime)
+        questionnaire (dictionary/normalize questionnaire default-type options custom-analyzers)
+        normalized (System/nanoTime)
+        _ (report-load! options {:stage           "normalize"
+                                 :total           (count questionnaire)
+                                 :elapsed-seconds (/ (- normalized start) 1e9)})
+        monitor (create questionnaire custom-analyzers options)
+        query-count-before (.getQueryCount ^Monitor monitor)
+        monitor-queries (dictionary/get-monitor-queries questionnaire)
+        failed (register-queries monitor monitor-queries options)]
+    (when (get options :queries-index-dir)
+      (update-manifest! options query-count-before questionnaire failed))
+    (report-load! options {:stage             "done"
+                           :queries           (.getQueryCount ^Monitor monitor)
+                           :failed            (count failed)
+                           :normalize-seconds (/ (- normalized start) 1e9)
+                           :register-seconds  (/ (- (System/nanoTime) normalized) 1e9)})
+    {:monitor     monitor
+     :field-names (set (mapv :field-name questionnaire))
+     :descriptors (matching/descriptors monitor-queries)
+     ; queries loaded from disk are not in the questionnaire
+     :automaton   (when (and (get options :token-automaton)
+                             (not (get options :queries-index-dir)))
+                    (token-automaton/build questionnaire custom-analyzers))}))
+
+(declare setup)
+
+(defn- lazy-setup
+  "Setups a read-only monitor of the queries index that loads only the presearcher terms up front.
+  Queries of the questionnaire are registered into the index before it is opened."
+  [questionnaire default-type options custom-analyzers]
+  (when (seq questionnaire)
+    (with-open [^Monitor _ (:monitor (setup questionnaire default-type (dissoc options :lazy-queries) custom-analyzers))]))
+  (let [monitor (create [] custom-analyzers options)]
+    {:monitor     monitor
+     ; default field names of the stored queries, without reading the queries
+     :field-names (set (map name (keys (prepare-schema [] options))))
+     :descriptors (matching/descriptors [])
+     :automaton   nil}))
 
 (defn setup
   "Setups the monitor with all the questionnaire entries."
   [questionnaire default-type options custom-analyzers]
-  (let [questionnaire (dictionary/normalize questionnaire default-type options custom-analyzers)
-        monitor (create questionnaire custom-analyzers options)]
-    (register-queries monitor (dictionary/get-monitor-queries questionnaire))
-    {:monitor     monitor
-     :field-names (set (mapv :field-name questionnaire))}))
+  (let [queries-index-dir (get options :queries-index-dir)]
+    (cond
+      (and queries-index-dir (get options :lazy-queries))
+      (lazy-setup questionnaire default-type options custom-analyzers)
+
+      (and queries-index-dir (get options :sync-queries))
+      (sync-setup questionnaire default-type options custom-analyzers)
+
+      :else
+      (eager-setup questionnaire default-type options custom-analyzers))))
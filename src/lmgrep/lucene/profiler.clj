@@ -0,0 +1,112 @@
+(ns lmgrep.lucene.profiler
+  "Per-query matching cost: how long the candidate queries took to match, how often
+  a query was selected as a candidate by the presearcher and how often a candidate matched."
+  (:import (java.util Map$Entry)
+           (java.util.concurrent ConcurrentHashMap)
+           (java.util.concurrent.atomic LongAdder)
+           (java.util.function Function)
+           (org.apache.lucene.monitor MatcherFactory MultiMatchingQueries
+                                      ProfilingMatcherFactory ProfilingMatcherFactory$Listener QueryMatch)))
+
+(set! *warn-on-reflection* true)
+
+(def DEFAULT_TOP 20)
+
+(def ^:private new-query-profile
+  (reify Function
+    (apply [_ _]
+      {:nanos          (LongAdder.)
+       :candidates     (LongAdder.)
+       :candidate-docs (LongAdder.)
+       :hits           (LongAdder.)})))
+
+(defn- query-profile [^ConcurrentHashMap queries query-id]
+  (.computeIfAbsent queries query-id new-query-profile))
+
+(defn create
+  "Creates a profiler when the options ask for it, otherwise nil."
+  [options]
+  (when (get options :profile-queries)
+    (let [queries (ConcurrentHashMap.)]
+      {:queries            queries
+       :match-calls        (LongAdder.)
+       :documents          (LongAdder.)
+       :registered-queries (LongAdder.)
+       :candidates         (LongAdder.)
+       :candidate-docs     (LongAdder.)
+       :hits               (LongAdder.)
+       :listener           (reify ProfilingMatcherFactory$Listener
+                             (onCandidate [_ query-id nanos documents]
+                               (let [profile (query-profile queries query-id)]
+                                 (.add ^LongAdder (:nanos profile) nanos)
+                                 (.increment ^LongAdder (:candidates profile))
+                                 (.add ^LongAdder (:candidate-docs profile) documents))))})))
+
+(defn with-profiler
+  "Options that carry the profiler to the matcher."
+  [options profiler]
+  (cond-> options profiler (assoc ::profiler profiler)))
+
+(defn profiler-of [options]
+  (get options ::profiler))
+
+(defn wrap
+  "MatcherFactory that reports the time of every candidate query to the profiler."
+  ^MatcherFactory [{:keys [listener]} ^MatcherFactory matcher-factory]
+  (ProfilingMatcherFactory. matcher-factory listener))
+
+(defn record-matches!
+  "Records the outcome of one Monitor call for the batch of documents."
+  [{:keys [queries ^LongAdder match-calls ^LongAdder documents ^LongAdder registered-queries
+           ^LongAdder candidates ^LongAdder candidate-docs ^LongAdder hits]}
+   ^MultiMatchingQueries mmq doc-count query-count]
+  (let [doc-count (long doc-count)
+        queries-run (.getQueriesRun mmq)]
+    (.increment match-calls)
+    (.add documents doc-count)
+    (.add registered-queries (long query-count))
+    (.add candidates queries-run)
+    (.add candidate-docs (* queries-run doc-count))
+    (dotimes [doc-id doc-count]
+      (doseq [^QueryMatch query-match (.getMatches mmq (int doc-id))]
+        (.increment hits)
+        (.increment ^LongAdder (:hits (query-profile queries (.getQueryId query-match))))))))
+
+(defn- ratio [n d]
+  (if (pos? d) (double (/ n d)) 0.0))
+
+(defn report
+  "The most expensive queries and the presearcher effectiveness.
+  describe is a function of the query id that returns a map with :dict-entry-id and :query."
+  [{:keys [^ConcurrentHashMap queries ^LongAdder match-calls ^LongAdder documents ^LongAdder registered-queries
+           ^LongAdder candidates ^LongAdder candidate-docs ^LongAdder hits]}
+   describe top]
+  (let [match-calls (.sum match-calls)
+        profiles (map (fn [^Map$Entry e]
+                        (let [{:keys [^LongAdder nanos ^LongAdder candidates ^LongAdder candidate-docs ^LongAdder hits]}
+                              (.getValue e)]
+                          {:query-id       (.getKey e)
+                           :nanos          (.sum nanos)
+                           :candidates     (.sum candidates)
+                           :candidate-docs (.sum candidate-docs)
+                           :hits           (.sum hits)}))
+                      (.entrySet queries))]
+    {:presearcher {:match-calls        match-calls
+                   :documents          (.sum documents)
+                   :candidates         (.sum candidates)
+                   :hits               (.sum hits)
+                   ; share of the registered queries that the presearcher selected as candidates
+                   :candidate-rate     (ratio (.sum candidates) (.sum registered-queries))
+                   ; share of the candidate query and document pairs that matched
+                   :precision          (ratio (.sum hits) (.sum candidate-docs))}
+     :queries     (->> profiles
+                       (sort-by :nanos >)
+                       (take top)
+                       (mapv (fn [{:keys [query-id nanos candidates candidate-docs hits]}]
+                               (merge (select-keys (describe query-id) [:dict-entry-id :query])
+                                      {:time-ms        (/ nanos 1e6)
+                                       :mean-micros    (/ (ratio nanos candidates) 1e3)
+                                       :candidates     candidates
+                                       :candidate-rate (ratio candidates match-calls)
+                                       :hits           hits
+                                       :hit-rate       (ratio hits candidate-docs)}))))}))
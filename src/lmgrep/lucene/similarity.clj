@@ -0,0 +1,27 @@
+(ns lmgrep.lucene.similarity
+  "Similarity that scores the matches of --with-score and --with-scored-highlights:
+  BM25 (the default) with its k1 and b parameters, or the classic TF-IDF similarity."
+  (:import (org.apache.lucene.search.similarities BM25Similarity ClassicSimilarity Similarity)))
+
+(set! *warn-on-reflection* true)
+
+(def DEFAULT_BM25_K1 1.2)
+(def DEFAULT_BM25_B 0.75)
+
+(defn create
+  "Similarity of the options, nil when it is the default BM25 similarity."
+  ^Similarity [options]
+  (let [k1 (get options :bm25-k1)
+        b (get options :bm25-b)]
+    (if (= "classic" (get options :similarity))
+      (ClassicSimilarity.)
+      (when (or k1 b)
+        (BM25Similarity. (float (or k1 DEFAULT_BM25_K1)) (float (or b DEFAULT_BM25_B)))))))
+
+(defn with-similarity
+  "Options that carry the similarity to the matchers."
+  [options similarity]
+  (cond-> options similarity (assoc ::similarity similarity)))
+
+(defn similarity-of ^Similarity [options]
+  (get options ::similarity))
@@ -0,0 +1,70 @@
+(ns lmgrep.lucene.sync
+  "Incremental sync of the queries index with a queries file. Next to the index a manifest
+  of query id to the fingerprint of the stored query conf is kept, so that the changed
+  queries are found without reading the queries from the index."
+  (:require [babashka.fs :as fs]
+            [jsonista.core :as json]
+            [lmgrep.lucene.dictionary :as dictionary])
+  (:import (java.nio.charset StandardCharsets)
+           (java.security MessageDigest)
+           (java.util Base64)
+           (org.apache.lucene.monitor Monitor MonitorQuery)))
+
+(set! *warn-on-reflection* true)
+
+(def MANIFEST_FILE_NAME "/queries-manifest.json")
+
+(defn fingerprint
+  "Fingerprint of the stored query conf JSON."
+  ^String [^String conf-json]
+  (.encodeToString (Base64/getEncoder)
+                   (.digest (MessageDigest/getInstance "SHA-1") (.getBytes conf-json StandardCharsets/UTF_8))))
+
+(defn conf-fingerprint
+  "Fingerprint of the query conf (see `lmgrep.lucene.dictionary/query-conf`), the same as
+  of the conf that the MonitorQuery stores."
+  ^String [{:keys [conf]}]
+  (fingerprint (json/write-value-as-string conf)))
+
+(defn monitor-query-fingerprint ^String [^MonitorQuery monitor-query]
+  (fingerprint (get (.getMetadata monitor-query) dictionary/CONF_KEY)))
+
+(defn- manifest-file [queries-index-dir]
+  (str queries-index-dir MANIFEST_FILE_NAME))
+
+(defn read-manifest
+  "Query id to fingerprint map, nil when there is no manifest."
+  [queries-index-dir]
+  (let [file (manifest-file queries-index-dir)]
+    (when (fs/exists? file)
+      (json/read-value (slurp file)))))
+
+(defn write-manifest! [queries-index-dir manifest]
+  (spit (manifest-file queries-index-dir) (json/write-value-as-string manifest)))
+
+(defn monitor-manifest
+  "Manifest of the queries in the index, for indexes that were created without a manifest.
+  Every query is read from the index."
+  [^Monitor monitor]
+  (into {}
+        (map (fn [^String query-id] [query-id (monitor-query-fingerprint (.getQuery monitor query-id))]))
+        (.getQueryIds monitor)))
+
+(defn diff
+  "Changes of the query confs compared to the manifest:
+  - :changed query confs that are added or updated,
+  - :deleted ids of the queries that are not in the query confs,
+  - :manifest the manifest of the query confs."
+  [manifest query-confs]
+  (let [fingerprints (into {} (map (fn [query-conf] [(get-in query-conf [:conf :id]) (conf-fingerprint query-conf)]))
+                           query-confs)
+        changed (filterv (fn [query-conf]
+                           (let [id (get-in query-conf [:conf :id])]
+                             (not= (get manifest id) (get fingerprints id))))
+                         query-confs)]
+    {:added     (count (remove (fn [query-conf] (contains? manifest (get-in query-conf [:conf :id]))) changed))
+     :updated   (count (filter (fn [query-conf] (contains? manifest (get-in query-conf [:conf :id]))) changed))
+     :changed   changed
+     :deleted   (vec (remove (fn [id] (contains? fingerprints id)) (keys manifest)))
+     :unchanged (- (count fingerprints) (count changed))
+     :manifest  fingerprints}))
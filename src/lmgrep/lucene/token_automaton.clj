@@ -0,0 +1,200 @@
+(ns lmgrep.lucene.token-automaton
+  "Matching of dictionaries of plain term and exact phrase queries without the Lucene Monitor.
+  Analyzed token sequences of all the queries are compiled into one token level Aho-Corasick
+  automaton per field and a line is matched in a single pass over its tokens.
+  Lines with stacked tokens (e.g. synonyms) are left for the Monitor."
+  (:require [lmgrep.lucene.dictionary :as dictionary])
+  (:import (java.util ArrayDeque ArrayList HashMap List Map)
+           (org.apache.lucene.analysis Analyzer TokenStream)
+           (org.apache.lucene.analysis.tokenattributes OffsetAttribute PositionIncrementAttribute
+                                                       PositionLengthAttribute TermToBytesRefAttribute)
+           (org.apache.lucene.index Term)
+           (org.apache.lucene.monitor MonitorQuery)
+           (org.apache.lucene.search PhraseQuery TermQuery)
+           (org.apache.lucene.util BytesRef)))
+
+(set! *warn-on-reflection* true)
+
+(defn simple-query-terms
+  "Terms of a term query or of an exact phrase query without position gaps, otherwise nil."
+  [query]
+  (cond
+    (instance? TermQuery query) [(.getTerm ^TermQuery query)]
+    (instance? PhraseQuery query)
+    (let [^PhraseQuery query query
+          terms (.getTerms query)
+          positions (.getPositions query)]
+      (when (and (zero? (.getSlop query))
+                 (pos? (alength terms))
+                 (every? (fn [i] (= (aget positions i) (+ (aget positions 0) (int i)))) (range (alength positions)))
+                 (apply = (map (fn [^Term term] (.field term)) terms)))
+        (vec terms)))
+    :else nil))
+
+(defn- edge-key ^long [^long state ^long token]
+  (bit-or (bit-shift-left state 32) token))
+
+(defn- compile-field
+  "Aho-Corasick automaton of the token sequences, patterns is a map of a vector
+  of term bytes to a vector of [registration-index query-id]."
+  [^Analyzer analyzer patterns]
+  (let [vocabulary (HashMap.)
+        edges (HashMap.)
+        ; state -> pattern indexes of the patterns that end in the state
+        terminals (HashMap.)
+        children (ArrayList.)
+        token-id (fn [^BytesRef bytes]
+                   (or (.get vocabulary bytes)
+                       (let [id (.size vocabulary)]
+                         (.put vocabulary bytes (int id))
+                         id)))
+        pattern-list (vec patterns)]
+    (.add children (ArrayList.))
+    (doseq [[pattern-index [tokens _]] (map-indexed vector pattern-list)]
+      (let [state (reduce (fn [^long state token]
+                            (let [k (edge-key state (long (token-id token)))]
+                              (or (when-let [^Integer existing (.get edges k)] (.longValue existing))
+                                  (let [next-state (.size children)]
+                                    (.put edges k (int next-state))
+                                    (.add children (ArrayList.))
+                                    (.add ^List (.get children (int state)) (long-array [(long (token-id token)) next-state]))
+                                    next-state))))
+                          0 tokens)]
+        (.add ^List (or (.get terminals (int state))
+                        (let [l (ArrayList.)] (.put terminals (int state) l) l))
+              (int pattern-index))))
+    (let [state-count (.size children)
+          fail (int-array state-count)
+          ; nearest state on the failure chain that is terminal, -1 when none
+          output-link (int-array state-count -1)
+          queue (ArrayDeque.)
+          goto (fn ^long [^long state ^long token]
+                 (if-let [^Integer next-state (.get edges (edge-key state token))]
+                   (.longValue next-state)
+                   -1))]
+      ; breadth first, failure links of the parent are known before the ones of the children
+      (doseq [^longs edge (.get children 0)]
+        (.add queue (aget edge 1)))
+      (while (not (.isEmpty queue))
+        (let [state (long (.poll queue))]
+          (doseq [^longs edge (.get children (int state))]
+            (let [token (aget edge 0)
+                  child (aget edge 1)
+                  target (loop [f (aget fail (int state))]
+                           (let [next-state (goto f token)]
+                             (cond
+                               (<= 0 next-state) next-state
+                               (zero? f) 0
+                               :else (recur (aget fail f)))))]
+              (aset fail (int child) (int target))
+              (aset output-link (int child) (int (if (.containsKey terminals (int target))
+                                                   target
+                                                   (aget output-link (int target)))))
+              (.add queue child)))))
+      {:analyzer     analyzer
+       :vocabulary   vocabulary
+       :edges        edges
+       :fail         fail
+       :output-link  output-link
+       :terminals    (let [a (object-array state-count)]
+                       (doseq [[state pattern-indexes] terminals]
+                         (aset a (int state) (int-array pattern-indexes)))
+                       a)
+       :lengths      (int-array (map (fn [[tokens _]] (count tokens)) pattern-list))
+       :query-ids    (object-array (map (fn [[_ query-ids]] query-ids) pattern-list))})))
+
+(defn build
+  "Automaton for the normalized dictionary (see `lmgrep.lucene.dictionary/normalize`)
+  when all the queries are term or exact phrase queries, otherwise nil."
+  [questionnaire custom-analyzers]
+  (let [entries (->> questionnaire
+                     (map-indexed (fn [i {:keys [monitor-query]}]
+                                    [i (.getId ^MonitorQuery monitor-query)
+                                     (simple-query-terms (.getQuery ^MonitorQuery monitor-query))]))
+                     ; the Monitor keeps the last query with the same id
+                     (reduce (fn [acc [_ query-id :as entry]] (assoc acc query-id entry)) {})
+                     (vals))]
+    (when (and (seq entries) (every? (fn [[_ _ terms]] terms) entries))
+      (let [analysis-confs (reduce (fn [acc {:keys [field-name analysis-conf]}] (assoc acc field-name analysis-conf))
+                                   {} questionnaire)
+            patterns-per-field (reduce (fn [acc [i query-id terms]]
+                                         (update-in acc [(.field ^Term (first terms))
+                                                         (mapv (fn [^Term term] (.bytes term)) terms)]
+                                                    (fnil conj []) [i query-id]))
+                                       {} entries)]
+        (into {}
+              (keep (fn [[field patterns]]
+                      ; queries of a field that is not in the document never match
+                      (when-let [analysis-conf (get analysis-confs field)]
+                        [field (compile-field (dictionary/get-string-analyzer analysis-conf custom-analyzers)
+                                              patterns)])))
+              patterns-per-field)))))
+
+(defn- add-hit! [^Map hits registration-index query-id start end]
+  (let [^List query-hits (or (.get hits registration-index)
+                             (let [l (ArrayList.)]
+                               (.put hits registration-index l)
+                               l))]
+    (when (.isEmpty query-hits)
+      (.add query-hits query-id))
+    (.add query-hits start)
+    (.add query-hits end)))
+
+(defn- match-field!
+  "Adds hits of the text in the field to the map of registration index to [query-id start end ...].
+  Returns false when the tokens are stacked and the text must be matched by the Monitor."
+  [field {:keys [^Analyzer analyzer ^HashMap vocabulary ^HashMap edges ^ints fail ^ints output-link
+                 ^objects terminals ^ints lengths ^objects query-ids]} ^String text ^Map hits]
+  (with-open [^TokenStream token-stream (.tokenStream analyzer ^String field text)]
+    (let [term-attr (.addAttribute token-stream TermToBytesRefAttribute)
+          offset-attr (.addAttribute token-stream OffsetAttribute)
+          position-attr (.addAttribute token-stream PositionIncrementAttribute)
+          position-length-attr (.addAttribute token-stream PositionLengthAttribute)
+          starts (ArrayList.)]
+      (.reset token-stream)
+      (let [matchable? (loop [state 0
+                              i 0]
+                         (if (.incrementToken token-stream)
+                           (let [position-increment (.getPositionIncrement ^PositionIncrementAttribute position-attr)]
+                             (if (or (and (< 0 i) (zero? position-increment))
+                                     (not= 1 (.getPositionLength ^PositionLengthAttribute position-length-attr)))
+                               false
+                               (let [start (.startOffset ^OffsetAttribute offset-attr)
+                                     end (.endOffset ^OffsetAttribute offset-attr)
+                                     ; a gap breaks the phrases
+                                     state (if (< 1 position-increment) 0 state)
+                                     token (if-let [^Integer id (.get vocabulary (.getBytesRef ^TermToBytesRefAttribute term-attr))]
+                                             (.longValue id)
+                                             -1)
+                                     state (if (neg? token)
+                                             0
+                                             (loop [s state]
+                                               (if-let [^Integer next-state (.get edges (edge-key s token))]
+                                                 (.longValue next-state)
+                                                 (if (zero? s) 0 (recur (long (aget fail s)))))))]
+                                 (.add starts start)
+                                 (loop [s (if (aget terminals state) state (long (aget output-link state)))]
+                                   (when (<= 0 s)
+                                     (doseq [pattern-index (aget terminals s)]
+                                       (let [first-token (inc (- i (aget lengths pattern-index)))]
+                                         (doseq [[registration-index query-id] (aget query-ids pattern-index)]
+                                           (add-hit! hits registration-index query-id
+                                                     (.get starts (int first-token)) end))))
+                                     (recur (long (aget output-link s)))))
+                                 (recur state (inc i)))))
+                           (do (.end token-stream) true)))]
+        matchable?))))
+
+(defn match-hits
+  "Map of query id to the hits as [start end start end ...] offsets, unordered like the
+  matches of the Monitor. Nil when the text must be matched by the Monitor."
+  [automaton ^String text]
+  (let [hits (HashMap.)]
+    (when (every? (fn [[field field-automaton]] (match-field! field field-automaton text hits)) automaton)
+      (let [result (HashMap.)]
+        (doseq [^List query-hits (.values hits)]
+          (let [offsets (long-array (dec (.size query-hits)))]
+            (dotimes [j (alength offsets)]
+              (aset offsets j (long (.get query-hits (inc j)))))
+            (.put result (.get query-hits 0) offsets)))
+        result))))
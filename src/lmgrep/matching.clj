@@ -1,20 +1,29 @@
 (ns lmgrep.matching
   (:require [jsonista.core :as json]
             [lmgrep.formatter :as formatter]
-            [lmgrep.lucene :as lucene])
-  (:import (lmgrep.lucene LuceneMonitorMatcher)))
+            [lmgrep.json-output :as json-output]
+            [lmgrep.line-cache :as line-cache]
+            [lmgrep.lucene :as lucene]
+            [lmgrep.lucene.similarity :as similarity]
+            [lmgrep.stats :as stats])
+  (:import (com.fasterxml.jackson.core JsonGenerator)
+           (java.io OutputStream)
+           (lmgrep.lucene LuceneMonitorMatcher)))
 
 (defn sum-score [highlights]
   (when-let [scores (seq (remove nil? (map :score highlights)))]
     (reduce + scores)))
 
-(defn matcher-fn [^LuceneMonitorMatcher highlighter-obj file-path options]
-  (let [highlight-opts (select-keys options [:with-score :with-scored-highlights])
-        with-details? (get options :with-details)
+(defn output-fn
+  "Returns a function that given line number, line, and highlights
+  returns the output string or nil when there are no highlights."
+  [file-path options]
+  (let [with-details? (get options :with-details)
         format (get options :format)
-        scored? (or (get options :with-score) (get options :with-scored-highlights))]
-    (fn [line-nr line]
-      (when-let [highlights (seq (lucene/match highlighter-obj line highlight-opts))]
+        scored? (or (get options :with-score) (get options :with-scored-highlights))
+        string-output (formatter/string-output-fn options)]
+    (fn [line-nr line highlights]
+      (when (seq highlights)
         (let [details (cond-> {:line-number line-nr
                                :line        line}
                               file-path (assoc :file file-path)
@@ -23,5 +32,132 @@
           (case format
             :edn (pr-str details)
             :json (json/write-value-as-string details)
-            :string (formatter/string-output highlights details options)
-            (formatter/string-output highlights details options)))))))
+            :string (string-output highlights details)
+            (string-output highlights details)))))))
+
+(defn- json-details-writer
+  "Returns a function that writes the details of the line with the generator,
+  the same fields in the same order as `output-fn` puts into the details map."
+  [file-path options]
+  (let [with-details? (get options :with-details)
+        scored? (or (get options :with-score) (get options :with-scored-highlights))]
+    (fn [^JsonGenerator generator line-nr ^String line highlights]
+      (.writeStartObject generator)
+      (.writeFieldName generator "line-number")
+      (.writeObject generator line-nr)
+      (.writeStringField generator "line" line)
+      (when file-path
+        (.writeStringField generator "file" file-path))
+      (when (true? scored?)
+        (.writeFieldName generator "score")
+        (.writeObject generator (sum-score highlights)))
+      (when (true? with-details?)
+        (.writeFieldName generator "highlights")
+        (.writeObject generator highlights))
+      (.writeEndObject generator))))
+
+(defn json-bytes-output-fn
+  "Returns a function that given line number, line, and highlights returns the
+  `--format json` output line as bytes (see `lmgrep.json-output`) or nil when there are no highlights."
+  [file-path options]
+  (let [write-details (json-details-writer file-path options)]
+    (fn [line-nr line highlights]
+      (when (seq highlights)
+        (json-output/encode (fn [generator buffer]
+                              (write-details generator line-nr line highlights)
+                              (json-output/end-line! generator buffer)))))))
+
+(defn- json-bytes-outputs-fn
+  "Returns a function that encodes the output lines of a batch into one byte array,
+  lines without highlights are empty lines with :with-empty-lines."
+  [file-path options]
+  (let [write-details (json-details-writer file-path options)
+        with-empty-lines (get options :with-empty-lines)]
+    (fn [^long first-line-nr lines highlights-per-line]
+      [(json-output/encode (fn [generator ^OutputStream buffer]
+                             (loop [i 0
+                                    highlights-per-line (seq highlights-per-line)]
+                               (when highlights-per-line
+                                 (let [highlights (first highlights-per-line)]
+                                   (cond
+                                     (seq highlights)
+                                     (do (write-details generator (+ first-line-nr i) (nth lines i) highlights)
+                                         (json-output/end-line! generator buffer))
+                                     with-empty-lines
+                                     (.write buffer json-output/LINE_SEPARATOR)))
+                                 (recur (inc i) (next highlights-per-line))))))])))
+
+(defn bytes-output?
+  "Output lines are encoded as bytes by the matchers, see `lmgrep.json-output`."
+  [options]
+  (boolean (get options :lmgrep.json-output/bytes)))
+
+(defn highlight-opts
+  "Match options for the output options. When the output needs only the highlight offsets
+  matches are collected as offsets without building a map per highlight."
+  [options]
+  (cond-> (-> (select-keys options [:with-score :with-scored-highlights :lmgrep.lucene.profiler/profiler])
+              (similarity/with-similarity (similarity/create options)))
+          (not (or (true? (get options :with-details))
+                   (get options :with-score)
+                   (get options :with-scored-highlights)))
+          (assoc :offsets-only true)))
+
+(defn- line-matcher
+  "Function of a line to its highlights, repeated lines come from the line cache when there is one."
+  [highlighter-obj highlight-opts options]
+  (if-let [cache (line-cache/cache-of options)]
+    (fn [line] (line-cache/lookup cache line (fn [] (lucene/match highlighter-obj line highlight-opts))))
+    (fn [line] (lucene/match highlighter-obj line highlight-opts))))
+
+(defn- batch-matcher
+  "Function of lines to their highlights, repeated lines come from the line cache when there is one."
+  [highlighter-obj highlight-opts options]
+  (if-let [cache (line-cache/cache-of options)]
+    (fn [lines] (line-cache/lookup-batch cache lines (fn [lines] (lucene/match-batch highlighter-obj lines highlight-opts))))
+    (fn [lines] (lucene/match-batch highlighter-obj lines highlight-opts))))
+
+(defn matcher-fn [^LuceneMonitorMatcher highlighter-obj file-path options]
+  (let [highlight-opts (highlight-opts options)
+        match (line-matcher highlighter-obj highlight-opts options)
+        output (if (bytes-output? options)
+                 (json-bytes-output-fn file-path options)
+                 (output-fn file-path options))]
+    (if-let [recorder (stats/recorder-of options)]
+      (fn [line-nr line]
+        (let [start (System/nanoTime)
+              highlights (match line)
+              matched (System/nanoTime)
+              out-str (output line-nr line highlights)]
+          (stats/record-match! recorder 1 (if out-str 1 0) (- matched start) (- (System/nanoTime) matched))
+          out-str))
+      (fn [line-nr line]
+        (output line-nr line (match line))))))
+
+(defn batch-matcher-fn
+  "Returns a function that given the line number of the first line and a vector of lines
+  matches all the lines with one Monitor call and returns a vector of output strings
+  (nil when a line has no matches). With bytes output the vector has one byte array
+  with all the output lines."
+  [^LuceneMonitorMatcher highlighter-obj file-path options]
+  (let [highlight-opts (highlight-opts options)
+        match-batch (batch-matcher highlighter-obj highlight-opts options)
+        output (output-fn file-path options)
+        outputs (if (bytes-output? options)
+                  (json-bytes-outputs-fn file-path options)
+                  (fn [^long first-line-nr lines highlights-per-line]
+                    (into []
+                          (map-indexed (fn [i highlights]
+                                         (output (+ first-line-nr i) (nth lines i) highlights)))
+                          highlights-per-line)))]
+    (if-let [recorder (stats/recorder-of options)]
+      (fn [^long first-line-nr lines]
+        (let [start (System/nanoTime)
+              highlights-per-line (match-batch lines)
+              matched (System/nanoTime)
+              out-strs (outputs first-line-nr lines highlights-per-line)]
+          (stats/record-match! recorder (count lines) (count (filter seq highlights-per-line))
+                               (- matched start) (- (System/nanoTime) matched))
+          out-strs))
+      (fn [^long first-line-nr lines]
+        (outputs first-line-nr lines (match-batch lines))))))
@@ -0,0 +1,61 @@
+(ns lmgrep.micro-batch
+  "Lines are grouped into micro-batches that are processed as one worker task, so that short
+  lines don't pay for a queue handoff and a task each. The number of lines of a micro-batch
+  follows the observed processing time per line: a micro-batch takes about TARGET_TASK_NANOS,
+  up to :micro-batch-max-lines lines and :micro-batch-max-bytes characters.
+  Lines of a micro-batch are processed one by one on the same thread, so the per-thread state
+  (e.g. output buffers) is reused across the micro-batch."
+  (:import (java.io BufferedReader)
+           (java.util.concurrent.atomic AtomicLong)))
+
+(set! *warn-on-reflection* true)
+
+(def TARGET_TASK_NANOS 200000)
+(def DEFAULT_MAX_LINES 1024)
+(def DEFAULT_MAX_BYTES 1048576)
+
+(defn sizer
+  "Sizer of micro-batches, starts with single line micro-batches."
+  [options]
+  {:nanos-per-line (AtomicLong. TARGET_TASK_NANOS)
+   :max-lines      (long (get options :micro-batch-max-lines DEFAULT_MAX_LINES))
+   :max-bytes      (long (get options :micro-batch-max-bytes DEFAULT_MAX_BYTES))})
+
+(defn batch-lines
+  "Number of lines of the next micro-batch."
+  ^long [{:keys [^AtomicLong nanos-per-line max-lines]}]
+  (max 1 (min (long max-lines) (quot (long TARGET_TASK_NANOS) (max 1 (.get nanos-per-line))))))
+
+(defn record!
+  "Updates the moving average of the processing time per line (weight of the sample 1/8).
+  Concurrent updates might overwrite each other, the average is only an estimate."
+  [{:keys [^AtomicLong nanos-per-line]} ^long line-count ^long nanos]
+  (when (pos? line-count)
+    (let [average (.get nanos-per-line)]
+      (.set nanos-per-line (+ average (quot (- (quot nanos line-count) average) 8))))))
+
+(defn read-batch
+  "Reads the lines of the next micro-batch from the reader.
+  Returns nil when the reader is exhausted."
+  [^BufferedReader rdr {:keys [max-bytes] :as sizer}]
+  (let [max-lines (batch-lines sizer)
+        max-bytes (long max-bytes)]
+    (loop [lines (transient [])
+           i 0
+           chars 0]
+      (if (and (< i max-lines) (< chars max-bytes))
+        (if-let [line (.readLine rdr)]
+          (recur (conj! lines line) (inc i) (+ chars (.length ^String line)))
+          (let [lines (persistent! lines)]
+            (when (seq lines) lines)))
+        (persistent! lines)))))
+
+(defn batch-fn
+  "Function of the line number of the first line and the lines of a micro-batch to the vector
+  of the outputs of line-fn, the processing time is recorded in the sizer."
+  [sizer line-fn]
+  (fn [^long first-line-nr lines]
+    (let [start (System/nanoTime)
+          outs (into [] (map-indexed (fn [i line] (line-fn (+ first-line-nr i) line))) lines)]
+      (record! sizer (count lines) (- (System/nanoTime) start))
+      outs)))
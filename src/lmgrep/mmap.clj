@@ -0,0 +1,179 @@
+(ns lmgrep.mmap
+  "Memory-mapped input: a file is split into newline-aligned byte ranges
+  that can be decoded into lines independently of each other. Mapped files
+  are decoded as UTF-8, so they are used only when UTF-8 is the platform charset
+  that the readers of the other files use."
+  (:import (java.nio ByteBuffer ByteOrder)
+           (java.nio.channels FileChannel FileChannel$MapMode)
+           (java.nio.charset Charset StandardCharsets)
+           (java.nio.file OpenOption Path StandardOpenOption)))
+
+(set! *warn-on-reflection* true)
+
+(def ^:const NEWLINE 10)
+(def ^:const CARRIAGE_RETURN 13)
+
+; Every byte of the word set to the newline byte, 0x0A0A0A0A0A0A0A0A
+(def ^:const NEWLINES 723401728380766730)
+; 0x0D0D0D0D0D0D0D0D
+(def ^:const CARRIAGE_RETURNS 940422246894996749)
+; 0x0101010101010101
+(def ^:const LOW_BITS 72340172838076673)
+; 0x8080808080808080, high bit of every byte, non-zero only for non-ASCII bytes
+(def ^:const HIGH_BITS -9187201950435737472)
+
+(def DEFAULT_CHUNK_SIZE (* 16 1024 1024))
+
+(defn supported-charset?
+  "Whether mapped files decode the same as the readers of the platform charset."
+  []
+  (= StandardCharsets/UTF_8 (Charset/defaultCharset)))
+
+(defn open-channel ^FileChannel [^String path]
+  (FileChannel/open (Path/of path (make-array String 0))
+                    ^"[Ljava.nio.file.OpenOption;" (into-array OpenOption [StandardOpenOption/READ])))
+
+(defn map-range
+  "Maps [start, end) bytes of the file. Mapped buffer is valid after the channel is closed."
+  ^ByteBuffer [^FileChannel channel ^long start ^long end]
+  (.order (.map channel FileChannel$MapMode/READ_ONLY start (- end start))
+          ByteOrder/LITTLE_ENDIAN))
+
+(defn next-line-start
+  "Position right after the first newline at or after the position,
+  or size when there are no more newlines."
+  ^long [^FileChannel channel ^long position ^long size]
+  (let [buf (ByteBuffer/allocate 8192)]
+    (loop [pos position]
+      (if (< pos size)
+        (let [n (.read channel (doto buf (.clear)) pos)]
+          (if (pos? n)
+            (let [i (loop [i 0]
+                      (cond
+                        (<= n i) -1
+                        (== NEWLINE (.get buf (int i))) i
+                        :else (recur (inc i))))]
+              (if (neg? i)
+                (recur (+ pos n))
+                (+ pos i 1)))
+            size))
+        size))))
+
+(defn newline-aligned-ranges
+  "Splits the file into [start end] byte ranges of roughly chunk-size bytes.
+  Every range except the last one ends right after a newline."
+  [^FileChannel channel ^long chunk-size]
+  (let [size (.size channel)]
+    (loop [start 0
+           ranges (transient [])]
+      (if (< start size)
+        (let [end (next-line-start channel (min size (+ start (max 1 chunk-size) -1)) size)]
+          (recur end (conj! ranges [start end])))
+        (persistent! ranges)))))
+
+(defn mappable?
+  "Whether the [start end] range fits into one mapped buffer, i.e. it is at most 2 GiB."
+  [[start end]]
+  (<= (- (long end) (long start)) Integer/MAX_VALUE))
+
+(defn- byte-mask
+  "Non-zero bytes mark the bytes of the word that are equal to the bytes of the pattern.
+  The lowest marked byte is exact, the ones above it might be false positives."
+  ^long [^long word ^long pattern]
+  (let [x (bit-xor word pattern)]
+    (bit-and (unchecked-subtract x LOW_BITS) (bit-not x) HIGH_BITS)))
+
+(defn- newline-mask ^long [^long word]
+  (byte-mask word NEWLINES))
+
+(defn- line-break?
+  "Whether the byte at i terminates a line: `\\n` or `\\r` that is not followed by `\\n`."
+  [^ByteBuffer buf ^long i ^long limit]
+  (let [b (.get buf (int i))]
+    (or (== NEWLINE b)
+        (and (== CARRIAGE_RETURN b)
+             (or (== (inc i) limit)
+                 (not (== NEWLINE (.get buf (int (inc i))))))))))
+
+(defn count-line-breaks
+  "Counts line terminators in the buffer 8 bytes at a time, the same ones as `lines`."
+  ^long [^ByteBuffer buf]
+  (let [limit (.limit buf)]
+    (loop [i 0
+           cnt 0]
+      (if (<= (+ i 8) limit)
+        (let [word (.getLong buf (int i))
+              mask (bit-or (newline-mask word) (byte-mask word CARRIAGE_RETURNS))]
+          (if (zero? mask)
+            (recur (+ i 8) cnt)
+            ; continue right after the first newline or carriage return of the word
+            (let [pos (+ i (quot (Long/numberOfTrailingZeros mask) 8))]
+              (recur (inc pos) (if (line-break? buf pos limit) (inc cnt) cnt)))))
+        (if (< i limit)
+          (recur (inc i) (if (line-break? buf i limit) (inc cnt) cnt))
+          cnt)))))
+
+(def ^:private SCRATCH_SIZE 8192)
+
+(defn- decode
+  "Decodes bytes [start, end) into a string, trailing `\\r` is dropped."
+  ^String [^ByteBuffer buf start end ascii? ^bytes scratch]
+  (let [start (int start)
+        end (int end)
+        end (if (and (< start end) (== CARRIAGE_RETURN (.get buf (int (dec end)))))
+              (dec end)
+              end)
+        len (int (- end start))
+        ^bytes dst (if (< (alength scratch) len) (byte-array len) scratch)]
+    (.get buf start dst 0 len)
+    (if ascii?
+      ; every byte is a char, no decoding needed
+      (String. dst 0 len StandardCharsets/ISO_8859_1)
+      (String. dst 0 len StandardCharsets/UTF_8))))
+
+(defn- conj-lines!
+  "Adds the decoded line to the lines, a line with a `\\r` is split at every `\\r`."
+  [lines ^String line]
+  (if (neg? (.indexOf line (int CARRIAGE_RETURN)))
+    (conj! lines line)
+    (reduce conj! lines (.split line "\r" -1))))
+
+(defn lines
+  "Decodes the buffer into a vector of lines as UTF-8 with the same line semantics as
+  BufferedReader: `\\n`, `\\r\\n` and `\\r` terminate lines, the trailing line without a
+  terminator is included. Newlines are found 8 bytes at a time and lines that
+  contain only ASCII bytes are turned into strings without decoding."
+  [^ByteBuffer buf]
+  (let [limit (.limit buf)
+        scratch (byte-array SCRATCH_SIZE)]
+    (loop [i 0
+           line-start 0
+           ascii? true
+           acc (transient [])]
+      (if (<= (+ i 8) limit)
+        (let [word (.getLong buf (int i))
+              mask (newline-mask word)]
+          (if (zero? mask)
+            (recur (+ i 8) line-start (and ascii? (zero? (bit-and word HIGH_BITS))) acc)
+            (let [k (quot (Long/numberOfTrailingZeros mask) 8)
+                  ; only the bytes before the newline belong to the line
+                  before-newline (bit-and word HIGH_BITS (unchecked-dec (bit-shift-left 1 (* 8 k))))
+                  nl (+ i k)]
+              (recur (inc nl) (inc nl) true
+                     (conj-lines! acc (decode buf line-start nl (and ascii? (zero? before-newline)) scratch))))))
+        (if (< i limit)
+          (let [b (.get buf (int i))]
+            (if (== NEWLINE b)
+              (recur (inc i) (inc i) true (conj-lines! acc (decode buf line-start i ascii? scratch)))
+              (recur (inc i) line-start (and ascii? (<= 0 b)) acc)))
+          (persistent! (if (< line-start limit)
+                         (conj-lines! acc (decode buf line-start limit ascii? scratch))
+                         acc)))))))
+
+(comment
+  (with-open [channel (open-channel "README.md")]
+    (let [ranges (newline-aligned-ranges channel 1024)
+          buffers (mapv (fn [[start end]] (map-range channel start end)) ranges)]
+      [(count ranges)
+       (reduce + (map count-line-breaks buffers))
+       (take 3 (lines (first buffers)))])))
@@ -0,0 +1,175 @@
+(ns lmgrep.no-split
+  "--no-split: a file (or STDIN) is one document that is streamed through the matcher in
+  overlapping windows of characters, so the memory doesn't grow with the size of the file.
+  Window boundaries are moved to whitespace so that tokens are not cut. Every window owns
+  the part of its text that starts half of the overlap after the previous window's part
+  ended, and only the matches that begin in the owned part are kept: a match is reported
+  by exactly one window, and every match that is at most half of the overlap long fits into
+  the window that owns its beginning, e.g. phrase and span queries across window boundaries.
+  The owned parts of the windows, one after another, are the whole file. A part with
+  matches is written as one output (not one per file) with the line number of its first line.
+  Offsets of the highlights are relative to the part, the details also have the character
+  offsets in the file."
+  (:require [lmgrep.concurrent :as c]
+            [lmgrep.lucene :as lucene]
+            [lmgrep.matching :as matching]
+            [lmgrep.print :as print]
+            [lmgrep.reorder :as reorder]
+            [lmgrep.stats :as stats])
+  (:import (java.io BufferedReader BufferedWriter FileReader PrintWriter Reader)
+           (java.util.concurrent ExecutorService)))
+
+(set! *warn-on-reflection* true)
+
+(def DEFAULT_WINDOW_SIZE 65536)
+(def DEFAULT_WINDOW_OVERLAP 4096)
+
+(def ^:private long-array-class (class (long-array 0)))
+
+(defn enabled? [options]
+  (false? (get options :split)))
+
+(defn- fill!
+  "Reads into the buffer after the first filled chars until it is full or the reader is exhausted.
+  Returns the number of chars in the buffer."
+  ^long [^Reader rdr ^chars buf ^long filled]
+  (loop [filled filled]
+    (if (< filled (alength buf))
+      (let [n (.read rdr buf (int filled) (int (- (alength buf) filled)))]
+        (if (neg? n) filled (recur (+ filled n))))
+      filled)))
+
+(defn- after-whitespace
+  "Position after the last whitespace char in [from, to) of the buffer, to when there is none."
+  ^long [^chars buf ^long from ^long to]
+  (loop [i (dec to)]
+    (cond
+      (< i from) to
+      (Character/isWhitespace (aget buf i)) (inc i)
+      :else (recur (dec i)))))
+
+(defn read-windows!
+  "Reads the reader in windows of size chars that overlap by overlap chars and calls (f window)
+  for every window in order, where window is {:text :offset :from :to}: the text of the window,
+  the file offset of the text and the [from, to) part of the text that the window owns."
+  [^Reader rdr size overlap f]
+  (let [size (long size)
+        half (quot (min (long overlap) (quot size 2)) 2)
+        buf (char-array size)]
+    (loop [offset 0
+           filled 0
+           from 0]
+      (let [filled (fill! rdr buf filled)
+            eof? (< filled size)
+            end (if eof? filled (after-whitespace buf (- size half) size))
+            to (if eof? filled (- end half))]
+        (when (< from to)
+          (f {:text (String. buf 0 (int end)) :offset offset :from from :to to}))
+        (when-not eof?
+          ; the next window starts at a token boundary before the end of the owned part
+          (let [start (after-whitespace buf (- to half) to)
+                remaining (- filled start)]
+            (System/arraycopy buf (int start) buf 0 (int remaining))
+            (recur (+ offset start) remaining (- to start))))))))
+
+(defn- count-newlines ^long [^String s]
+  (loop [i (.indexOf s (int 10))
+         n 0]
+    (if (neg? i) n (recur (.indexOf s (int 10) (int (inc i))) (inc n)))))
+
+(defn- translate
+  "Highlights that begin in [from, to) of the window text with the offsets relative to from,
+  the end offsets are clipped to to. Highlight maps also get the offsets in the file, where
+  the window text starts at offset. Highlights without offsets are kept as is."
+  [highlights from to offset]
+  (let [from (long from)
+        to (long to)
+        offset (long offset)
+        owned? (fn [begin] (and (<= from (long begin)) (< (long begin) to)))
+        relative-end (fn [end] (- (min (long end) to) from))]
+    (if (instance? long-array-class highlights)
+      (let [^longs offsets highlights]
+        (long-array
+          (loop [i 0
+                 kept (transient [])]
+            (if (< i (alength offsets))
+              (let [begin (aget offsets i)]
+                (recur (+ i 2) (if (owned? begin)
+                                 (-> kept (conj! (- begin from)) (conj! (relative-end (aget offsets (inc i)))))
+                                 kept)))
+              (persistent! kept)))))
+      (into []
+            (keep (fn [{:keys [begin-offset end-offset] :as highlight}]
+                    (cond
+                      (nil? begin-offset) highlight
+                      (owned? begin-offset) (assoc highlight
+                                              :begin-offset (- (long begin-offset) from)
+                                              :end-offset (relative-end end-offset)
+                                              :file-begin-offset (+ (long begin-offset) offset)
+                                              :file-end-offset (+ (long end-offset) offset)))))
+            highlights))))
+
+(defn- window-matcher
+  "Function of a window and the line number of its owned part to the output of the owned part,
+  nil when no match begins in it."
+  [highlighter path options]
+  (let [opts (matching/highlight-opts options)
+        output (matching/output-fn path options)
+        recorder (stats/recorder-of options)]
+    (fn [{:keys [^String text offset from to]} line-nr]
+      (let [start (System/nanoTime)
+            highlights (lucene/match highlighter text opts)
+            matched (System/nanoTime)
+            out (output line-nr (subs text from to) (translate highlights from to offset))]
+        (when recorder
+          (stats/record-match! recorder 1 (if out 1 0) (- matched start) (- (System/nanoTime) matched)))
+        out))))
+
+(defn consume-reader
+  "Reads the windows of the reader and matches them on the executor, outputs go in order
+  through the reorder buffer. Lines are counted in the owned parts of the windows."
+  [reader window-matcher size overlap ^ExecutorService matcher-thread-pool-executor ordered-output]
+  (with-open [^Reader rdr reader]
+    (let [newlines (volatile! 0)]
+      (read-windows! rdr size overlap
+                     (fn [{:keys [^String text from to] :as window}]
+                       (let [line-nr (inc (long @newlines))]
+                         (vswap! newlines + (count-newlines (subs text from to)))
+                         (reorder/submit! ordered-output matcher-thread-pool-executor
+                                          (fn [] (window-matcher window line-nr)))))))))
+
+(defn grep [file-paths-to-analyze highlighter options]
+  (let [recorder (stats/recorder options)
+        options (stats/with-recorder options recorder)
+        reader-buffer-size (get options :reader-buffer-size 8192)
+        print-writer-buffer-size (get options :writer-buffer-size 8192)
+        concurrency (get options :concurrency (.availableProcessors (Runtime/getRuntime)))
+        queue-size (get options :queue-size 1024)
+        window-size (get options :no-split-window-size DEFAULT_WINDOW_SIZE)
+        window-overlap (get options :no-split-window-overlap DEFAULT_WINDOW_OVERLAP)
+        ^PrintWriter writer (stats/timed-writer recorder
+                                                (PrintWriter. (BufferedWriter. *out* print-writer-buffer-size)
+                                                              ^Boolean (empty? file-paths-to-analyze)))
+        ^ExecutorService matcher-thread-pool-executor (c/thread-pool-executor
+                                                        concurrency queue-size
+                                                        (when recorder (stats/caller-runs-counter recorder)))
+        ; windows in flight are bounded by the reorder window, so the memory stays constant
+        ordered-output (reorder/create (* 2 concurrency)
+                                       (fn [out] (when out (print/to-writer writer out))))]
+    (stats/watch-executor! recorder "matcher" matcher-thread-pool-executor)
+    (stats/start! recorder)
+    (doseq [^String path (if (empty? file-paths-to-analyze)
+                           [nil]                            ;; STDIN is an input
+                           file-paths-to-analyze)]
+      (consume-reader (if path
+                        (BufferedReader. (FileReader. path) reader-buffer-size)
+                        (BufferedReader. *in* reader-buffer-size))
+                      (window-matcher highlighter path options)
+                      window-size
+                      window-overlap
+                      matcher-thread-pool-executor
+                      ordered-output))
+    (c/shutdown-thread-pool-executors matcher-thread-pool-executor)
+    (reorder/await-drained! ordered-output)
+    (.flush writer)
+    (stats/finish! recorder)))
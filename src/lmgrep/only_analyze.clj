@@ -3,10 +3,13 @@
             [lmgrep.analysis :as analysis]
             [lmgrep.concurrent :as c]
             [lmgrep.fs :as fs]
+            [lmgrep.json-output :as json-output]
+            [lmgrep.micro-batch :as micro-batch]
             [lmgrep.print :as print]
+            [lmgrep.reorder :as reorder]
             [lmgrep.lucene.analyzer :as analyzer]
             [lucene.custom.text-analysis :as text-analysis])
-  (:import (java.io BufferedReader PrintWriter BufferedWriter FileReader)
+  (:import (java.io BufferedReader Flushable OutputStream PrintWriter BufferedWriter FileReader)
            (org.apache.lucene.analysis Analyzer)
            (java.util.concurrent ExecutorService)))
 
@@ -29,42 +32,69 @@
                      (BufferedReader. *in* reader-buffer-size))]
         (analyze-to-graph reader writer analyzer)))))
 
+(defn- output-writer
+  "Returns a function that encodes the tokens of a line and one that writes the encoded line.
+  Tokens are encoded straight into bytes when the writer is an OutputStream, see `lmgrep.json-output`."
+  [writer]
+  (if (instance? OutputStream writer)
+    [json-output/encode-line (fn [^bytes out] (.write ^OutputStream writer out))]
+    [json/write-value-as-string (fn [^String out-str] (print/to-writer writer out-str))]))
+
 (defn unordered-analysis
   "Reads strings from the reader line by line, processes each line on an ExecutorService
    thread pool then sends the lines to another single thread ExecutorService for writing
    the output lines to a writer.
    When the input is consumed the text analysis thread pool is gracefully shut down.
    Then the writer thread pool is gracefully shut down."
-  [reader ^PrintWriter writer analysis-fn analyzer
+  [reader writer analysis-fn analyzer
    ^ExecutorService analyzer-thread-pool-executor
    ^ExecutorService writer-thread-pool-executor]
-  (with-open [^BufferedReader rdr reader]
-    (loop [^String line (.readLine rdr)]
-      (when-not (nil? line)
-        (.execute analyzer-thread-pool-executor
-                  ^Runnable (fn []
-                              (let [out-str (json/write-value-as-string
-                                              (analysis-fn line analyzer))]
-                                (.execute writer-thread-pool-executor
-                                          ^Runnable (fn [] (print/to-writer writer out-str))))))
-        (recur (.readLine rdr))))))
+  (let [[encode write!] (output-writer writer)]
+    (with-open [^BufferedReader rdr reader]
+      (loop [^String line (.readLine rdr)]
+        (when-not (nil? line)
+          (.execute analyzer-thread-pool-executor
+                    ^Runnable (fn []
+                                (let [out (encode (analysis-fn line analyzer))]
+                                  (.execute writer-thread-pool-executor
+                                            ^Runnable (fn [] (write! out))))))
+          (recur (.readLine rdr)))))))
 
 (defn ordered-analysis
-  [reader ^PrintWriter writer analysis-fn analyzer
+  "Like `unordered-analysis` but the output lines are written in the order of the input lines
+  through the ordered-output reorder buffer, see `lmgrep.reorder`."
+  [reader encode analysis-fn analyzer
    ^ExecutorService analyzer-thread-pool-executor
-   ^ExecutorService writer-thread-pool-executor]
+   ordered-output]
   (with-open [^BufferedReader rdr reader]
     (loop [^String line (.readLine rdr)]
       (when-not (nil? line)
-        (let [f (.submit analyzer-thread-pool-executor
-                         ^Callable (fn []
-                                     (json/write-value-as-string
-                                       (analysis-fn line analyzer))))]
-          (.execute writer-thread-pool-executor
-                    ^Runnable (fn [] (print/to-writer writer (.get f)))))
+        (reorder/submit! ordered-output analyzer-thread-pool-executor
+                         (fn [] (encode (analysis-fn line analyzer))))
         (recur (.readLine rdr))))))
 
-(defn execute-analysis [files-to-analyze ^PrintWriter writer analyzer options]
+(defn micro-batched-analysis
+  "Like `ordered-analysis` when the ordered-output is given, otherwise like `unordered-analysis`,
+  but lines are analyzed in micro-batches, see `lmgrep.micro-batch`."
+  [reader encode analysis-fn analyzer sizer
+   ^ExecutorService analyzer-thread-pool-executor
+   ordered-output
+   ^ExecutorService writer-thread-pool-executor
+   write!]
+  (let [batch-fn (micro-batch/batch-fn sizer (fn [_ line] (encode (analysis-fn line analyzer))))]
+    (with-open [^BufferedReader rdr reader]
+      (loop [lines (micro-batch/read-batch rdr sizer)]
+        (when-not (nil? lines)
+          (if ordered-output
+            (reorder/submit! ordered-output analyzer-thread-pool-executor (fn [] (batch-fn 1 lines)))
+            (.execute analyzer-thread-pool-executor
+                      ^Runnable (fn []
+                                  (let [outs (batch-fn 1 lines)]
+                                    (.execute writer-thread-pool-executor
+                                              ^Runnable (fn [] (run! write! outs)))))))
+          (recur (micro-batch/read-batch rdr sizer)))))))
+
+(defn execute-analysis [files-to-analyze ^Flushable writer analyzer options]
   (let [preserve-order? (get options :preserve-order true)
         analysis-fn (if (get options :explain)
                       text-analysis/text->tokens
@@ -73,17 +103,33 @@
         queue-size (get options :queue-size 1024)
         concurrency (get options :concurrency (.availableProcessors (Runtime/getRuntime)))
         ^ExecutorService analyzer-thread-pool-executor (c/thread-pool-executor concurrency queue-size)
-        ^ExecutorService writer-thread-pool-executor (c/single-thread-executor)]
+        ^ExecutorService writer-thread-pool-executor (c/single-thread-executor)
+        [encode write!] (output-writer writer)
+        ordered-output (when preserve-order?
+                         (reorder/create (get options :reorder-window reorder/DEFAULT_WINDOW)
+                                         (fn [out]
+                                           (cond
+                                             (sequential? out) (run! write! out)
+                                             ; nil when the analysis failed
+                                             out (write! out)))))
+        sizer (when (get options :micro-batching) (micro-batch/sizer options))]
     (doseq [^String path files-to-analyze]
       (let [reader (if path
                      (BufferedReader. (FileReader. path) reader-buffer-size)
                      (BufferedReader. *in* reader-buffer-size))]
-        (if preserve-order?
-          (ordered-analysis reader writer analysis-fn analyzer
-                            analyzer-thread-pool-executor writer-thread-pool-executor)
+        (cond
+          sizer
+          (micro-batched-analysis reader encode analysis-fn analyzer sizer
+                                  analyzer-thread-pool-executor ordered-output
+                                  writer-thread-pool-executor write!)
+          preserve-order?
+          (ordered-analysis reader encode analysis-fn analyzer
+                            analyzer-thread-pool-executor ordered-output)
+          :else
           (unordered-analysis reader writer analysis-fn analyzer
                               analyzer-thread-pool-executor writer-thread-pool-executor))))
     (c/shutdown-thread-pool-executors analyzer-thread-pool-executor writer-thread-pool-executor)
+    (when ordered-output (reorder/await-drained! ordered-output))
     (.flush writer)))
 
 (defn analyze-lines
@@ -97,22 +143,28 @@
   - :explain should the token have the positional and other information.
   - :graph output would be a valid GraphViz.
   - :preserve-order should the output preserve the order of the input.
+  - :micro-batching should lines be analyzed in micro-batches.
   - :reader-buffer-size in bytes.
   - :writer-buffer-size in bytes."
   [files-pattern files options]
   (let [print-writer-buffer-size (get options :writer-buffer-size 8192)
         analysis-conf (assoc (get options :analysis) :config-dir (get options :config-dir))
         files-to-analyze (if files-pattern
-                           (into (fs/get-files files-pattern options)
-                                 (fs/filter-files files))
+                           (concat (fs/stream-files files-pattern options)
+                                   (fs/filter-files files))
                            [nil])
         custom-analyzers (analysis/prepare-analyzers (get options :analyzers-file) options)
         ^Analyzer analyzer (analyzer/create analysis-conf custom-analyzers)
-        ^PrintWriter writer (PrintWriter. (BufferedWriter. *out* print-writer-buffer-size)
-                                          ^Boolean (empty? files-pattern))]
+        print-writer (fn [] (PrintWriter. (BufferedWriter. *out* print-writer-buffer-size)
+                                         ^Boolean (empty? files-pattern)))]
     (if (get options :graph)
-      (graph files-to-analyze writer analyzer options)
-      (execute-analysis files-to-analyze writer analyzer options))))
+      (graph files-to-analyze (print-writer) analyzer options)
+      (execute-analysis files-to-analyze
+                        ; token lists are encoded straight into bytes when STDOUT is UTF-8
+                        (if (json-output/utf-8-stdout? *out*)
+                          (json-output/stdout-stream print-writer-buffer-size (seq files-pattern))
+                          (print-writer))
+                        analyzer options))))
 
 (comment
   (lmgrep.only-analyze/analyze-lines
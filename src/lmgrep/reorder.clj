@@ -0,0 +1,95 @@
+(ns lmgrep.reorder
+  "Ordered output of results that are computed out of order, without blocking on Futures.
+  Every result gets a sequence number before it is computed and is put into the slot of a
+  ring buffer by the sequence number. The thread that puts the result that is to be written
+  next writes the contiguous run of results that are ready, so no thread waits for
+  a particular result and no task is scheduled for writing.
+  The size of the ring buffer (the window) limits how far the computation can go ahead
+  of the output: taking a sequence number blocks while the window is full."
+  (:require [lmgrep.print :as print])
+  (:import (java.util.concurrent ExecutorService Semaphore)
+           (java.util.concurrent.atomic AtomicBoolean AtomicLong AtomicReferenceArray)))
+
+(set! *warn-on-reflection* true)
+
+(def DEFAULT_WINDOW 4096)
+
+; marks a slot of a nil result
+(def ^:private EMPTY (Object.))
+
+(defn- power-of-two ^long [^long n]
+  (let [highest (Long/highestOneBit n)]
+    (if (= highest n) n (* 2 highest))))
+
+(defn create
+  "Reorder buffer that calls write-fn with the results in the order of the sequence numbers,
+  on one thread at a time. The window is rounded up to a power of two."
+  [window write-fn]
+  (let [size (power-of-two (max 1 (long window)))]
+    {:slots    (AtomicReferenceArray. (int size))
+     :size     size
+     :permits  (Semaphore. (int size))
+     :sequence (AtomicLong.)
+     :next     (AtomicLong.)
+     :draining (AtomicBoolean.)
+     :write-fn write-fn}))
+
+(defn acquire!
+  "Sequence number of the next result. Blocks while the window is full."
+  ^long [{:keys [^Semaphore permits ^AtomicLong sequence]}]
+  (.acquire permits)
+  (.getAndIncrement sequence))
+
+(defn- drain!
+  "Writes the results from the next sequence number until the first missing one.
+  When another thread is writing, that thread writes the result too."
+  [{:keys [^AtomicReferenceArray slots size ^Semaphore permits ^AtomicLong next ^AtomicBoolean draining write-fn]}]
+  (let [mask (dec (long size))]
+    (loop []
+      (when (.compareAndSet draining false true)
+        (try
+          (loop []
+            (let [n (.get next)
+                  i (int (bit-and n mask))
+                  value (.get slots i)]
+              (when (some? value)
+                (.set slots i nil)
+                (.set next (inc n))
+                (.release permits)
+                (write-fn (when-not (identical? EMPTY value) value))
+                (recur))))
+          (finally
+            (.set draining false)))
+        ; the next result might have been put after it was checked but before the flag was cleared
+        (when (some? (.get slots (int (bit-and (.get next) mask))))
+          (recur))))))
+
+(defn put!
+  "Puts the result of the sequence number n and writes the results that are ready."
+  [{:keys [^AtomicReferenceArray slots size] :as buffer} ^long n value]
+  (.set slots (int (bit-and n (dec (long size)))) (if (nil? value) EMPTY value))
+  (drain! buffer))
+
+(defn compute!
+  "Puts the result of (f) as the result of the sequence number n.
+  An exception of f is printed to STDERR and put as a nil result so that the output doesn't stall."
+  [buffer ^long n f]
+  (put! buffer n (try
+                   (f)
+                   (catch Exception e
+                     (when (Boolean/parseBoolean (System/getenv "DEBUG_MODE"))
+                       (print/throwable e))
+                     (print/to-err (.getMessage e))
+                     nil))))
+
+(defn submit!
+  "Computes (f) on the executor and puts the result as the next one in order."
+  [buffer ^ExecutorService executor f]
+  (let [n (acquire! buffer)]
+    (.execute executor ^Runnable (fn [] (compute! buffer n f)))))
+
+(defn await-drained!
+  "Blocks until every result that got a sequence number is written."
+  [{:keys [^Semaphore permits size]}]
+  (.acquire permits (int size))
+  (.release permits (int size)))
@@ -0,0 +1,272 @@
+(ns lmgrep.server
+  "Long-running server that loads the dictionary once and matches the texts of many requests
+  with the same warm Lucene Monitor. Listens on the loopback interface over HTTP:
+  - POST /grep?file=FILE&line-number=N lines of text in the body, JSON array of output strings
+    (null when a line has no matches) formatted with the options of the server, output options
+    in the query params (see `output-option-keys`) override them;
+  - POST /match NDJSON with {\"text\": \"...\"} or {\"texts\": [...]} per line, NDJSON of highlights;
+  - POST /sync applies the changes of the queries file to the queries index (--queries-index-dir);
+  - GET /health statistics of the server;
+  - POST /shutdown stops the server after the requests in flight are handled.
+  There is no authentication: every local process that can connect to the port can use the
+  endpoints, including /shutdown."
+  (:require [clojure.string :as str]
+            [jsonista.core :as json]
+            [lmgrep.analysis :as analysis]
+            [lmgrep.cli.parser :as parser]
+            [lmgrep.grep :as grep]
+            [lmgrep.lucene :as lucene]
+            [lmgrep.lucene.similarity :as similarity]
+            [lmgrep.print :as print]
+            [lmgrep.unordered :as unordered])
+  (:import (com.sun.net.httpserver HttpExchange HttpHandler HttpServer)
+           (java.io BufferedReader BufferedWriter Closeable InputStreamReader OutputStreamWriter Writer)
+           (java.net InetSocketAddress URLDecoder)
+           (java.nio.charset StandardCharsets)
+           (java.util.concurrent CountDownLatch ExecutorService Executors TimeUnit)
+           (java.util.concurrent.atomic AtomicBoolean LongAdder)))
+
+(set! *warn-on-reflection* true)
+
+(def DEFAULT_HOST "127.0.0.1")
+(def DEFAULT_PORT 8080)
+(def ^:private SHUTDOWN_GRACE_SECONDS 30)
+; lines of a /grep body that are read and matched before their output is written
+(def ^:private GREP_CHUNK_LINES 1024)
+
+(def output-option-keys
+  "Options of the output format that a /grep request can set in its query params."
+  [:format :template :pre-tags :post-tags :with-details :with-score :with-scored-highlights :hyperlink])
+
+(defn- query-params [^HttpExchange exchange]
+  (if-let [query (.getRawQuery (.getRequestURI exchange))]
+    (into {}
+          (map (fn [^String param]
+                 (let [[k v] (str/split param #"=" 2)]
+                   [(URLDecoder/decode ^String k "UTF-8") (URLDecoder/decode (str v) "UTF-8")])))
+          (str/split query #"&"))
+    {}))
+
+(defn- body-reader ^BufferedReader [^HttpExchange exchange]
+  (BufferedReader. (InputStreamReader. (.getRequestBody exchange) StandardCharsets/UTF_8)))
+
+(defn- respond!
+  "Sends the response headers and calls write-fn with a Writer of the chunked response body."
+  [^HttpExchange exchange status content-type write-fn]
+  (.add (.getResponseHeaders exchange) "Content-Type" content-type)
+  (.sendResponseHeaders exchange (int status) 0)
+  (with-open [writer (BufferedWriter. (OutputStreamWriter. (.getResponseBody exchange) StandardCharsets/UTF_8))]
+    (write-fn writer)))
+
+(defn- respond-json! [exchange status value]
+  (respond! exchange status "application/json"
+            (fn [^Writer writer] (.write writer (json/write-value-as-string value)))))
+
+(defn- output-options
+  "Output options of the query params of a /grep request."
+  [params]
+  (reduce (fn [options k]
+            (if-let [^String value (get params (name k))]
+              (assoc options k (case k
+                                 :format (let [format (keyword value)]
+                                           (when-not (contains? parser/format-options format)
+                                             (throw (IllegalArgumentException.
+                                                      (str "Format must be one of: "
+                                                           (parser/options-to-str parser/format-options)))))
+                                           format)
+                                 (:template :pre-tags :post-tags) value
+                                 (Boolean/parseBoolean value)))
+              options))
+          {}
+          output-option-keys))
+
+(defn- read-chunk
+  "Up to n lines of the reader, empty when the reader is exhausted."
+  [^BufferedReader rdr ^long n]
+  (loop [texts (transient [])]
+    (if (< (count texts) n)
+      (if-let [line (.readLine rdr)]
+        (recur (conj! texts line))
+        (persistent! texts))
+      (persistent! texts))))
+
+(defn- grep-handler
+  "Lines of the body are read and matched in chunks and formatted as the CLI would do,
+  the outputs of a chunk are written before the next chunk is read."
+  [{:keys [highlighter options ^LongAdder lines]}]
+  (let [batch-size (get options :batch-size 1)
+        chunk-size (max GREP_CHUNK_LINES (long batch-size))]
+    (fn [exchange]
+      (let [params (query-params exchange)
+            file (get params "file")
+            first-line-nr (Long/parseLong (get params "line-number" "1"))
+            chunk-matcher-fn (unordered/chunk-matcher-fn highlighter file batch-size
+                                                         (merge options (output-options params)))]
+        (with-open [rdr (body-reader exchange)]
+          (respond! exchange 200 "application/json"
+                    (fn [^Writer writer]
+                      (.write writer "[")
+                      (loop [line-nr first-line-nr
+                             separator ""]
+                        (let [texts (read-chunk rdr chunk-size)]
+                          (when (seq texts)
+                            (.add lines (count texts))
+                            (recur (+ line-nr (count texts))
+                                   (reduce (fn [^String separator out]
+                                             (.write writer separator)
+                                             (.write writer (json/write-value-as-string out))
+                                             ",")
+                                           separator
+                                           (chunk-matcher-fn line-nr texts))))))
+                      (.write writer "]"))))))))
+
+(defn- match-handler
+  "Every line of the body is a JSON object with either a text or texts to match,
+  highlights are written for a line as soon as it is matched."
+  [{:keys [highlighter options ^LongAdder lines]}]
+  (let [match-opts (-> (select-keys options [:with-score :with-scored-highlights])
+                       (similarity/with-similarity (similarity/create options)))]
+    (fn [exchange]
+      (with-open [rdr (body-reader exchange)]
+        (respond! exchange 200 "application/x-ndjson"
+                  (fn [^Writer writer]
+                    (doseq [^String line (line-seq rdr)
+                            :when (not (str/blank? line))]
+                      (let [{:strs [text texts]} (json/read-value line)
+                            highlights (if texts
+                                         (do (.add lines (count texts))
+                                             (lucene/match-batch highlighter texts match-opts))
+                                         (do (.increment lines)
+                                             (lucene/match highlighter (str text) match-opts)))]
+                        (.write writer (json/write-value-as-string {:highlights highlights}))
+                        (.write writer "\n")
+                        (.flush writer)))))))))
+
+(defn- sync-handler
+  "Re-reads the queries file and applies its changes to the running matcher, one sync at a time."
+  [{:keys [highlighter options lucene-query-strings custom-analyzers]}]
+  (let [lock (Object.)]
+    (fn [exchange]
+      (let [report (locking lock
+                     (lucene/sync-queries! highlighter
+                                           (grep/combine-questionnaire lucene-query-strings options)
+                                           options custom-analyzers))]
+        (respond-json! exchange 200 {:sync report})))))
+
+(defn stats
+  "Statistics of the running server."
+  [{:keys [highlighter started-at ^LongAdder requests ^LongAdder lines
+           ^LongAdder errors ^LongAdder in-flight]}]
+  {:status         "ok"
+   :queries        (lucene/query-count highlighter)
+   :uptime-seconds (/ (- (System/nanoTime) (long started-at)) 1e9)
+   :requests       (.sum requests)
+   :in-flight      (.sum in-flight)
+   :errors         (.sum errors)
+   :lines          (.sum lines)})
+
+(declare stop!)
+
+(defn- route [{:keys [^AtomicBoolean stopping] :as server} ^HttpExchange exchange]
+  (let [method (.getRequestMethod exchange)
+        path (.getPath (.getRequestURI exchange))]
+    (cond
+      (.get stopping) (respond-json! exchange 503 {:error "shutting down"})
+      (and (= "POST" method) (= "/grep" path)) ((:grep-handler server) exchange)
+      (and (= "POST" method) (= "/match" path)) ((:match-handler server) exchange)
+      (and (= "POST" method) (= "/sync" path)) ((:sync-handler server) exchange)
+      (and (= "GET" method) (= "/health" path)) (respond-json! exchange 200 (stats server))
+      (and (= "POST" method) (= "/shutdown" path)) (do (respond-json! exchange 202 {:status "shutting down"})
+                                                       (stop! server))
+      :else (respond-json! exchange 404 {:error (str "Unknown endpoint " method " " path)}))))
+
+(defn- handler [{:keys [^LongAdder requests ^LongAdder errors ^LongAdder in-flight] :as server}]
+  (reify HttpHandler
+    (handle [_ exchange]
+      (.increment requests)
+      (.increment in-flight)
+      (try
+        (route server exchange)
+        (catch Exception e
+          (.increment errors)
+          (when (System/getenv "DEBUG_MODE")
+            (print/throwable e))
+          (try
+            (respond-json! exchange 400 {:error (str (.getMessage e))})
+            ; headers might be already sent
+            (catch Exception _)))
+        (finally
+          (.decrement in-flight)
+          (.close exchange))))))
+
+(defn start
+  "Loads the dictionary and starts listening. Port 0 picks a free port.
+  Returns the server map, the actual address is under :address."
+  [lucene-query-strings options]
+  (let [questionnaire (grep/combine-questionnaire lucene-query-strings options)
+        custom-analyzers (analysis/prepare-analyzers (get options :analyzers-file) options)
+        highlighter (lucene/highlighter-obj questionnaire options custom-analyzers)
+        host (get options :server-host DEFAULT_HOST)
+        port (get options :server-port DEFAULT_PORT)
+        executor (Executors/newFixedThreadPool (get options :concurrency (.availableProcessors (Runtime/getRuntime))))
+        http-server (HttpServer/create (InetSocketAddress. ^String host (int port)) 0)
+        server {:highlighter          highlighter
+                :options              options
+                :lucene-query-strings lucene-query-strings
+                :custom-analyzers     custom-analyzers
+                :http-server          http-server
+                :executor             executor
+                :started-at           (System/nanoTime)
+                :requests             (LongAdder.)
+                :in-flight            (LongAdder.)
+                :errors               (LongAdder.)
+                :lines                (LongAdder.)
+                :stopping             (AtomicBoolean. false)
+                :stopped              (CountDownLatch. 1)}
+        server (assoc server
+                 :grep-handler (grep-handler server)
+                 :match-handler (match-handler server)
+                 :sync-handler (sync-handler server))]
+    (doto http-server
+      (.createContext "/" (handler server))
+      (.setExecutor executor)
+      (.start))
+    (let [address (.getAddress http-server)]
+      (assoc server :address (str "http://" (.getHostString address) ":" (.getPort address))))))
+
+(defn stop!
+  "Stops accepting requests, waits for the requests in flight and closes the matcher.
+  Stopping is done once, on another thread, so that a request can stop the server.
+  Returns immediately, see `await-stopped`."
+  [{:keys [^AtomicBoolean stopping ^CountDownLatch stopped ^HttpServer http-server
+           ^ExecutorService executor ^Closeable highlighter]}]
+  (when (.compareAndSet stopping false true)
+    (doto (Thread. ^Runnable (fn []
+                               (try
+                                 (.stop http-server SHUTDOWN_GRACE_SECONDS)
+                                 (.shutdown executor)
+                                 (.awaitTermination executor SHUTDOWN_GRACE_SECONDS TimeUnit/SECONDS)
+                                 (.close highlighter)
+                                 (finally
+                                   (.countDown stopped))))
+                   "lmgrep-server-shutdown")
+      (.start))))
+
+(defn await-stopped [{:keys [^CountDownLatch stopped]}]
+  (.await stopped))
+
+(defn serve
+  "Starts the server and blocks until it is stopped by a request or the JVM is shutting down."
+  [lucene-query-strings options]
+  (let [server (start lucene-query-strings options)]
+    (.addShutdownHook (Runtime/getRuntime) (Thread. ^Runnable (fn []
+                                                                (stop! server)
+                                                                (await-stopped server))))
+    (print/to-err (str "lmgrep server is listening on " (:address server)))
+    (await-stopped server)))
+
+(comment
+  (def server (start ["fox"] {:server-port 0 :split true}))
+  (stats server)
+  (stop! server)
+  (await-stopped server))
@@ -0,0 +1,284 @@
+(ns lmgrep.stats
+  "Runtime statistics of a run: throughput, match latency, executor queues and
+  the time split between reading, matching, formatting and writing.
+  When statistics are not requested there is no recorder and nothing is recorded."
+  (:require [jsonista.core :as json]
+            [lmgrep.print :as print])
+  (:import (java.io BufferedReader OutputStream PrintWriter Writer)
+           (java.util.concurrent Executors ScheduledExecutorService ThreadFactory ThreadPoolExecutor TimeUnit)
+           (java.util.concurrent.atomic AtomicLong AtomicLongArray)
+           (java.util.concurrent.atomic LongAdder)
+           (org.apache.lucene.analysis.miscellaneous TermCache)))
+
+(set! *warn-on-reflection* true)
+
+; Log-linear histogram: values below 8 have their own bucket, every power of two
+; above is split into 8 linear sub-buckets, i.e. the relative error is below 12.5%.
+(def ^:private ^:const SUB_BUCKET_BITS 3)
+(def ^:private ^:const SUB_BUCKETS 8)
+(def ^:private ^:const BUCKETS (+ SUB_BUCKETS (* SUB_BUCKETS (- 63 SUB_BUCKET_BITS))))
+
+(defn histogram []
+  {:buckets (AtomicLongArray. (int BUCKETS))
+   :max     (AtomicLong.)})
+
+(defn- bucket-index ^long [^long value]
+  (if (< value SUB_BUCKETS)
+    (max 0 value)
+    (let [exponent (- 63 (Long/numberOfLeadingZeros value))
+          shift (- exponent SUB_BUCKET_BITS)]
+      (+ SUB_BUCKETS
+         (* SUB_BUCKETS shift)
+         (bit-and (bit-shift-right value shift) (dec SUB_BUCKETS))))))
+
+(defn- bucket-value
+  "The middle of the range of values that fall into the bucket."
+  ^long [^long index]
+  (if (< index SUB_BUCKETS)
+    index
+    (let [shift (quot (- index SUB_BUCKETS) SUB_BUCKETS)
+          sub-bucket (rem (- index SUB_BUCKETS) SUB_BUCKETS)
+          lower (bit-shift-left (+ SUB_BUCKETS sub-bucket) shift)]
+      (+ lower (quot (bit-shift-left 1 shift) 2)))))
+
+(defn record-value! [{:keys [^AtomicLongArray buckets ^AtomicLong max]} ^long value]
+  (.incrementAndGet buckets (int (bucket-index value)))
+  (when (< (.get max) value)
+    (.accumulateAndGet max value (reify java.util.function.LongBinaryOperator
+                                   (applyAsLong [_ a b] (Math/max a b))))))
+
+(defn percentiles
+  "Values at the given percentiles, e.g. [50 99], and the count and max of the recorded values."
+  [{:keys [^AtomicLongArray buckets ^AtomicLong max]} ps]
+  (let [counts (long-array BUCKETS)
+        _ (dotimes [i BUCKETS] (aset counts i (.get buckets i)))
+        total (areduce counts i acc 0 (+ acc (aget counts i)))]
+    {:count       total
+     :max         (.get max)
+     :percentiles (into {}
+                        (map (fn [p]
+                               [p (cond
+                                    (zero? total) 0
+                                    (<= 100 p) (.get max)
+                                    :else
+                                    (let [rank (long (Math/ceil (* total (/ (double p) 100.0))))]
+                                      (loop [i 0
+                                             seen 0]
+                                        (let [seen (+ seen (aget counts i))]
+                                          (if (or (<= rank seen) (= i (dec BUCKETS)))
+                                            (min (bucket-value i) (.get max))
+                                            (recur (inc i) seen))))))]))
+                        ps)}))
+
+(def DEFAULT_INTERVAL_SECONDS 10)
+(def ^:private SAMPLING_INTERVAL_MS 100)
+
+(defn recorder
+  "Creates a recorder when the options ask for statistics, otherwise nil."
+  [options]
+  (when (or (get options :stats) (get options :stats-file))
+    {:options        options
+     :started-at     (System/nanoTime)
+     :lines-read     (LongAdder.)
+     :lines-matched  (LongAdder.)
+     :lines-written  (LongAdder.)
+     :read-nanos     (LongAdder.)
+     :match-nanos    (LongAdder.)
+     :format-nanos   (LongAdder.)
+     :write-nanos    (LongAdder.)
+     :caller-runs    (LongAdder.)
+     :match-latency  (histogram)
+     :executors      (atom {})
+     :caches         (atom {})
+     :max-depths     (atom {})
+     :reporter       (atom nil)}))
+
+(defn with-recorder
+  "Options that carry the recorder to the matcher functions."
+  [options recorder]
+  (cond-> options recorder (assoc ::recorder recorder)))
+
+(defn recorder-of [options]
+  (get options ::recorder))
+
+(defn record-read! [{:keys [^LongAdder lines-read ^LongAdder read-nanos]} ^long lines ^long nanos]
+  (.add lines-read lines)
+  (.add read-nanos nanos))
+
+(defn record-match!
+  "Records matching of lines: how many of the lines matched, the time in Lucene Monitor
+  and the time formatting the output. Latency is recorded per line."
+  [{:keys [^LongAdder match-nanos ^LongAdder format-nanos ^LongAdder lines-matched match-latency]}
+   lines matched match-time format-time]
+  (let [lines (long lines)
+        match-time (long match-time)]
+    (.add match-nanos match-time)
+    (.add format-nanos (long format-time))
+    (.add lines-matched (long matched))
+    (record-value! match-latency (quot match-time (max 1 lines)))))
+
+(defn caller-runs-counter
+  "Function to call every time a rejected task runs on the caller thread."
+  [{:keys [^LongAdder caller-runs]}]
+  (fn [] (.increment caller-runs)))
+
+(defn watch-executor!
+  "Queue depth of the executor is sampled while the recorder is reporting."
+  [recorder name ^ThreadPoolExecutor executor]
+  (when recorder
+    (swap! (:executors recorder) assoc name executor)))
+
+(defn watch-cache!
+  "Statistics of the cache, as returned by stats-fn, are reported with the rest."
+  [recorder name stats-fn]
+  (when recorder
+    (swap! (:caches recorder) assoc name stats-fn)))
+
+(defn timed-reader
+  "BufferedReader that records lines read and time spent reading them."
+  ^BufferedReader [recorder ^BufferedReader reader]
+  (if recorder
+    (proxy [BufferedReader] [reader 1]
+      (readLine []
+        (let [start (System/nanoTime)
+              line (.readLine reader)]
+          (record-read! recorder (if line 1 0) (- (System/nanoTime) start))
+          line)))
+    reader))
+
+(defn timed-writer
+  "PrintWriter that records lines written and time spent writing them."
+  ^PrintWriter [recorder ^PrintWriter writer]
+  (if recorder
+    (let [{:keys [^LongAdder lines-written ^LongAdder write-nanos]} recorder]
+      (proxy [PrintWriter] [^Writer writer]
+        (println
+          ([]
+           (let [start (System/nanoTime)]
+             (.println writer)
+             (.increment lines-written)
+             (.add write-nanos (- (System/nanoTime) start))))
+          ([s]
+           (let [start (System/nanoTime)]
+             (.println writer ^String s)
+             (.increment lines-written)
+             (.add write-nanos (- (System/nanoTime) start)))))))
+    writer))
+
+(defn- count-lines ^long [^bytes b ^long off ^long len]
+  (loop [i off
+         n 0]
+    (if (< i (+ off len))
+      (recur (inc i) (if (= 10 (aget b i)) (inc n) n))
+      n)))
+
+(defn timed-stream
+  "OutputStream of output lines that records lines written and time spent writing them."
+  ^OutputStream [recorder ^OutputStream out]
+  (if recorder
+    (let [{:keys [^LongAdder lines-written ^LongAdder write-nanos]} recorder
+          write! (fn [^bytes b ^long off ^long len]
+                   (let [start (System/nanoTime)]
+                     (.write out b (int off) (int len))
+                     (.add lines-written (count-lines b off len))
+                     (.add write-nanos (- (System/nanoTime) start))))]
+      (proxy [OutputStream] []
+        (write
+          ([b]
+           (if (bytes? b)
+             (write! b 0 (alength ^bytes b))
+             (.write out (int b))))
+          ([b off len]
+           (write! b off len)))
+        (flush [] (.flush out))
+        (close [] (.close out))))
+    out))
+
+(defn- per-second [^long n ^double seconds]
+  (if (pos? seconds) (Math/round (/ n seconds)) 0))
+
+(defn- nanos->seconds [^LongAdder adder]
+  (/ (.sum adder) 1e9))
+
+(defn snapshot
+  "Current statistics as a map."
+  [{:keys [started-at ^LongAdder lines-read ^LongAdder lines-matched ^LongAdder lines-written
+           read-nanos match-nanos format-nanos write-nanos ^LongAdder caller-runs
+           match-latency executors caches max-depths]}]
+  (let [elapsed (/ (- (System/nanoTime) (long started-at)) 1e9)
+        read (.sum lines-read)
+        matched (.sum lines-matched)
+        written (.sum lines-written)
+        latency (percentiles match-latency [50 90 99 99.9])
+        at (fn [p] (/ (get-in latency [:percentiles p]) 1e3))]
+    {:elapsed-seconds      elapsed
+     :lines                {:read read :matched matched :written written}
+     :lines-per-second     {:read    (per-second read elapsed)
+                            :matched (per-second matched elapsed)
+                            :written (per-second written elapsed)}
+     :match-latency-micros {:count (:count latency)
+                            :p50   (at 50)
+                            :p90   (at 90)
+                            :p99   (at 99)
+                            :p999  (at 99.9)
+                            :max   (/ (:max latency) 1e3)}
+     :queues               (into {}
+                                 (map (fn [[name ^ThreadPoolExecutor executor]]
+                                        [name {:depth     (.size (.getQueue executor))
+                                               :max-depth (get @max-depths name 0)
+                                               :capacity  (+ (.size (.getQueue executor))
+                                                             (.remainingCapacity (.getQueue executor)))}]))
+                                 @executors)
+     :caller-runs          (.sum caller-runs)
+     ; cumulative time of all the threads
+     :time-split-seconds   {:read   (nanos->seconds read-nanos)
+                            :match  (nanos->seconds match-nanos)
+                            :format (nanos->seconds format-nanos)
+                            :write  (nanos->seconds write-nanos)}
+     ; caches of the memoizing and raudikko token filters
+     :token-caches         (vec (TermCache/allStats))
+     :caches               (into {} (map (fn [[name stats-fn]] [name (stats-fn)])) @caches)}))
+
+(defn- sample-queues! [{:keys [executors max-depths]}]
+  (doseq [[name ^ThreadPoolExecutor executor] @executors]
+    (let [depth (.size (.getQueue executor))]
+      (swap! max-depths update name (fnil max 0) depth))))
+
+(defn- report! [recorder final?]
+  (print/to-err (json/write-value-as-string (assoc (snapshot recorder) :final final?))))
+
+(def ^:private daemon-thread-factory
+  (reify ThreadFactory
+    (newThread [_ runnable]
+      (doto (Thread. ^Runnable runnable "lmgrep-stats")
+        (.setDaemon true)))))
+
+(defn start!
+  "Starts sampling queues and, with --stats, periodic reports to STDERR."
+  [recorder]
+  (when recorder
+    (let [^ScheduledExecutorService scheduler (Executors/newSingleThreadScheduledExecutor daemon-thread-factory)
+          interval-ms (long (* 1000 (get-in recorder [:options :stats-interval] DEFAULT_INTERVAL_SECONDS)))]
+      (.scheduleAtFixedRate scheduler ^Runnable (fn [] (sample-queues! recorder))
+                            SAMPLING_INTERVAL_MS SAMPLING_INTERVAL_MS TimeUnit/MILLISECONDS)
+      (when (get-in recorder [:options :stats])
+        (.scheduleAtFixedRate scheduler ^Runnable (fn [] (report! recorder false))
+                              interval-ms interval-ms TimeUnit/MILLISECONDS))
+      (reset! (:reporter recorder) scheduler))))
+
+(defn finish!
+  "Stops reporting, prints the final summary to STDERR and writes it to the --stats-file."
+  [recorder]
+  (when recorder
+    (when-let [^ScheduledExecutorService scheduler @(:reporter recorder)]
+      (.shutdownNow scheduler))
+    (sample-queues! recorder)
+    (when (get-in recorder [:options :stats])
+      (report! recorder true))
+    (when-let [stats-file (get-in recorder [:options :stats-file])]
+      (spit stats-file (json/write-value-as-string (snapshot recorder))))))
+
+(comment
+  (let [h (histogram)]
+    (dotimes [i 1000] (record-value! h i))
+    (percentiles h [50 99 100])))
@@ -3,8 +3,13 @@
             [lmgrep.analysis :as analysis]
             [lmgrep.concurrent :as c]
             [lmgrep.lucene :as lucene]
+            [lmgrep.lucene.matcher-cache :as matcher-cache]
             [lmgrep.matching :as matching]
-            [lmgrep.print :as print])
+            [lmgrep.micro-batch :as micro-batch]
+            [lmgrep.print :as print]
+            [lmgrep.reorder :as reorder]
+            [lmgrep.stats :as stats]
+            [lmgrep.unordered :as unordered])
   (:import (java.io BufferedReader BufferedWriter PrintWriter)
            (java.util.concurrent ExecutorService)
            (lmgrep.lucene LuceneMonitorMatcher)))
@@ -19,20 +24,89 @@
         (print/throwable e))
       (print/to-err (.getMessage e)))))
 
-(defn wrapped-matcher-fn [custom-analyzers options]
-  (fn [^long line-nr ^String line]
-    (let [task (safe-json-parse line)
-          query (get task "query")
-          text (get task "text")]
-      (when (and query text)
-        (with-open [^LuceneMonitorMatcher highlighter
-                    (lucene/highlighter-obj [{:query query}] options custom-analyzers)]
-          ((matching/matcher-fn highlighter nil options) line-nr text))))))
+(def highlighter-conf-keys
+  [:analysis :config-dir :analyzers-file :query-parser :query-parser-conf :type-name :presearcher])
+
+(defn highlighter-provider
+  "Returns a function that calls f with a highlighter for the query.
+  With a cache highlighters are reused across lines, the cache key is the query
+  and the configuration that is used to build a highlighter.
+  Without the cache a highlighter is created and closed for every call."
+  [cache custom-analyzers options]
+  (let [build (fn [query] (lucene/highlighter-obj [{:query query}] options custom-analyzers))
+        conf (select-keys options highlighter-conf-keys)]
+    (if cache
+      (fn [query f]
+        (matcher-cache/with-matcher cache [query conf] #(build query) f))
+      (fn [query f]
+        (with-open [^LuceneMonitorMatcher highlighter (build query)]
+          (f highlighter))))))
+
+(defn wrapped-matcher-fn
+  "Match options and the output are prepared once, a line is matched with the highlighter of its query."
+  [with-highlighter options]
+  (let [highlight-opts (matching/highlight-opts options)
+        output (matching/output-fn nil options)
+        recorder (stats/recorder-of options)]
+    (fn [^long line-nr ^String line]
+      (let [task (safe-json-parse line)
+            query (get task "query")
+            text (get task "text")]
+        (when (and query text)
+          (with-highlighter query
+                            (fn [^LuceneMonitorMatcher highlighter]
+                              (if recorder
+                                (let [start (System/nanoTime)
+                                      highlights (lucene/match highlighter text highlight-opts)
+                                      matched (System/nanoTime)
+                                      out-str (output line-nr text highlights)]
+                                  (stats/record-match! recorder 1 (if out-str 1 0) (- matched start) (- (System/nanoTime) matched))
+                                  out-str)
+                                (output line-nr text (lucene/match highlighter text highlight-opts))))))))))
+
+(defn wrapped-batch-matcher-fn
+  "Lines of a batch that share the same query are matched with one highlighter
+  in one Monitor call."
+  [with-highlighter options]
+  (let [highlight-opts (matching/highlight-opts options)
+        output (matching/output-fn nil options)
+        batch-fn (fn [^long first-line-nr lines]
+                   (let [tasks (mapv safe-json-parse lines)
+                         indexes-per-query (group-by (fn [i] (get (nth tasks i) "query"))
+                                                     (filter (fn [i] (let [task (nth tasks i)]
+                                                                       (and (get task "query") (get task "text"))))
+                                                             (range (count tasks))))]
+                     (reduce-kv (fn [outputs query indexes]
+                                  ; a bad query loses only its own lines
+                                  (try
+                                    (with-highlighter
+                                      query
+                                      (fn [^LuceneMonitorMatcher highlighter]
+                                        (let [texts (mapv (fn [i] (get (nth tasks i) "text")) indexes)]
+                                          (reduce (fn [outputs [i text highlights]]
+                                                    (assoc outputs i (output (+ first-line-nr i) text highlights)))
+                                                  outputs
+                                                  (map vector indexes texts (lucene/match-batch highlighter texts highlight-opts))))))
+                                    (catch Exception e
+                                      (when (Boolean/parseBoolean (System/getenv "DEBUG_MODE"))
+                                        (print/throwable e))
+                                      (print/to-err (.getMessage e))
+                                      outputs)))
+                                (vec (repeat (count lines) nil))
+                                indexes-per-query)))]
+    (if-let [recorder (stats/recorder-of options)]
+      ; parsing, matching and formatting are recorded together as matching
+      (fn [^long first-line-nr lines]
+        (let [start (System/nanoTime)
+              out-strs (batch-fn first-line-nr lines)]
+          (stats/record-match! recorder (count lines) (count (filter some? out-strs)) (- (System/nanoTime) start) 0)
+          out-strs))
+      batch-fn)))
 
 (defn unordered [reader ^ExecutorService matcher-thread-pool-executor
                  ^PrintWriter writer ^ExecutorService writer-thread-pool-executor
-                 with-empty-lines custom-analyzers options]
-  (let [matcher-fn (wrapped-matcher-fn custom-analyzers options)]
+                 with-empty-lines with-highlighter options]
+  (let [matcher-fn (wrapped-matcher-fn with-highlighter options)]
     (with-open [^BufferedReader rdr reader]
       (loop [^String line (.readLine rdr)
              line-nr 1]
@@ -47,24 +121,11 @@
                                               ^Runnable (fn [] (print/to-writer writer)))))))
           (recur (.readLine rdr) (inc line-nr)))))))
 
-(defn ordered [reader ^ExecutorService matcher-thread-pool-executor
-               ^PrintWriter writer ^ExecutorService writer-thread-pool-executor
-               with-empty-lines custom-analyzers options]
-  (let [matcher-fn (wrapped-matcher-fn custom-analyzers options)]
-    (with-open [^BufferedReader rdr reader]
-      (loop [^String line (.readLine rdr)
-             line-nr 1]
-        (when-not (nil? line)
-          (let [f (.submit matcher-thread-pool-executor
-                           ^Callable (fn [] (matcher-fn line-nr line)))]
-            (.execute writer-thread-pool-executor
-                      ^Runnable (fn []
-                                  (let [^String out-str (.get f)]
-                                    (if out-str
-                                      (print/to-writer writer out-str)
-                                      (when with-empty-lines
-                                        (print/to-writer writer)))))))
-          (recur (.readLine rdr) (inc line-nr)))))))
+(defn ordered
+  "Outputs are written in the order of the lines through the ordered-output reorder buffer."
+  [reader ^ExecutorService matcher-thread-pool-executor ordered-output with-highlighter options]
+  (unordered/ordered-consume-reader reader (wrapped-matcher-fn with-highlighter options)
+                                    matcher-thread-pool-executor ordered-output))
 
 (defn grep
   "Listens on STDIN where every line should include JSON with both: query and the text.
@@ -76,20 +137,59 @@
     1. ThreadPoolExecutor is async and it 'swallows' Exceptions.
     2. Upstream errors happen and we should handle them."
   [options]
-  (let [custom-analyzers (analysis/prepare-analyzers (get options :analyzers-file) options)
+  (let [recorder (stats/recorder options)
+        options (stats/with-recorder options recorder)
+        custom-analyzers (analysis/prepare-analyzers (get options :analyzers-file) options)
         reader-buffer-size (get options :reader-buffer-size 8192)
         print-writer-buffer-size (get options :writer-buffer-size 8192)
-        ^BufferedReader reader (BufferedReader. *in* reader-buffer-size)
-        ^PrintWriter writer (PrintWriter. (BufferedWriter. *out* print-writer-buffer-size) true)
+        ^BufferedReader reader (stats/timed-reader recorder (BufferedReader. *in* reader-buffer-size))
+        ^PrintWriter writer (stats/timed-writer recorder
+                                                (PrintWriter. (BufferedWriter. *out* print-writer-buffer-size) true))
         with-empty-lines (get options :with-empty-lines)
         concurrency (get options :concurrency (.availableProcessors (Runtime/getRuntime)))
         queue-size (get options :queue-size 1024)
-        ^ExecutorService matcher-thread-pool-executor (c/thread-pool-executor concurrency queue-size)
+        ^ExecutorService matcher-thread-pool-executor (c/thread-pool-executor
+                                                        concurrency queue-size
+                                                        (when recorder (stats/caller-runs-counter recorder)))
         ^ExecutorService writer-thread-pool-executor (c/single-thread-executor)
         preserve-order? (get options :preserve-order true)
-        consume-fn (if preserve-order? ordered unordered)]
-    (consume-fn reader matcher-thread-pool-executor
-                writer writer-thread-pool-executor
-                with-empty-lines custom-analyzers options)
+        ordered-output (when preserve-order? (unordered/ordered-output writer with-empty-lines options))
+        batch-size (get options :batch-size 1)
+        sizer (when (and (get options :micro-batching) (= 1 batch-size)) (micro-batch/sizer options))
+        cache-size (get options :streamed-cache-size matcher-cache/DEFAULT_MAX_SIZE)
+        cache (when (pos? cache-size)
+                (matcher-cache/create {:max-size cache-size
+                                       :ttl-ms   (when-let [ttl (get options :streamed-cache-ttl)]
+                                                   (* 1000 ttl))}))
+        with-highlighter (highlighter-provider cache custom-analyzers options)]
+    (stats/watch-executor! recorder "matcher" matcher-thread-pool-executor)
+    (stats/watch-executor! recorder "writer" writer-thread-pool-executor)
+    (when cache (stats/watch-cache! recorder "matcher-cache" #(matcher-cache/stats cache)))
+    (stats/start! recorder)
+    (cond
+      (and sizer preserve-order?)
+      (unordered/ordered-consume-reader-micro-batched reader (wrapped-matcher-fn with-highlighter options) sizer
+                                                      matcher-thread-pool-executor ordered-output)
+      sizer
+      (unordered/unordered-consume-reader-micro-batched reader (wrapped-matcher-fn with-highlighter options) sizer
+                                                        matcher-thread-pool-executor writer-thread-pool-executor
+                                                        writer with-empty-lines)
+      (and (< 1 batch-size) preserve-order?)
+      (unordered/ordered-consume-reader-batched reader (wrapped-batch-matcher-fn with-highlighter options) batch-size
+                                                matcher-thread-pool-executor ordered-output)
+      (< 1 batch-size)
+      (unordered/unordered-consume-reader-batched reader (wrapped-batch-matcher-fn with-highlighter options) batch-size
+                                                  matcher-thread-pool-executor writer-thread-pool-executor
+                                                  writer with-empty-lines)
+      preserve-order?
+      (ordered reader matcher-thread-pool-executor ordered-output with-highlighter options)
+      :else
+      (unordered reader matcher-thread-pool-executor
+                 writer writer-thread-pool-executor
+                 with-empty-lines with-highlighter options))
     (c/shutdown-thread-pool-executors matcher-thread-pool-executor writer-thread-pool-executor)
-    (.flush writer)))
+    (when ordered-output (reorder/await-drained! ordered-output))
+    (.flush writer)
+    (stats/finish! recorder)
+    (when cache
+      (matcher-cache/close cache))))
@@ -1,19 +1,38 @@
 (ns lmgrep.unordered
-  (:require [lmgrep.concurrent :as c]
+  (:require [jsonista.core :as json]
+            [lmgrep.concurrent :as c]
+            [lmgrep.json-output :as json-output]
+            [lmgrep.line-cache :as line-cache]
+            [lmgrep.lucene :as lucene]
+            [lmgrep.lucene.profiler :as profiler]
+            [lmgrep.mmap :as mmap]
             [lmgrep.print :as print]
-            [lmgrep.matching :as matching])
-  (:import (java.io BufferedReader PrintWriter BufferedWriter FileReader)
-           (java.util.concurrent ExecutorService)))
+            [lmgrep.matching :as matching]
+            [lmgrep.micro-batch :as micro-batch]
+            [lmgrep.reorder :as reorder]
+            [lmgrep.stats :as stats])
+  (:import (java.io BufferedReader File Flushable OutputStream PrintWriter BufferedWriter FileReader)
+           (java.util.concurrent ExecutorService Future Semaphore)))
 
 (set! *warn-on-reflection* true)
 
+(defn- write-output!
+  "Writes the output string or the bytes of the output lines, nil is an empty line with-empty-lines."
+  [writer out with-empty-lines]
+  (cond
+    (bytes? out) (.write ^OutputStream writer ^bytes out)
+    out (print/to-writer writer out)
+    with-empty-lines (if (instance? OutputStream writer)
+                       (.write ^OutputStream writer json-output/LINE_SEPARATOR)
+                       (print/to-writer writer))))
+
 (defn unordered-consume-reader
   "Given a Reader iterates over lines and sends them to the
   matcher-thread-pool-executor for further handling."
   [reader matcher-fn
    ^ExecutorService matcher-thread-pool-executor
    ^ExecutorService writer-thread-pool-executor
-   ^PrintWriter writer
+   writer
    with-empty-lines]
   (with-open [^BufferedReader rdr reader]
     (loop [^String line (.readLine rdr)
@@ -21,61 +40,338 @@
       (when-not (nil? line)
         (.execute matcher-thread-pool-executor
                   ^Runnable (fn []
-                              (let [^String out-str (matcher-fn line-nr line)]
-                                (if out-str
+                              (let [out (matcher-fn line-nr line)]
+                                (when (or out with-empty-lines)
                                   (.execute writer-thread-pool-executor
-                                            ^Runnable (fn [] (print/to-writer writer out-str)))
-                                  (when with-empty-lines
-                                    (.execute writer-thread-pool-executor
-                                              ^Runnable (fn [] (print/to-writer writer))))))))
+                                            ^Runnable (fn [] (write-output! writer out with-empty-lines)))))))
         (recur (.readLine rdr) (inc line-nr))))))
 
 (defn ordered-consume-reader
   "Given a Reader iterates over lines and sends them to the
-  matcher-thread-pool-executor for further handling."
+  matcher-thread-pool-executor, outputs are written in the order of the lines
+  through the ordered-output reorder buffer, see `lmgrep.reorder`."
   [reader matcher-fn
    ^ExecutorService matcher-thread-pool-executor
-   ^ExecutorService writer-thread-pool-executor
-   ^PrintWriter writer
-   with-empty-lines]
+   ordered-output]
   (with-open [^BufferedReader rdr reader]
     (loop [^String line (.readLine rdr)
            line-nr 1]
       (when-not (nil? line)
-        (let [f (.submit matcher-thread-pool-executor
-                         ^Callable (fn [] (matcher-fn line-nr line)))]
-          (.execute writer-thread-pool-executor
-                    ^Runnable (fn [] (let [out-str (.get f)]
-                                       (if out-str
-                                         (print/to-writer writer out-str)
-                                         (when with-empty-lines
-                                           (print/to-writer writer)))))))
+        (reorder/submit! ordered-output matcher-thread-pool-executor (fn [] (matcher-fn line-nr line)))
         (recur (.readLine rdr) (inc line-nr))))))
 
+(defn read-batch
+  "Reads up to batch-size lines from the reader.
+  Returns nil when the reader is exhausted."
+  [^BufferedReader rdr ^long batch-size]
+  (loop [lines (transient [])
+         i 0]
+    (if (< i batch-size)
+      (if-let [line (.readLine rdr)]
+        (recur (conj! lines line) (inc i))
+        (let [lines (persistent! lines)]
+          (when (seq lines) lines)))
+      (persistent! lines))))
+
+(defn write-outputs [writer outs with-empty-lines]
+  (doseq [out outs]
+    (write-output! writer out with-empty-lines)))
+
+(defn unordered-consume-reader-batched
+  "Given a Reader iterates over batches of lines and sends them to the
+  matcher-thread-pool-executor for further handling."
+  [reader batch-matcher-fn batch-size
+   ^ExecutorService matcher-thread-pool-executor
+   ^ExecutorService writer-thread-pool-executor
+   writer
+   with-empty-lines]
+  (with-open [^BufferedReader rdr reader]
+    (loop [lines (read-batch rdr batch-size)
+           line-nr 1]
+      (when-not (nil? lines)
+        (.execute matcher-thread-pool-executor
+                  ^Runnable (fn []
+                              (let [out-strs (batch-matcher-fn line-nr lines)]
+                                (.execute writer-thread-pool-executor
+                                          ^Runnable (fn [] (write-outputs writer out-strs with-empty-lines))))))
+        (recur (read-batch rdr batch-size) (+ line-nr (count lines)))))))
+
+(defn ordered-consume-reader-batched
+  "Given a Reader iterates over batches of lines and sends them to the
+  matcher-thread-pool-executor, outputs are written in the order of the batches
+  through the ordered-output reorder buffer, see `lmgrep.reorder`."
+  [reader batch-matcher-fn batch-size
+   ^ExecutorService matcher-thread-pool-executor
+   ordered-output]
+  (with-open [^BufferedReader rdr reader]
+    (loop [lines (read-batch rdr batch-size)
+           line-nr 1]
+      (when-not (nil? lines)
+        (reorder/submit! ordered-output matcher-thread-pool-executor (fn [] (batch-matcher-fn line-nr lines)))
+        (recur (read-batch rdr batch-size) (+ line-nr (count lines)))))))
+
+(defn unordered-consume-reader-micro-batched
+  "Given a Reader iterates over micro-batches of lines (see `lmgrep.micro-batch`) and sends them
+  to the matcher-thread-pool-executor for further handling, lines are matched with matcher-fn."
+  [reader matcher-fn sizer
+   ^ExecutorService matcher-thread-pool-executor
+   ^ExecutorService writer-thread-pool-executor
+   writer
+   with-empty-lines]
+  (let [batch-matcher-fn (micro-batch/batch-fn sizer matcher-fn)]
+    (with-open [^BufferedReader rdr reader]
+      (loop [lines (micro-batch/read-batch rdr sizer)
+             line-nr 1]
+        (when-not (nil? lines)
+          (.execute matcher-thread-pool-executor
+                    ^Runnable (fn []
+                                (let [out-strs (batch-matcher-fn line-nr lines)]
+                                  (.execute writer-thread-pool-executor
+                                            ^Runnable (fn [] (write-outputs writer out-strs with-empty-lines))))))
+          (recur (micro-batch/read-batch rdr sizer) (+ line-nr (count lines))))))))
+
+(defn ordered-consume-reader-micro-batched
+  "Given a Reader iterates over micro-batches of lines (see `lmgrep.micro-batch`) and sends them
+  to the matcher-thread-pool-executor, outputs are written in order through the ordered-output."
+  [reader matcher-fn sizer
+   ^ExecutorService matcher-thread-pool-executor
+   ordered-output]
+  (let [batch-matcher-fn (micro-batch/batch-fn sizer matcher-fn)]
+    (with-open [^BufferedReader rdr reader]
+      (loop [lines (micro-batch/read-batch rdr sizer)
+             line-nr 1]
+        (when-not (nil? lines)
+          (reorder/submit! ordered-output matcher-thread-pool-executor (fn [] (batch-matcher-fn line-nr lines)))
+          (recur (micro-batch/read-batch rdr sizer) (+ line-nr (count lines))))))))
+
+(defn ordered-output
+  "Reorder buffer that writes outputs of lines and vectors of outputs of batches,
+  the window is :reorder-window results."
+  [writer with-empty-lines options]
+  (reorder/create (get options :reorder-window reorder/DEFAULT_WINDOW)
+                  (fn [out]
+                    (if (sequential? out)
+                      (write-outputs writer out with-empty-lines)
+                      (write-output! writer out with-empty-lines)))))
+
+(defn chunk-matcher-fn
+  "Returns a function that given the line number of the first line and a vector of lines
+  returns a vector of output strings (nil when a line has no matches)."
+  [highlighter path batch-size options]
+  (if (< 1 batch-size)
+    (let [batch-matcher-fn (matching/batch-matcher-fn highlighter path options)]
+      (fn [^long first-line-nr lines]
+        (into []
+              (comp (map-indexed (fn [i batch]
+                                   (batch-matcher-fn (+ first-line-nr (* i batch-size)) batch)))
+                    cat)
+              (into [] (partition-all batch-size) lines))))
+    (let [matcher-fn (matching/matcher-fn highlighter path options)]
+      (fn [^long first-line-nr lines]
+        (into [] (map-indexed (fn [i line] (matcher-fn (+ first-line-nr i) line))) lines)))))
+
+(defn- decode-lines
+  "Lines of the buffer, decoding is recorded as reading."
+  [recorder buf]
+  (if recorder
+    (let [start (System/nanoTime)
+          lines (mmap/lines buf)]
+      (stats/record-read! recorder (count lines) (- (System/nanoTime) start))
+      lines)
+    (mmap/lines buf)))
+
+(defn mmap-buffers
+  "Newline-aligned chunks of the file mapped into memory, nil when a chunk can't be mapped
+  because a line is longer than 2 GiB. Such a file is read with a reader instead."
+  [^String path chunk-size]
+  (with-open [channel (mmap/open-channel path)]
+    (let [ranges (mmap/newline-aligned-ranges channel chunk-size)]
+      (when (every? mmap/mappable? ranges)
+        (mapv (fn [[start end]] (mmap/map-range channel start end)) ranges)))))
+
+(defn mmap-consume-file
+  "Decodes and matches the memory-mapped chunks of a file on the matcher-thread-pool-executor.
+  The line number of the first line of a chunk is computed from line break counts of the
+  preceding chunks. With the ordered-output reorder buffer the chunks are written in order."
+  [buffers chunk-matcher-fn ordered-output
+   ^ExecutorService matcher-thread-pool-executor
+   ^ExecutorService writer-thread-pool-executor
+   writer
+   with-empty-lines
+   recorder]
+  (let [line-break-count-futures (mapv (fn [buf]
+                                         (.submit matcher-thread-pool-executor
+                                                  ^Callable (fn [] (mmap/count-line-breaks buf))))
+                                       buffers)
+        first-line-nrs (reductions + 1 (map (fn [^Future f] (.get f)) line-break-count-futures))]
+    (doseq [[buf line-nr] (map vector buffers first-line-nrs)]
+      (if ordered-output
+        (reorder/submit! ordered-output matcher-thread-pool-executor
+                         (fn [] (chunk-matcher-fn line-nr (decode-lines recorder buf))))
+        (.execute matcher-thread-pool-executor
+                  ^Runnable (fn []
+                              (let [out-strs (chunk-matcher-fn line-nr (decode-lines recorder buf))]
+                                (.execute writer-thread-pool-executor
+                                          ^Runnable (fn [] (write-outputs writer out-strs with-empty-lines))))))))))
+
+(def FILE_READER_MAX_FILE_SIZE 1048576)
+
+(defn- read-lines [reader]
+  (with-open [^BufferedReader rdr reader]
+    (loop [lines (transient [])]
+      (if-let [line (.readLine rdr)]
+        (recur (conj! lines line))
+        (persistent! lines)))))
+
+(defn file-reader-consume-file
+  "Reads the lines of the reader (made by reader-fn) on the file-reader-executor, e.g. a virtual
+  thread per file, while at most open-files readers are open. The lines are matched as one task
+  on the matcher-thread-pool-executor. With the ordered-output reorder buffer the position of the
+  file in the output is taken before the file is read, so files are written in the given order."
+  [reader-fn chunk-matcher-fn ^Semaphore open-files
+   ^ExecutorService file-reader-executor
+   ^ExecutorService matcher-thread-pool-executor
+   ordered-output
+   ^ExecutorService writer-thread-pool-executor
+   writer
+   with-empty-lines]
+  (.acquire open-files)
+  (let [n (when ordered-output (reorder/acquire! ordered-output))]
+    (.execute file-reader-executor
+              ^Runnable (fn []
+                          (let [lines (try
+                                        (read-lines (reader-fn))
+                                        (catch Exception e
+                                          (when (Boolean/parseBoolean (System/getenv "DEBUG_MODE"))
+                                            (print/throwable e))
+                                          (print/to-err (.getMessage e))
+                                          nil)
+                                        (finally
+                                          (.release open-files)))]
+                            (cond
+                              ordered-output
+                              (.execute matcher-thread-pool-executor
+                                        ^Runnable (fn [] (reorder/compute! ordered-output n
+                                                                           (fn [] (when lines (chunk-matcher-fn 1 lines))))))
+                              lines
+                              (.execute matcher-thread-pool-executor
+                                        ^Runnable (fn []
+                                                    (let [out-strs (chunk-matcher-fn 1 lines)]
+                                                      (.execute writer-thread-pool-executor
+                                                                ^Runnable (fn [] (write-outputs writer out-strs with-empty-lines))))))))))))
+
+(defn mmap? [^String path mmap-threshold]
+  (and path mmap-threshold (mmap/supported-charset?) (<= mmap-threshold (.length (File. path)))))
+
+(defn print-profile! [highlighter profiler options]
+  (when profiler
+    (print/to-err (json/write-value-as-string
+                    (lucene/profile-report highlighter profiler
+                                           (get options :profile-queries-top profiler/DEFAULT_TOP))))))
+
 (defn grep [file-paths-to-analyze highlighter options]
-  (let [preserve-order? (get options :preserve-order true)
+  (let [recorder (stats/recorder options)
+        profiler (profiler/create options)
+        line-cache (line-cache/from-options options)
+        options (-> options
+                    (stats/with-recorder recorder)
+                    (profiler/with-profiler profiler)
+                    (line-cache/with-cache line-cache))
+        preserve-order? (get options :preserve-order true)
         reader-buffer-size (get options :reader-buffer-size 8192)
         print-writer-buffer-size (get options :writer-buffer-size 8192)
         concurrency (get options :concurrency (.availableProcessors (Runtime/getRuntime)))
         queue-size (get options :queue-size 1024)
         with-empty-lines (get options :with-empty-lines)
-        consume-fn (if preserve-order? ordered-consume-reader unordered-consume-reader)
-        ^PrintWriter writer (PrintWriter. (BufferedWriter. *out* print-writer-buffer-size)
-                                          ^Boolean (empty? file-paths-to-analyze))
-        ^ExecutorService matcher-thread-pool-executor (c/thread-pool-executor concurrency queue-size)
-        ^ExecutorService writer-thread-pool-executor (c/single-thread-executor)]
+        batch-size (get options :batch-size 1)
+        mmap-threshold (get options :mmap-threshold)
+        mmap-chunk-size (get options :mmap-chunk-size mmap/DEFAULT_CHUNK_SIZE)
+        ; --format json is encoded straight into bytes when STDOUT is UTF-8
+        bytes-output? (and (= :json (get options :format)) (json-output/utf-8-stdout? *out*))
+        options (cond-> options bytes-output? (assoc :lmgrep.json-output/bytes true))
+        ^Flushable writer (if bytes-output?
+                            (stats/timed-stream recorder
+                                                (json-output/stdout-stream print-writer-buffer-size
+                                                                           (seq file-paths-to-analyze)))
+                            (stats/timed-writer recorder
+                                                (PrintWriter. (BufferedWriter. *out* print-writer-buffer-size)
+                                                              ^Boolean (empty? file-paths-to-analyze))))
+        ^ExecutorService matcher-thread-pool-executor (c/thread-pool-executor
+                                                        concurrency queue-size
+                                                        (when recorder (stats/caller-runs-counter recorder)))
+        ^ExecutorService writer-thread-pool-executor (c/single-thread-executor)
+        reorder-buffer (when preserve-order? (ordered-output writer with-empty-lines options))
+        ; --batch-size already groups lines into tasks
+        sizer (when (and (get options :micro-batching) (= 1 batch-size)) (micro-batch/sizer options))
+        max-open-files (get options :max-open-files 256)
+        ; fixed pool of platform threads when virtual threads are not available, e.g. in the native image
+        ^ExecutorService file-reader-executor (when (and (get options :virtual-threads) (seq file-paths-to-analyze))
+                                                (or (c/virtual-thread-executor)
+                                                    (c/thread-pool-executor max-open-files max-open-files)))
+        open-files (Semaphore. (int max-open-files))
+        consume-fn (fn [reader matcher-fn]
+                     (cond
+                       (and sizer preserve-order?)
+                       (ordered-consume-reader-micro-batched reader matcher-fn sizer
+                                                             matcher-thread-pool-executor reorder-buffer)
+                       sizer
+                       (unordered-consume-reader-micro-batched reader matcher-fn sizer
+                                                               matcher-thread-pool-executor writer-thread-pool-executor
+                                                               writer with-empty-lines)
+                       (and (< 1 batch-size) preserve-order?)
+                       (ordered-consume-reader-batched reader matcher-fn batch-size
+                                                       matcher-thread-pool-executor reorder-buffer)
+                       (< 1 batch-size)
+                       (unordered-consume-reader-batched reader matcher-fn batch-size
+                                                         matcher-thread-pool-executor writer-thread-pool-executor
+                                                         writer with-empty-lines)
+                       preserve-order?
+                       (ordered-consume-reader reader matcher-fn matcher-thread-pool-executor reorder-buffer)
+                       :else
+                       (unordered-consume-reader reader matcher-fn
+                                                 matcher-thread-pool-executor writer-thread-pool-executor
+                                                 writer with-empty-lines)))]
+    (stats/watch-executor! recorder "matcher" matcher-thread-pool-executor)
+    (stats/watch-executor! recorder "writer" writer-thread-pool-executor)
+    (when line-cache (stats/watch-cache! recorder "line-cache" #(line-cache/stats line-cache)))
+    (stats/start! recorder)
     (doseq [^String path (if (empty? file-paths-to-analyze)
                            [nil]                            ;; STDIN is an input
-                           file-paths-to-analyze)]
-      (let [reader (if path
-                     (BufferedReader. (FileReader. path) reader-buffer-size)
-                     (BufferedReader. *in* reader-buffer-size))
-            matcher-fn (matching/matcher-fn highlighter path options)]
-        (consume-fn reader
-                    matcher-fn
-                    matcher-thread-pool-executor
-                    writer-thread-pool-executor
-                    writer
-                    with-empty-lines)))
+                           file-paths-to-analyze)
+            :let [buffers (when (mmap? path mmap-threshold) (mmap-buffers path mmap-chunk-size))]]
+      (cond
+        buffers
+        (mmap-consume-file buffers
+                           (chunk-matcher-fn highlighter path batch-size options)
+                           reorder-buffer
+                           matcher-thread-pool-executor
+                           writer-thread-pool-executor
+                           writer
+                           with-empty-lines
+                           recorder)
+        (and file-reader-executor (< (.length (File. path)) FILE_READER_MAX_FILE_SIZE))
+        (file-reader-consume-file (fn [] (stats/timed-reader recorder (BufferedReader. (FileReader. path) reader-buffer-size)))
+                                  (chunk-matcher-fn highlighter path batch-size options)
+                                  open-files
+                                  file-reader-executor
+                                  matcher-thread-pool-executor
+                                  reorder-buffer
+                                  writer-thread-pool-executor
+                                  writer
+                                  with-empty-lines)
+        :else
+        (let [reader (stats/timed-reader recorder
+                                         (if path
+                                           (BufferedReader. (FileReader. path) reader-buffer-size)
+                                           (BufferedReader. *in* reader-buffer-size)))
+              matcher-fn (if (< 1 batch-size)
+                           (matching/batch-matcher-fn highlighter path options)
+                           (matching/matcher-fn highlighter path options))]
+          (consume-fn reader matcher-fn))))
+    (when file-reader-executor
+      (c/shutdown-thread-pool-executors file-reader-executor))
     (c/shutdown-thread-pool-executors matcher-thread-pool-executor writer-thread-pool-executor)
-    (.flush writer)))
+    (when reorder-buffer (reorder/await-drained! reorder-buffer))
+    (.flush writer)
+    (stats/finish! recorder)
+    (print-profile! highlighter profiler options)))
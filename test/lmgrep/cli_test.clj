@@ -46,3 +46,16 @@
       (is (= [] arguments))
       (is (= nil error))
       (is (= (assoc default-options :with-score true) options)))))
+
+(deftest conflicting-flags
+  (testing "early termination flags can't be combined with the flags of other readers"
+    (let [{:keys [errors]} (cli/handle-args ["test" "--count" "--no-split" "--virtual-threads"])]
+      (is (= ["-c/--count can't be combined with --no-split"
+              "-c/--count can't be combined with --virtual-threads"]
+             errors))))
+  (testing "--no-split can't write empty lines"
+    (let [{:keys [errors]} (cli/handle-args ["test" "--no-split" "--with-empty-lines"])]
+      (is (= ["--no-split can't be combined with --with-empty-lines"] errors))))
+  (testing "supported combinations"
+    (let [{:keys [errors]} (cli/handle-args ["test" "--max-count=2" "--batch-size=10"])]
+      (is (= nil errors)))))
@@ -0,0 +1,63 @@
+(ns lmgrep.formatter-test
+  (:require [clojure.test :refer [deftest is testing]]
+            [lmgrep.formatter :as formatter]))
+
+(def details {:file "foo.txt" :line-number 3 :line "prefix text suffix"})
+
+(def highlights [{:begin-offset 7 :end-offset 11}])
+
+(deftest highlighting-overlaps
+  (testing "overlapping part of the highlight is not repeated"
+    (is (= "pre[text su][ff]ix"
+           (formatter/highlight-line "pretext suffix"
+                                     [{:begin-offset 8 :end-offset 12}
+                                      {:begin-offset 3 :end-offset 10}]
+                                     {:pre-tags "[" :post-tags "]"})))))
+
+(deftest string-output-without-template
+  (with-redefs [formatter/no-color? (fn [] true)]
+    (is (= "foo.txt:3:prefix text suffix"
+           (formatter/string-output highlights details {})))
+    (is (= "foo.txt:3:1.5:prefix text suffix"
+           (formatter/string-output highlights (assoc details :score 1.5) {})))
+    (is (= "*STDIN*:3:prefix <b>text</b> suffix"
+           (formatter/string-output highlights (dissoc details :file) {:pre-tags "<b>" :post-tags "</b>"}))))
+  (with-redefs [formatter/no-color? (fn [] false)]
+    (is (= (str \ "[0;35mfoo.txt" \ "[0m:"
+                \ "[0;32m3" \ "[0m:prefix "
+                \ "[1;31mtext" \ "[0m suffix")
+           (formatter/string-output highlights details {})))))
+
+(deftest string-output-with-template
+  (let [options {:pre-tags ">" :post-tags "<"}]
+    (testing "single pass rendering"
+      (is (= "foo.txt|3|prefix >text< suffix|prefix text suffix|"
+             (formatter/string-output highlights details
+                                      (assoc options :template "{{file}}|{{line-number}}|{{highlighted-line}}|{{line}}|{{score}}")))))
+    (testing "unknown placeholders are left as is"
+      (is (= "{{foo}} 3 {{" (formatter/string-output highlights details (assoc options :template "{{foo}} {{line-number}} {{")))))
+    (testing "values that form placeholders are replaced the same way as before"
+      (is (= "{{line}}" (formatter/string-output [{:begin-offset 0 :end-offset 2}] (assoc details :line "{{line}}")
+                                                 (assoc options :template "{{line}}"))))
+      (is (= "3.txt" (formatter/string-output highlights (assoc details :file "{{line-number}}.txt")
+                                              (assoc options :template "{{file}}"))))
+      (is (= "prefix >text< suffix" (formatter/string-output highlights (assoc details :file "{{highlighted-line}}")
+                                                             (assoc options :template "{{file}}"))))
+      (is (= "3" (formatter/string-output highlights (assoc details :file "{{line-")
+                                          (assoc options :template "{{file}}number}}")))))
+    (testing "blank template"
+      (is (= "" (formatter/string-output highlights details (assoc options :template "")))))
+    (testing "compiled template is reused"
+      (let [output (formatter/string-output-fn (assoc options :template "{{line-number}}:{{highlighted-line}}"))]
+        (is (= "3:prefix >text< suffix" (output highlights details)))
+        (is (= "4:>prefix< text suffix" (output [{:begin-offset 0 :end-offset 6}] (assoc details :line-number 4))))))))
+
+(deftest compiling-templates
+  (is (= ["a " :file " " :line-number "{{x}}"] (formatter/compile-template "a {{file}} {{line-number}}{{x}}"))))
+
+(deftest highlighting-offsets
+  (testing "highlights as offsets are formatted the same as highlight maps"
+    (let [highlights [{:begin-offset 7 :end-offset 11} {:begin-offset 0 :end-offset 6} {:begin-offset 8 :end-offset 14}]]
+      (is (= "[prefix] [text][ su]ffix"
+             (formatter/highlight-line "prefix text suffix" highlights {:pre-tags "[" :post-tags "]"})
+             (formatter/highlight-line "prefix text suffix" (long-array [7 11 0 6 8 14]) {:pre-tags "[" :post-tags "]"}))))))
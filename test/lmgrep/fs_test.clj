@@ -1,6 +1,10 @@
 (ns lmgrep.fs-test
-  (:require [clojure.test :refer [deftest is]]
-            [lmgrep.fs :as fs]))
+  (:require [clojure.java.io :as io]
+            [clojure.test :refer [deftest is testing]]
+            [lmgrep.fs :as fs])
+  (:import (java.io File)
+           (java.nio.file Files)
+           (java.nio.file.attribute FileAttribute)))
 
 (deftest filter-for-files
   (let [files ["src" "deps.edn"]]
@@ -15,10 +19,8 @@
          (count (fs/get-files "test/**.*" {:skip-binary-files true})))))
 
 (deftest binary-file-shipping
-  (when (contains? #{"Linux" "Mac OS X"} (System/getProperty "os.name"))
-    ; NOTE: Windows doesn't support this feature
-    ; All .png files in test dir should be binary
-    (is (= [] (fs/get-files "test/**.png" {:skip-binary-files true})))))
+  ; All .png files in test dir should be binary
+  (is (= [] (fs/get-files "test/**.png" {:skip-binary-files true}))))
 
 (deftest infering-root-dir
   (is (= "." (fs/infer-root-folder ".env")))
@@ -27,3 +29,60 @@
   (is (= "/home/foo" (fs/infer-root-folder "/home/foo/**/.env")))
 
   (is (= "/home/foo" (fs/infer-root-folder "/home/foo/**/node_modules/**/.env"))))
+
+(deftest streaming-files
+  (let [files (fs/get-files "**.clj" {})]
+    (is (seq files))
+    (is (= files (vec (fs/stream-files "**.clj" {}))))
+    (is (= files (fs/get-files "**.clj" {:preserve-order true :concurrency 1})))
+    (is (= (set files) (set (fs/stream-files "**.clj" {:preserve-order false :queue-size 1}))))
+    (testing "a worker of the walk that waits for room in the queue doesn't stall it"
+      (is (= (set files) (set (fs/stream-files "**.clj" {:preserve-order false :queue-size 1 :concurrency 1}))))
+      (is (= files (vec (fs/stream-files "**.clj" {:queue-size 1 :concurrency 1})))))))
+
+(deftest following-links
+  (let [root (.toFile (Files/createTempDirectory "lmgrep-links" (make-array FileAttribute 0)))
+        dir (io/file root "dir")
+        link (fn [name target]
+               (Files/createSymbolicLink (.toPath (io/file root name)) (.toPath (io/file target))
+                                         (make-array FileAttribute 0)))]
+    (try
+      (io/make-parents (io/file dir "file.txt"))
+      (spit (io/file dir "file.txt") "text")
+      (link "first" dir)
+      (link "second" dir)
+      (link "dir/cycle" root)
+      (testing "every link to a directory is walked, a cycle is walked once"
+        (is (= (set (map (fn [name] (str (io/file root name "file.txt"))) ["dir" "first" "second"]))
+               (set (map str (fs/fs-glob (str root) "**.txt" {:follow-links true :handle-error true}))))))
+      (finally
+        ; links first, file-seq would follow them
+        (doseq [^File file [(io/file root "first") (io/file root "second") (io/file dir "cycle")
+                            (io/file dir "file.txt") dir root]]
+          (Files/deleteIfExists (.toPath file)))))))
+
+(deftest walking-with-max-depth
+  (is (= ["deps.edn"] (fs/get-files "**deps.edn" {:max-depth 1})))
+  (is (< 1 (count (fs/get-files "**deps.edn" {})))))
+
+(defn- sample [& bs]
+  (byte-array (map unchecked-byte bs)))
+
+(deftest detecting-binary-samples
+  (is (false? (fs/binary-sample? (.getBytes "The quick brown fox\n\tjumps" "UTF-8"))))
+  (is (false? (fs/binary-sample? (.getBytes "Greita rudoji lapė peršoka tingų šunį" "UTF-8"))))
+  (is (false? (fs/binary-sample? (sample))))
+  (testing "multibyte char cut at the end of the sample"
+    (is (false? (fs/binary-sample? (sample 0x61 0x62 0xC5)))))
+  (testing "NUL byte"
+    (is (true? (fs/binary-sample? (sample 0x61 0x00 0x62)))))
+  (testing "magic number"
+    (is (true? (fs/binary-sample? (sample 0x89 0x50 0x4E 0x47 0x0D 0x0A 0x1A 0x0A)))))
+  (testing "invalid UTF-8 that is not Latin-1 text"
+    (is (true? (fs/binary-sample? (sample 0x61 0x81 0x8D 0x62)))))
+  (testing "UTF-16 text with and without a BOM"
+    (is (false? (fs/binary-sample? (.getBytes "The quick brown fox\n\tjumps" "UTF-16"))))
+    (is (false? (fs/binary-sample? (.getBytes "The quick brown fox\n\tjumps" "UTF-16LE"))))
+    (is (false? (fs/binary-sample? (.getBytes "The quick brown fox\n\tjumps" "UTF-16BE")))))
+  (testing "Latin-1 text"
+    (is (false? (fs/binary-sample? (.getBytes "Größe, café, naïve, àéèù" "ISO-8859-1"))))))
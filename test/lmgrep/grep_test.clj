@@ -2,9 +2,12 @@
   (:require [clojure.test :refer [deftest is testing]]
             [clojure.string :as str]
             [jsonista.core :as json]
+            [lmgrep.early-termination :as early-termination]
             [lmgrep.grep :as grep]
+            [lmgrep.lucene :as lucene]
             [lmgrep.formatter]
-            [lmgrep.print :as print]))
+            [lmgrep.print :as print])
+  (:import (java.io ByteArrayOutputStream File PrintStream)))
 
 (deftest grepping-file
   (let [file "test/resources/test.txt"
@@ -64,6 +67,122 @@
     (when (= ordered-matched-lines unordered-matched-lines)
       (println "Usually order is different."))))
 
+(deftest grepping-in-batches
+  (let [file "README.md"
+        query "test"
+        options {:split    true
+                 :pre-tags ">" :post-tags "<"
+                 :template "{{line-number}}:{{highlighted-line}}"}
+        grep-lines (fn [options]
+                     (with-out-str
+                       (grep/grep [query] file nil options)))]
+    (testing "batched output is the same as the line by line output"
+      (is (= (grep-lines options)
+             (grep-lines (assoc options :batch-size 7))))
+      (is (= (grep-lines (assoc options :with-empty-lines true))
+             (grep-lines (assoc options :with-empty-lines true :batch-size 7)))))
+    (testing "batched unordered output contains the same lines"
+      (is (= (set (str/split-lines (grep-lines options)))
+             (set (str/split-lines (grep-lines (assoc options :batch-size 7 :preserve-order false)))))))))
+
+(deftest grepping-in-micro-batches
+  (let [file "README.md"
+        query "test"
+        options {:split    true
+                 :pre-tags ">" :post-tags "<"
+                 :template "{{line-number}}:{{highlighted-line}}"}
+        grep-lines (fn [options]
+                     (with-out-str
+                       (grep/grep [query] file nil options)))]
+    (testing "micro-batched output is the same as the line by line output"
+      (is (= (grep-lines options)
+             (grep-lines (assoc options :micro-batching true))))
+      (is (= (grep-lines (assoc options :with-empty-lines true))
+             (grep-lines (assoc options :with-empty-lines true :micro-batching true :micro-batch-max-lines 3)))))
+    (testing "micro-batched unordered output contains the same lines"
+      (is (= (set (str/split-lines (grep-lines options)))
+             (set (str/split-lines (grep-lines (assoc options :micro-batching true :preserve-order false)))))))))
+
+(deftest grepping-files-on-file-readers
+  (let [files-pattern "test/**.clj"
+        query "deftest"
+        options {:split    true
+                 :pre-tags ">" :post-tags "<"
+                 :template "{{file}}:{{line-number}}:{{highlighted-line}}"}
+        grep-lines (fn [options]
+                     (with-out-str
+                       (grep/grep [query] files-pattern nil options)))]
+    (testing "files are written in the same order as when read one by one"
+      (is (= (grep-lines options)
+             (grep-lines (assoc options :virtual-threads true :max-open-files 2)))))
+    (testing "unordered output contains the same lines"
+      (is (= (set (str/split-lines (grep-lines options)))
+             (set (str/split-lines (grep-lines (assoc options :virtual-threads true :preserve-order false)))))))))
+
+(deftest grepping-files-with-matches-and-counts
+  (let [files-pattern "test/**.clj"
+        query "deftest"
+        grep-lines (fn [options]
+                     (str/split-lines
+                       (with-out-str
+                         (grep/grep [query] files-pattern nil options))))
+        matching-lines (grep-lines {:template "{{file}}:{{line-number}}"})
+        files (distinct (map (fn [line] (first (str/split line #":"))) matching-lines))
+        counts (frequencies (map (fn [line] (first (str/split line #":"))) matching-lines))]
+    (testing "paths of the files with matches in the order of the files"
+      (is (= files (grep-lines {:files-with-matches true}))))
+    (testing "counts of the matching lines per file"
+      (is (= (mapv (fn [file] (str file ":" (get counts file))) files)
+             (grep-lines {:count true}))))
+    (testing "counts are limited by the max count"
+      (is (= (mapv (fn [file] (str file ":" (min 2 (get counts file)))) files)
+             (grep-lines {:count true :max-count 2}))))
+    (testing "the first max count matching lines of every file"
+      (is (= (into [] (mapcat (fn [file] (take 1 (filter (fn [line] (str/starts-with? line (str file ":")))
+                                                         matching-lines))))
+                   files)
+             (grep-lines {:template "{{file}}:{{line-number}}" :max-count 1}))))
+    (testing "batches of lines give the same answers"
+      (is (= (grep-lines {:template "{{file}}:{{line-number}}" :max-count 1})
+             (grep-lines {:template "{{file}}:{{line-number}}" :max-count 1 :batch-size 10})))
+      (is (= (grep-lines {:count true :max-count 2})
+             (grep-lines {:count true :max-count 2 :batch-size 7})))
+      (is (= (grep-lines {:files-with-matches true})
+             (grep-lines {:files-with-matches true :batch-size 300}))))
+    (testing "STDIN"
+      (is (= ["2"] (with-in-str "deftest\nnothing\ndeftest again"
+                      (str/split-lines (with-out-str (grep/grep [query] nil nil {:count true})))))))))
+
+(deftest failed-files-are-reported-instead-of-counted
+  (let [failing (doto (File/createTempFile "lmgrep-failing" ".txt") (.deleteOnExit) (spit "fox\nboom\nfox\n"))
+        ok (doto (File/createTempFile "lmgrep-ok" ".txt") (.deleteOnExit) (spit "fox\nfox\n"))
+        match (fn [^String text]
+                (cond
+                  (str/includes? text "boom") (throw (Exception. "matching failed"))
+                  (str/includes? text "fox") ["fox"]
+                  :else []))
+        highlighter (reify lucene/IMatcher
+                      (match [_ text] (match text))
+                      (match [_ text _] (match text))
+                      (match-batch [_ texts _] (mapv match texts)))
+        run (fn [options]
+               (let [err (ByteArrayOutputStream.)
+                     original-err System/err
+                     out (try
+                           (System/setErr (PrintStream. err true "UTF-8"))
+                           (with-out-str
+                             (early-termination/grep [(.getPath failing) (.getPath ok)] highlighter options))
+                           (finally
+                             (System/setErr original-err)))]
+                 [(str/split-lines out) (str/split-lines (.toString err "UTF-8"))]))]
+    (doseq [options [{:count true} {:count true :batch-size 10}]]
+      (is (= [[(str (.getPath ok) ":2")]
+              [(str (.getPath failing) ": matching failed")]]
+             (run options))))
+    (is (= [[(.getPath ok)]
+            [(str (.getPath failing) ": matching failed")]]
+           (run {:files-with-matches true})))))
+
 (deftest grepping-stdin
   (let [text-from-stdin "The quick brown fox jumps over the lazy dog"
         query "fox"
@@ -0,0 +1,41 @@
+(ns lmgrep.json-output-test
+  (:require [clojure.test :refer [deftest is testing]]
+            [jsonista.core :as json]
+            [lmgrep.json-output :as json-output]
+            [lmgrep.lucene :as lucene]
+            [lmgrep.matching :as matching])
+  (:import (java.nio.charset StandardCharsets)))
+
+(defn- line-bytes ^bytes [^String s]
+  (.getBytes (str s (System/lineSeparator)) StandardCharsets/UTF_8))
+
+(deftest bytes-are-the-same-as-of-strings
+  (let [lines ["The quick brown fox" "nothing" "ąžuolas \"fox\" \t fox 🦊"]]
+    (with-open [highlighter (lucene/highlighter-obj [{:query "fox" :meta {"kind" "animal"}}] {})]
+      (doseq [options [{:format :json}
+                       {:format :json :with-details true}
+                       {:format :json :with-details true :with-score true}
+                       {:format :json :with-scored-highlights true}]
+              file-path [nil "dir/file.txt"]]
+        (testing (str options " " file-path)
+          (let [string-output (matching/output-fn file-path options)
+                bytes-output (matching/json-bytes-output-fn file-path options)
+                highlight-opts (matching/highlight-opts options)]
+            (doseq [[i line] (map-indexed vector lines)]
+              (let [highlights (lucene/match highlighter line highlight-opts)
+                    out-str (string-output (inc i) line highlights)]
+                (is (= (some-> out-str line-bytes seq)
+                       (seq (bytes-output (inc i) line highlights))))))
+            (testing "batches"
+              (let [batch-matcher-fn (matching/batch-matcher-fn highlighter file-path
+                                                                (assoc options :lmgrep.json-output/bytes true))
+                    out-strs ((matching/batch-matcher-fn highlighter file-path options) 10 lines)]
+                (is (= (seq (mapcat line-bytes (remove nil? out-strs)))
+                       (seq (first (batch-matcher-fn 10 lines)))))))))))))
+
+(deftest encoding-tokens
+  (let [tokens [{:token "fox" :type "<ALPHANUM>" :start_offset 0 :end_offset 3 :position 0 :positionLength 1}]]
+    (is (= (seq (line-bytes (json/write-value-as-string tokens)))
+           (seq (json-output/encode-line tokens))))
+    (is (= (seq (line-bytes (json/write-value-as-string ["ąžuolas" "fox"])))
+           (seq (json-output/encode-line ["ąžuolas" "fox"]))))))
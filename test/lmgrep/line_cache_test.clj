@@ -0,0 +1,35 @@
+(ns lmgrep.line-cache-test
+  (:require [clojure.test :refer [deftest is testing]]
+            [lmgrep.line-cache :as line-cache]
+            [lmgrep.lucene :as lucene]
+            [lmgrep.matching :as matching]))
+
+(deftest repeated-lines-are-matched-once
+  (let [cache (line-cache/create 1000000)
+        calls (atom 0)
+        match (fn [line] (line-cache/lookup cache line (fn [] (swap! calls inc) [line])))]
+    (is (= [["a"] ["b"] ["a"] ["a"]] (mapv match ["a" "b" "a" "a"])))
+    (is (= 2 @calls))
+    (is (= [["a"] ["c"] ["c"]] (line-cache/lookup-batch cache ["a" "c" "c"] (fn [lines] (mapv vector lines)))))
+    (is (= {:entries 3 :hits 3 :misses 4} (select-keys (line-cache/stats cache) [:entries :hits :misses])))))
+
+(deftest evicts-within-the-budget
+  (let [cache (line-cache/create 100000)]
+    (doseq [i (range 10000)]
+      (line-cache/lookup cache (str "line " i) (fn [] [])))
+    ; a generation might go over its half of the budget by one entry
+    (is (<= (:bytes (line-cache/stats cache)) 101000))
+    (is (< (:entries (line-cache/stats cache)) 10000))))
+
+(deftest output-is-the-same-with-the-cache
+  (let [lines ["The quick brown fox" "nothing" "The quick brown fox" "fox" "nothing" "fox"]
+        options {:format :json}]
+    (with-open [highlighter (lucene/highlighter-obj [{:query "fox"}] {})]
+      (let [cached-options (line-cache/with-cache options (line-cache/create 1000000))
+            outputs (fn [options]
+                      (let [matcher-fn (matching/matcher-fn highlighter "file.txt" options)]
+                        (vec (map-indexed (fn [i line] (matcher-fn (inc i) line)) lines))))]
+        (is (= (outputs options) (outputs cached-options)))
+        (testing "batches"
+          (is (= ((matching/batch-matcher-fn highlighter "file.txt" options) 1 lines)
+                 ((matching/batch-matcher-fn highlighter "file.txt" cached-options) 1 lines))))))))
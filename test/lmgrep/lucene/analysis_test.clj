@@ -5,7 +5,9 @@
             [jsonista.core :as json]
             [lmgrep.lucene.analyzer :as analysis]
             [lucene.custom.text-analysis :as ta]
-            [lmgrep.predefined-analyzers :as predefined]))
+            [lmgrep.predefined-analyzers :as predefined])
+  (:import (org.apache.lucene.analysis.custom CustomAnalyzer)
+           (org.apache.lucene.analysis.miscellaneous MemoizingTokenFilterFactory)))
 
 (defn with-analyzers [opts]
   (analysis/create opts predefined/analyzers))
@@ -218,3 +220,21 @@
           (println (format "Failed token filter name: '%s' class: '%s'"
                            token-filter-name (get components token-filter-name)))
           (throw e))))))
+
+(deftest memoizing-token-filter
+  (let [text "The dogs and the cats and the dogs"
+        stemmer (analysis/create {:token-filters [{:name "englishMinimalStem"}]})
+        memoizing (analysis/create {:token-filters [{:name "memoizing"
+                                                     :args {:filter    "englishMinimalStem"
+                                                            :cacheSize "100"}}]})]
+    (is (= (ta/text->token-strings text stemmer)
+           (ta/text->token-strings text memoizing)))
+    (testing "repeated words are taken from the cache"
+      (let [factory (first (.getTokenFilterFactories ^CustomAnalyzer memoizing))
+            {:strs [hits misses]} (.cacheStats ^MemoizingTokenFilterFactory factory)]
+        (is (= 3 hits))
+        (is (= 5 misses))))
+    (testing "stacked terms keep the position"
+      (let [memoizing (analysis/create {:token-filters [{:name "memoizing"
+                                                         :args {:filter "keywordRepeat"}}]})]
+        (is (= ["dogs" "dogs"] (ta/text->token-strings "dogs" memoizing)))))))
@@ -0,0 +1,73 @@
+(ns lmgrep.lucene.matcher-cache-test
+  (:require [clojure.test :refer [deftest is testing]]
+            [lmgrep.lucene.matcher-cache :as matcher-cache])
+  (:import (java.io Closeable)
+           (java.util.concurrent CountDownLatch Executors TimeUnit)
+           (java.util.concurrent.atomic AtomicInteger)))
+
+(defn closeable [^AtomicInteger closed-counter]
+  (reify Closeable
+    (close [_] (.incrementAndGet closed-counter))))
+
+(deftest caching-matchers
+  (let [built (AtomicInteger.)
+        closed (AtomicInteger.)
+        build (fn [] (.incrementAndGet built) (closeable closed))
+        cache (matcher-cache/create {:max-size 2})]
+    (testing "repeated keys are served from the cache"
+      (dotimes [_ 3]
+        (matcher-cache/with-matcher cache :a build identity))
+      (is (= 1 (.get built)))
+      (is (= {:size 1 :hits 2 :misses 1 :hit-rate (/ 2.0 3) :evictions 0}
+             (matcher-cache/stats cache))))
+    (testing "least recently used matcher is evicted and closed"
+      (matcher-cache/with-matcher cache :b build identity)
+      (matcher-cache/with-matcher cache :a build identity)
+      (matcher-cache/with-matcher cache :c build identity)
+      (is (= 1 (.get closed)))
+      (matcher-cache/with-matcher cache :a build identity)
+      (is (= 3 (.get built))))
+    (testing "closing the cache closes the matchers"
+      (matcher-cache/close cache)
+      (is (= 3 (.get closed))))))
+
+(deftest matcher-in-use-is-closed-after-release
+  (let [closed (AtomicInteger.)
+        cache (matcher-cache/create {:max-size 1})]
+    (matcher-cache/with-matcher cache :a #(closeable closed)
+                                (fn [_]
+                                  (matcher-cache/with-matcher cache :b #(closeable closed) identity)
+                                  (is (= 0 (.get closed)))))
+    (is (= 1 (.get closed)))))
+
+(deftest expired-matchers-are-rebuilt
+  (let [built (AtomicInteger.)
+        cache (matcher-cache/create {:ttl-ms 1})]
+    (matcher-cache/with-matcher cache :a #(do (.incrementAndGet built) (closeable (AtomicInteger.))) identity)
+    (Thread/sleep 5)
+    (matcher-cache/with-matcher cache :a #(do (.incrementAndGet built) (closeable (AtomicInteger.))) identity)
+    (is (= 2 (.get built)))))
+
+(deftest concurrent-misses-build-once
+  (let [built (AtomicInteger.)
+        cache (matcher-cache/create {})
+        start (CountDownLatch. 1)
+        executor (Executors/newFixedThreadPool 8)]
+    (dotimes [_ 8]
+      (.execute executor ^Runnable (fn []
+                                     (.await start)
+                                     (matcher-cache/with-matcher
+                                       cache :a
+                                       #(do (Thread/sleep 10)
+                                            (.incrementAndGet built)
+                                            (closeable (AtomicInteger.)))
+                                       identity))))
+    (.countDown start)
+    (.shutdown executor)
+    (.awaitTermination executor 10 TimeUnit/SECONDS)
+    (is (= 1 (.get built)))))
+
+(deftest failures-are-not-cached
+  (let [cache (matcher-cache/create {})]
+    (is (thrown? Exception (matcher-cache/with-matcher cache :a #(throw (Exception. "bad query")) identity)))
+    (is (= :ok (matcher-cache/with-matcher cache :a #(closeable (AtomicInteger.)) (constantly :ok))))))
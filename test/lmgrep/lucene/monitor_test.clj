@@ -0,0 +1,39 @@
+(ns lmgrep.lucene.monitor-test
+  (:require [clojure.string :as str]
+            [clojure.test :refer [deftest is]]
+            [lmgrep.lucene.monitor :as monitor])
+  (:import (java.io ByteArrayOutputStream PrintStream)
+           (org.apache.lucene.analysis.standard StandardAnalyzer)
+           (org.apache.lucene.index Term)
+           (org.apache.lucene.monitor Monitor MonitorQuery)
+           (org.apache.lucene.search Query TermQuery)))
+
+(defn- unregistrable-query
+  "Query that the presearcher of the Monitor fails to index."
+  ^Query []
+  (proxy [Query] []
+    (toString [_] "unregistrable")
+    (visit [_] (throw (IllegalStateException. "Query can't be visited")))
+    (equals [other] (identical? this other))
+    (hashCode [] (System/identityHashCode this))))
+
+(deftest failing-query-is-dropped-from-the-batch
+  (with-open [monitor (Monitor. (StandardAnalyzer.))]
+    (let [queries (mapv (fn [i] (MonitorQuery. (str "query" i) (TermQuery. (Term. "text" (str "term" i)))))
+                        (range 7))
+          err (ByteArrayOutputStream.)
+          original-err System/err
+          failed (try
+                   (System/setErr (PrintStream. err true "UTF-8"))
+                   (monitor/register-queries monitor (concat (subvec queries 0 3)
+                                                             [(MonitorQuery. "bad" (unregistrable-query))]
+                                                             (subvec queries 3)))
+                   (finally
+                     (System/setErr original-err)))]
+      (is (= ["bad"] failed))
+      (is (= (set (map (fn [^MonitorQuery query] (.getId query)) queries))
+             (set (.getQueryIds monitor))))
+      (let [message (.toString err "UTF-8")]
+        (is (str/includes? message "Failed to register query"))
+        (is (str/includes? message "bad"))
+        (is (not (str/includes? message "query0")))))))
@@ -0,0 +1,31 @@
+(ns lmgrep.lucene.profiler-test
+  (:require [clojure.test :refer [deftest is testing]]
+            [lmgrep.lucene :as lucene]
+            [lmgrep.lucene.profiler :as profiler]))
+
+(deftest no-profiler-without-option
+  (is (nil? (profiler/create {})))
+  (is (some? (profiler/create {:profile-queries true}))))
+
+(deftest profiling-queries
+  (let [dictionary [{:id "fox" :query "fox"}
+                    {:id "dog" :query "dog"}
+                    {:id "cat" :query "cat"}]
+        profiler (profiler/create {:profile-queries true})
+        opts (profiler/with-profiler {} profiler)]
+    (with-open [matcher (lucene/highlighter-obj dictionary {})]
+      (is (= 1 (count (lucene/match matcher "the quick brown fox" opts))))
+      (is (= [1 0] (mapv count (lucene/match-batch matcher ["lazy dog" "no match"] opts))))
+      (let [{:keys [presearcher queries]} (lucene/profile-report matcher profiler 10)]
+        (testing "presearcher effectiveness"
+          (is (= 2 (:match-calls presearcher)))
+          (is (= 3 (:documents presearcher)))
+          (is (= 2 (:hits presearcher)))
+          (is (< 0.0 (:candidate-rate presearcher) 1.0)))
+        (testing "queries are described by the dictionary entries"
+          (is (= #{"fox" "dog"} (set (map :dict-entry-id queries))))
+          (is (every? (fn [{:keys [hits hit-rate time-ms]}]
+                        (and (= 1 hits) (< 0.0 hit-rate) (<= 0 time-ms)))
+                      queries)))
+        (testing "top limits the queries"
+          (is (= 1 (count (:queries (lucene/profile-report matcher profiler 1))))))))))
@@ -0,0 +1,54 @@
+(ns lmgrep.lucene.token-automaton-test
+  (:require [clojure.test :refer [deftest is testing]]
+            [lmgrep.lucene :as lucene])
+  (:import (lmgrep.lucene LuceneMonitorMatcher)))
+
+(defn- automaton [^LuceneMonitorMatcher matcher] (.-automaton matcher))
+
+(def dictionary
+  [{:id "fox" :query "fox"}
+   {:id "quick-brown" :query "\"quick brown\""}
+   {:id "brown-fox" :query "\"brown fox\""}
+   {:id "quick-brown-fox" :query "\"quick brown fox\""}
+   {:id "lazy-dog" :query "\"lazy dog\"" :meta {:kind "animal"}}])
+
+(def texts
+  ["The quick brown fox jumps over the lazy dog"
+   "fox fox, Fox!"
+   "quick the brown fox"
+   "nothing here"
+   ""])
+
+(defn- sorted [highlights]
+  (sort-by (juxt :begin-offset :end-offset :dict-entry-id) highlights))
+
+(deftest automaton-matches-as-monitor
+  (with-open [automaton-matcher (lucene/highlighter-obj dictionary {:token-automaton true})
+              monitor-matcher (lucene/highlighter-obj dictionary {:token-automaton false})]
+    (is (some? (automaton automaton-matcher)))
+    (is (nil? (automaton monitor-matcher)))
+    (testing "highlights"
+      (doseq [text texts]
+        (is (= (sorted (lucene/match monitor-matcher text {}))
+               (sorted (lucene/match automaton-matcher text {})))
+            text)))
+    (testing "batches"
+      (is (= (mapv sorted (lucene/match-batch monitor-matcher texts {}))
+             (mapv sorted (lucene/match-batch automaton-matcher texts {})))))
+    (testing "offsets only"
+      (is (= (sort (vec (lucene/match monitor-matcher (first texts) {:offsets-only true})))
+             (sort (vec (lucene/match automaton-matcher (first texts) {:offsets-only true}))))))
+    (testing "scores come from the Monitor"
+      (is (= (lucene/match monitor-matcher (first texts) {:with-score true})
+             (lucene/match automaton-matcher (first texts) {:with-score true}))))))
+
+(deftest automaton-only-for-simple-queries
+  (testing "a query that is not a term or exact phrase query disables the automaton"
+    (with-open [matcher (lucene/highlighter-obj [{:query "fox"} {:query "\"brown fox\"~2"}] {:token-automaton true})]
+      (is (nil? (automaton matcher)))))
+  (testing "wildcard query disables the automaton"
+    (with-open [matcher (lucene/highlighter-obj [{:query "fox"} {:query "bro*"}] {:token-automaton true})]
+      (is (nil? (automaton matcher)))))
+  (testing "the automaton is opt-in"
+    (with-open [matcher (lucene/highlighter-obj [{:query "fox"}] {})]
+      (is (nil? (automaton matcher))))))
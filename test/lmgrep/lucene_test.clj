@@ -1,7 +1,8 @@
 (ns lmgrep.lucene-test
   (:require [clojure.test :refer [deftest is testing]]
             [lmgrep.formatter :as formatter]
-            [lmgrep.lucene :as lucene]))
+            [lmgrep.lucene :as lucene]
+            [lmgrep.lucene.similarity :as similarity]))
 
 (deftest highlighting-test
   (testing "coloring the output"
@@ -59,3 +60,93 @@
                :query         "best class"
                :type          "QUERY"}]
              (lucene/highlight dictionary {} text {}))))))
+
+(deftest batch-matching
+  (testing "batch of texts is matched with one call and highlights are returned per text"
+    (let [dictionary [{:query "text" :id "0"}]
+          texts ["foo text bar" "no match" "" "text"]]
+      (with-open [highlighter (lucene/highlighter-obj dictionary {})]
+        (is (= (mapv (fn [text] (lucene/match highlighter text {})) texts)
+               (lucene/match-batch highlighter texts {})))
+        (is (= (mapv (fn [text] (lucene/match highlighter text {:with-score true})) texts)
+               (lucene/match-batch highlighter texts {:with-score true})))))))
+
+(deftest offsets-only-matching
+  (testing "only offsets are collected when the highlight details are not needed"
+    (let [dictionary [{:query "text" :id "0"} {:query "foo" :id "1" :meta {:foo "bar"}}]
+          texts ["foo text bar" "no match" "" "text"]
+          offsets (fn [highlights] (vec (mapcat (juxt :begin-offset :end-offset) highlights)))]
+      (with-open [highlighter (lucene/highlighter-obj dictionary {})]
+        (is (= (mapv (fn [text] (offsets (lucene/match highlighter text {}))) texts)
+               (mapv (fn [text] (vec (lucene/match highlighter text {:offsets-only true}))) texts)
+               (mapv vec (lucene/match-batch highlighter texts {:offsets-only true}))))
+        (let [[highlight :as highlights] (lucene/match highlighter "foo" {:with-score true})]
+          (is (= 1 (count highlights)))
+          (is (= [:query :type :dict-entry-id :meta :score] (keys highlight)))
+          (is (= {:query "foo" :type "QUERY" :dict-entry-id "1" :meta {"foo" "bar"}}
+                 (dissoc highlight :score)))
+          (is (float? (:score highlight))))))))
+
+(deftest scored-highlights-matching
+  (let [dictionary [{:query "text" :id "0"} {:query "foo" :id "1"}]
+        texts ["foo text bar foo" "no match" "" "text"]
+        without-scores (fn [highlights] (mapv #(dissoc % :score) highlights))
+        scores (fn [options text]
+                 (with-open [highlighter (lucene/highlighter-obj dictionary {})]
+                   (mapv :score (lucene/match highlighter text
+                                              (similarity/with-similarity {:with-scored-highlights true}
+                                                                          (similarity/create options))))))]
+    (testing "every text of a batch gets only its own scored highlights"
+      (with-open [highlighter (lucene/highlighter-obj dictionary {})]
+        (let [batch (lucene/match-batch highlighter texts {:with-scored-highlights true})]
+          (is (= (mapv (fn [text] (without-scores (lucene/match highlighter text {:with-scored-highlights true}))) texts)
+                 (mapv without-scores batch)))
+          (is (every? float? (map :score (mapcat identity batch)))))))
+    (testing "similarity changes the scores"
+      (let [bm25 (scores {} "foo text bar foo")]
+        (is (= bm25 (scores {:similarity "bm25"} "foo text bar foo")))
+        (is (not= bm25 (scores {:bm25-k1 0.0} "foo text bar foo")))
+        (is (not= bm25 (scores {:similarity "classic"} "foo text bar foo")))))))
+
+(deftest matches-only-matching
+  (testing "ids of the matching queries without highlights, with the automaton and with the Monitor"
+    (let [dictionary [{:query "text" :id "0"} {:query "foo" :id "1"}]
+          texts ["foo text bar" "no match" "" "text"]
+          ids (fn [highlights] (set (map :dict-entry-id highlights)))]
+      (doseq [options [{:token-automaton true} {}]]
+        (with-open [highlighter (lucene/highlighter-obj dictionary options)]
+          (is (= (mapv (fn [text] (ids (lucene/match highlighter text {}))) texts)
+                 (mapv (fn [text] (set (lucene/match highlighter text {:matches-only true}))) texts)
+                 (mapv set (lucene/match-batch highlighter texts {:matches-only true})))))))))
+
+(deftest loading-big-dictionary
+  (testing "queries normalized in parallel and registered in batches are all matched"
+    (let [dictionary (mapv (fn [i] {:id (str i) :query (str "term" i)}) (range 3000))
+          options {:concurrency 4 :query-update-buffer-size 700}]
+      (with-open [highlighter (lucene/highlighter-obj dictionary options)]
+        (is (= ["0" "1234" "2999"]
+               (mapv (fn [i] (:dict-entry-id (first (lucene/match highlighter (str "foo term" i) {}))))
+                     [0 1234 2999])))))))
+
+(deftest sharded-matching
+  (let [dictionary (mapv (fn [i] {:id (str i) :query (str "term" i)}) (range 20))
+        texts ["term1 term7 foo" "nothing" "term19 term3 term1"]
+        sorted (fn [highlights] (sort-by (juxt :begin-offset :dict-entry-id) highlights))]
+    (with-open [single (lucene/highlighter-obj dictionary {})
+                sharded (lucene/highlighter-obj dictionary {:shards 4})]
+      (is (= 20 (lucene/query-count sharded)))
+      (testing "the same highlights as with one Monitor"
+        (doseq [text texts]
+          (is (= (sorted (lucene/match single text {}))
+                 (sorted (lucene/match sharded text {}))))))
+      (testing "batches"
+        (is (= (mapv sorted (lucene/match-batch single texts {}))
+               (mapv sorted (lucene/match-batch sharded texts {})))))
+      (testing "offsets only"
+        (is (= [0 5 6 11] (sort (vec (lucene/match sharded (first texts) {:offsets-only true})))))))
+    (testing "sharded matchers share the pool, closing one doesn't stop the others"
+      (with-open [other (lucene/highlighter-obj dictionary {:shards 2})]
+        (.close ^java.io.Closeable (lucene/highlighter-obj dictionary {:shards 3}))
+        (is (= 2 (count (lucene/match other (first texts) {})))))))
+  (testing "shards can't be stored on disk"
+    (is (thrown? Exception (lucene/highlighter-obj [{:query "foo"}] {:shards 2 :queries-index-dir "target/shards"})))))
@@ -0,0 +1,73 @@
+(ns lmgrep.mmap-test
+  (:require [clojure.java.io :as io]
+            [clojure.string :as str]
+            [clojure.test :refer [deftest is testing]]
+            [lmgrep.grep :as grep]
+            [lmgrep.mmap :as mmap])
+  (:import (java.io BufferedReader File StringReader)))
+
+(defn temp-file ^File [^String content]
+  (let [file (File/createTempFile "lmgrep-mmap" ".txt")]
+    (.deleteOnExit file)
+    (spit file content :encoding "UTF-8")
+    file))
+
+(defn reader-lines [^String content]
+  (with-open [rdr (BufferedReader. (StringReader. content))]
+    (vec (line-seq rdr))))
+
+(defn mmap-lines [^File file chunk-size]
+  (with-open [channel (mmap/open-channel (.getPath file))]
+    (into []
+          (mapcat (fn [[start end]] (mmap/lines (mmap/map-range channel start end))))
+          (mmap/newline-aligned-ranges channel chunk-size))))
+
+(def contents
+  ["" "\n" "\n\n" "a" "a\n" "a\nb" "a\r\nb\r\n" "short\n\nlines\n"
+   "\r" "a\rb" "a\r\rb\n" "a\r\r\nb\r" "carriage\rreturns only\rhere\r"
+   "a line that is longer than eight bytes\nand another one\n"
+   "žąsis ėjo per lauką\nascii line\nдругая строка без конца"
+   (str/join "\n" (repeat 100 "The quick brown fox jumps over the lazy dog"))])
+
+(deftest splitting-into-lines
+  (doseq [content contents
+          chunk-size [1 3 8 17 1024]]
+    (testing (format "content '%s' with chunk size %s" content chunk-size)
+      (let [file (temp-file content)]
+        (is (= (reader-lines content) (mmap-lines file chunk-size)))))))
+
+(deftest counting-line-breaks
+  (doseq [content contents]
+    (let [file (temp-file content)]
+      (with-open [channel (mmap/open-channel (.getPath file))]
+        (is (= (count (re-seq #"\r\n|\r|\n" content))
+               (mmap/count-line-breaks (mmap/map-range channel 0 (.size channel)))))))))
+
+(deftest ranges-are-newline-aligned
+  (let [file (temp-file (slurp (io/file "README.md")))]
+    (with-open [channel (mmap/open-channel (.getPath file))]
+      (let [ranges (mmap/newline-aligned-ranges channel 100)]
+        (is (= 0 (ffirst ranges)))
+        (is (= (.size channel) (second (last ranges))))
+        (is (every? (fn [[[_ end] [start _]]] (= end start)) (partition 2 1 ranges)))))))
+
+(deftest ranges-longer-than-2-gib-are-not-mapped
+  (is (mmap/mappable? [0 Integer/MAX_VALUE]))
+  (is (mmap/mappable? [10 (+ 10 Integer/MAX_VALUE)]))
+  (is (not (mmap/mappable? [0 (inc Integer/MAX_VALUE)]))))
+
+(deftest grepping-memory-mapped-file
+  (let [file "README.md"
+        options {:split    true
+                 :pre-tags ">" :post-tags "<"
+                 :template "{{line-number}}:{{highlighted-line}}"}
+        grep-lines (fn [options]
+                     (with-out-str
+                       (grep/grep ["test"] file nil options)))]
+    (is (= (grep-lines options)
+           (grep-lines (assoc options :mmap-threshold 0 :mmap-chunk-size 512))))
+    (is (= (grep-lines options)
+           (grep-lines (assoc options :mmap-threshold 0 :mmap-chunk-size 512 :batch-size 5))))
+    (is (= (set (str/split-lines (grep-lines options)))
+           (set (str/split-lines (grep-lines (assoc options :mmap-threshold 0 :mmap-chunk-size 512
+                                                            :preserve-order false))))))))
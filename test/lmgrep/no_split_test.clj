@@ -0,0 +1,62 @@
+(ns lmgrep.no-split-test
+  (:require [clojure.java.io :as io]
+            [clojure.string :as str]
+            [clojure.test :refer [deftest is testing]]
+            [jsonista.core :as json]
+            [lmgrep.grep :as grep]
+            [lmgrep.no-split :as no-split])
+  (:import (java.io File StringReader)))
+
+(defn- windows [text size overlap]
+  (let [windows (atom [])]
+    (no-split/read-windows! (StringReader. text) size overlap (fn [window] (swap! windows conj window)))
+    @windows))
+
+(defn- text-file [^String text]
+  (let [file (File/createTempFile "lmgrep-no-split" ".txt")]
+    (.deleteOnExit file)
+    (spit file text)
+    (.getPath file)))
+
+(deftest owned-parts-of-windows-are-the-whole-text
+  (let [text (str/join " " (map (fn [i] (str "word" i (when (zero? (mod i 10)) "\n"))) (range 1000)))]
+    (doseq [[size overlap] [[64 16] [100 40] [1000 0] [100000 4096]]]
+      (let [windows (windows text size overlap)]
+        (is (= text (apply str (map (fn [{:keys [text from to]}] (subs text from to)) windows))))
+        (is (every? (fn [{:keys [^String text]}] (<= (.length text) size)) windows))
+        (is (= (map (fn [{:keys [offset from]}] (+ offset from)) (rest windows))
+               (map (fn [{:keys [offset to]}] (+ offset to)) (butlast windows))))))))
+
+(deftest grepping-whole-file-in-windows
+  (let [text (str/join "\n" (map (fn [i] (str "line" i " with the quick brown fox jumps over the lazy dog")) (range 200)))
+        path (text-file text)
+        occurrences (loop [from 0
+                           offsets []]
+                      (let [i (str/index-of text "brown fox" from)]
+                        (if i (recur (inc i) (conj offsets i)) offsets)))
+        grep-json (fn [options]
+                    (mapv json/read-value
+                          (str/split-lines
+                            (with-out-str
+                              (grep/grep ["\"brown fox\""] nil [path]
+                                         (merge {:split false :format :json :with-details true} options))))))]
+    (testing "phrases across window boundaries are found once with file offsets"
+      (doseq [options [{:no-split-window-size 128 :no-split-window-overlap 64}
+                       {:no-split-window-size 1000 :no-split-window-overlap 100}
+                       {}]]
+        (let [highlights (mapcat (fn [out] (get out "highlights")) (grep-json options))]
+          (is (= occurrences (mapv (fn [highlight] (get highlight "file-begin-offset")) highlights)))
+          (is (every? (fn [highlight] (= "brown fox" (subs text (get highlight "file-begin-offset")
+                                                           (get highlight "file-end-offset"))))
+                      highlights)))))
+    (testing "offsets of the highlights are relative to the line of the output"
+      (doseq [out (grep-json {:no-split-window-size 128 :no-split-window-overlap 64})
+              highlight (get out "highlights")]
+        (is (str/starts-with? "brown fox" (subs (get out "line") (get highlight "begin-offset")
+                                                (get highlight "end-offset"))))))
+    (testing "outputs have the line number of their first line"
+      (let [lines (str/split-lines text)]
+        (doseq [out (grep-json {:no-split-window-size 1000 :no-split-window-overlap 100})]
+          (is (str/ends-with? (nth lines (dec (get out "line-number")))
+                              (first (str/split-lines (get out "line"))))))))
+    (io/delete-file path true)))
@@ -0,0 +1,41 @@
+(ns lmgrep.reorder-test
+  (:require [clojure.string :as str]
+            [clojure.test :refer [deftest is testing]]
+            [lmgrep.concurrent :as c]
+            [lmgrep.reorder :as reorder])
+  (:import (java.io ByteArrayOutputStream PrintStream)
+           (java.util.concurrent ExecutorService)))
+
+(defn- run [window n f]
+  (let [written (atom [])
+        buffer (reorder/create window (fn [out] (swap! written conj out)))
+        ^ExecutorService executor (c/thread-pool-executor 8 16)]
+    (dotimes [i n]
+      (reorder/submit! buffer executor (fn [] (f i))))
+    (reorder/await-drained! buffer)
+    (c/shutdown-thread-pool-executors executor)
+    @written))
+
+(deftest results-are-written-in-order
+  (testing "results that are computed out of order"
+    (is (= (range 1000)
+           (run 64 1000 (fn [i] (when (zero? (mod i 7)) (Thread/sleep 1)) i)))))
+  (testing "window that is smaller than the number of threads"
+    (is (= (range 100) (run 2 100 identity))))
+  (testing "nil results and exceptions are written as nil"
+    (is (= [0 nil 2 nil 4]
+           (run 4 5 (fn [i] (cond
+                              (= 1 i) nil
+                              (= 3 i) (throw (Exception. "failed"))
+                              :else i)))))))
+
+(deftest exceptions-are-reported
+  (let [err (ByteArrayOutputStream.)
+        original-err System/err
+        written (try
+                  (System/setErr (PrintStream. err true "UTF-8"))
+                  (run 4 3 (fn [i] (if (= 1 i) (throw (Exception. (str "task " i " failed"))) i)))
+                  (finally
+                    (System/setErr original-err)))]
+    (is (= [0 nil 2] written))
+    (is (= ["task 1 failed"] (str/split-lines (.toString err "UTF-8"))))))
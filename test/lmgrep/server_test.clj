@@ -0,0 +1,68 @@
+(ns lmgrep.server-test
+  (:require [clojure.string :as str]
+            [clojure.test :refer [deftest is testing]]
+            [jsonista.core :as json]
+            [lmgrep.client :as client]
+            [lmgrep.server :as server])
+  (:import (java.io OutputStreamWriter)
+           (java.net HttpURLConnection URL)))
+
+(defn- post [url ^String body]
+  (let [^HttpURLConnection connection (.openConnection (URL. url))]
+    (.setRequestMethod connection "POST")
+    (.setDoOutput connection true)
+    (with-open [writer (OutputStreamWriter. (.getOutputStream connection) "UTF-8")]
+      (.write writer body))
+    (slurp (.getInputStream connection))))
+
+(deftest serving-requests
+  (let [{:keys [address] :as s} (server/start ["fox"] {:server-port 0
+                                                       :split       true
+                                                       :pre-tags    ">" :post-tags "<"
+                                                       :template    "{{file}}:{{line-number}}:{{highlighted-line}}"})]
+    (try
+      (testing "lines are formatted by the server"
+        (is (= ["input.txt:10:quick >fox<" nil "input.txt:12:>fox<"]
+               ((client/remote-batch-matcher-fn address "input.txt" {}) 10 ["quick fox" "lazy dog" "fox"]))))
+      (testing "NDJSON of texts"
+        (let [[single batch] (map json/read-value
+                                  (str/split-lines
+                                    (post (str address "/match")
+                                          "{\"text\": \"quick fox\"}\n{\"texts\": [\"fox\", \"dog\"]}\n")))]
+          (is (= [{"begin-offset" 6 "end-offset" 9}]
+                 (map #(select-keys % ["begin-offset" "end-offset"]) (get single "highlights"))))
+          (is (= [1 0] (map count (get batch "highlights"))))))
+      (testing "health"
+        (let [health (json/read-value (slurp (str address "/health")))]
+          (is (= "ok" (get health "status")))
+          (is (= 1 (get health "queries")))
+          (is (= 6 (get health "lines")))))
+      (testing "output options of the client override the ones of the server"
+        (is (= ["10:quick [fox]" nil]
+               ((client/remote-batch-matcher-fn address "input.txt" {:template "{{line-number}}:{{highlighted-line}}"
+                                                                     :pre-tags "[" :post-tags "]"})
+                10 ["quick fox" "lazy dog"])))
+        (let [[out] ((client/remote-batch-matcher-fn address "input.txt" {:format :json :with-details false}) 1 ["fox"])]
+          (is (= {"file" "input.txt" "line-number" 1 "line" "fox"}
+                 (select-keys (json/read-value out) ["file" "line-number" "line"])))))
+      (testing "a request that the server rejects fails the client"
+        (is (thrown-with-msg? Exception #"responded with 400: Format must be one of"
+                              (with-out-str
+                                (client/grep address nil ["test/resources/test.txt"] {:format :xml}))))
+        (is (thrown-with-msg? Exception #"responded with 400"
+                              (with-out-str
+                                (client/grep address nil ["test/resources/test.txt"] {:format :xml
+                                                                                      :preserve-order false})))))
+      (testing "bodies longer than a chunk keep the line numbers"
+        (let [texts (vec (repeat 2500 "fox"))]
+          (is (= (map (fn [i] (str "input.txt:" i ":>fox<")) (range 1 2501))
+                 ((client/remote-batch-matcher-fn address "input.txt" {}) 1 texts)))))
+      (finally
+        (server/stop! s)
+        (server/await-stopped s)))))
+
+(deftest shutdown-request
+  (let [{:keys [address] :as s} (server/start ["fox"] {:server-port 0})]
+    (is (= {"status" "shutting down"} (json/read-value (post (str address "/shutdown") ""))))
+    (server/await-stopped s)
+    (is (.get ^java.util.concurrent.atomic.AtomicBoolean (:stopping s)))))
@@ -0,0 +1,57 @@
+(ns lmgrep.stats-test
+  (:require [clojure.java.io :as io]
+            [clojure.string :as str]
+            [clojure.test :refer [deftest is testing]]
+            [jsonista.core :as json]
+            [lmgrep.grep :as grep]
+            [lmgrep.stats :as stats]
+            [lmgrep.streamed :as streamed]))
+
+(deftest histogram-percentiles
+  (let [h (stats/histogram)]
+    (dotimes [i 10000]
+      (stats/record-value! h (inc i)))
+    (let [{:keys [count max percentiles]} (stats/percentiles h [50 99 100])]
+      (is (= 10000 count))
+      (is (= 10000 max))
+      (testing "values are within the histogram precision"
+        (is (< 4375 (get percentiles 50) 5625))
+        (is (< 8662 (get percentiles 99) 11138))
+        (is (= 10000 (get percentiles 100))))))
+  (testing "empty histogram"
+    (is (= {:count 0 :max 0 :percentiles {50 0}} (stats/percentiles (stats/histogram) [50])))))
+
+(deftest no-recorder-without-stats
+  (is (nil? (stats/recorder {})))
+  (is (some? (stats/recorder {:stats true}))))
+
+(deftest writing-stats-file
+  (let [stats-file (str (io/file (System/getProperty "java.io.tmpdir") (str "lmgrep-stats-" (System/nanoTime) ".json")))
+        file "test/resources/test.txt"
+        options {:split      true
+                 :template   "{{line}}"
+                 :stats-file stats-file}]
+    (try
+      (let [output (with-out-str (grep/grep ["fox"] file nil options))
+            {:strs [lines time-split-seconds match-latency-micros queues caller-runs]}
+            (json/read-value (slurp stats-file))]
+        (is (= "The quick brown fox jumps over the lazy dog" (str/trim output)))
+        (is (= {"read" 2 "matched" 1 "written" 1} lines))
+        (is (= 2 (get match-latency-micros "count")))
+        (is (= #{"read" "match" "format" "write"} (set (keys time-split-seconds))))
+        (is (= #{"matcher" "writer"} (set (keys queues))))
+        (is (= 0 caller-runs)))
+      (finally
+        (io/delete-file stats-file true)))))
+
+(deftest matcher-cache-stats-of-streamed-mode
+  (let [stats-file (str (io/file (System/getProperty "java.io.tmpdir") (str "lmgrep-stats-" (System/nanoTime) ".json")))
+        input (str/join "\n" (repeat 3 "{\"query\": \"fox\", \"text\": \"quick fox\"}"))]
+    (try
+      (with-in-str input
+        (with-out-str (streamed/grep {:split true :concurrency 1 :stats-file stats-file})))
+      (let [{:strs [caches]} (json/read-value (slurp stats-file))]
+        (is (= {"hits" 2 "misses" 1}
+               (select-keys (get caches "matcher-cache") ["hits" "misses"]))))
+      (finally
+        (io/delete-file stats-file true)))))
@@ -3,7 +3,12 @@
             [clojure.string :as str]
             [babashka.fs :as fs]
             [lmgrep.grep :as grep]
-            [lmgrep.lucene :as lucene]))
+            [lmgrep.lucene :as lucene]
+            [lmgrep.lucene.monitor :as monitor])
+  (:import (org.apache.lucene.index Term)
+           (org.apache.lucene.monitor MonitorQuery MonitorQuerySerializer)
+           (org.apache.lucene.search TermQuery)
+           (org.apache.lucene.util BytesRef)))
 
 (def dir "target/index-test")
 
@@ -57,3 +62,67 @@
                           (str/trim
                             (with-out-str
                               (grep/grep [] nil nil options)))))))))
+
+(defn- matched-queries [highlighter text]
+  (sort (map (juxt :dict-entry-id :query) (lucene/match highlighter text {}))))
+
+(deftest syncing-queries-index
+  (let [text "foo bar baz"
+        options {:queries-index-dir dir :sync-queries true}]
+    (with-open [highlighter (lucene/highlighter-obj [{:id "1" :query "foo"} {:id "2" :query "bar"}] options)]
+      (is (= [["1" "foo"] ["2" "bar"]] (matched-queries highlighter text))))
+    (testing "only the changes of the questionnaire are applied"
+      (with-open [highlighter (lucene/highlighter-obj [{:id "1" :query "foo"} {:id "3" :query "baz"}] options)]
+        (is (= [["1" "foo"] ["3" "baz"]] (matched-queries highlighter text)))
+        (is (= 2 (lucene/query-count highlighter)))))
+    (testing "an empty questionnaire deletes all the queries"
+      (with-open [highlighter (lucene/highlighter-obj [] options)]
+        (is (= 0 (lucene/query-count highlighter)))))))
+
+(deftest syncing-running-matcher
+  (let [text "foo bar baz"
+        options {:queries-index-dir dir}]
+    (with-open [highlighter (lucene/highlighter-obj [{:id "1" :query "foo"} {:id "2" :query "bar"} {:id "3" :query "qux"}]
+                                                    options)]
+      (is (= [["1" "foo"] ["2" "bar"]] (matched-queries highlighter text)))
+      (is (= {:added 1 :updated 1 :deleted 1 :unchanged 1 :failed 0}
+             (dissoc (lucene/sync-queries! highlighter
+                                           [{:id "1" :query "foo"} {:id "2" :query "baz"} {:id "4" :query "bar"}]
+                                           options {})
+                     :seconds)))
+      (is (= [["1" "foo"] ["2" "baz"] ["4" "bar"]] (matched-queries highlighter text)))
+      (testing "queries that need a new field are rejected"
+        (is (thrown? Exception
+                     (lucene/sync-queries! highlighter
+                                           [{:id "5" :query "foo" :analysis {:tokenizer {:name "whitespace"}}}]
+                                           options {})))))))
+
+(deftest lazy-loading-queries-index
+  (let [text "foo text bar"
+        dictionary [{:id "1" :query "text" :meta {"kind" "word"}} {:id "2" :query "\"foo text\""} {:id "3" :query "baz"}]
+        expected (lucene/highlight dictionary {:queries-index-dir dir} text {})]
+    (is (= 2 (count expected)))
+    (testing "queries are parsed when they are candidates"
+      (is (= expected (lucene/highlight [] {:queries-index-dir dir :lazy-queries true} text {}))))
+    (testing "evicted queries are parsed again"
+      (is (= expected (lucene/highlight [] {:queries-index-dir dir :lazy-queries true :lazy-queries-cache-size 1} text {}))))
+    (testing "queries of the questionnaire are stored before the index is opened"
+      (is (= 3 (count (lucene/highlight [{:id "4" :query "foo"}] {:queries-index-dir dir :lazy-queries true} text {})))))
+    (testing "the read-only index is not written"
+      (let [schema-file (str dir monitor/SCHEMA_FILE_NAME)
+            modified (fs/last-modified-time schema-file)]
+        (Thread/sleep 10)
+        (lucene/highlight [] {:queries-index-dir dir :lazy-queries true} text {})
+        (is (= modified (fs/last-modified-time schema-file)))))))
+
+(deftest lazy-queries-are-parsed-once
+  (let [constructed (atom 0)
+        serializer (monitor/lazy-monitor-query-serializer
+                     (fn [{:keys [id query]}]
+                       (swap! constructed inc)
+                       (MonitorQuery. id (TermQuery. (Term. "text" ^String query))))
+                     10)
+        stored (fn [] (BytesRef. "{\"id\":\"1\",\"query\":\"text\",\"meta\":{}}"))]
+    (is (identical? (.deserialize ^MonitorQuerySerializer serializer (stored))
+                    (.deserialize ^MonitorQuerySerializer serializer (stored))))
+    (is (= 1 @constructed))))
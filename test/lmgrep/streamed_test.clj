@@ -91,6 +91,41 @@
                             (with-out-str
                               (streamed/grep options))))))))
 
+  (testing "batches with several queries"
+    (let [text-from-stdin (str/join "\n" ["{\"query\": \"nike~\", \"text\": \"I am selling nikee\"}"
+                                           "{\"query\": \"adidas\", \"text\": \"I am selling nikee\"}"
+                                           "{\"query\": \"adidas\", \"text\": \"adidas for sale\"}"
+                                           "{\"query\": \"nike~\", \"text\": \"nike for sale\"}"])
+          options {:preserve-order true
+                   :batch-size     3
+                   :pre-tags       ">" :post-tags "<"
+                   :template       "{{line-number}}:{{highlighted-line}}"}]
+      (is (= ["1:I am selling >nikee<" "3:>adidas< for sale" "4:>nike< for sale"]
+             (str/split-lines
+               (with-in-str text-from-stdin
+                            (with-out-str
+                              (streamed/grep options))))))))
+
+  (testing "a bad query in a batch loses only its own lines"
+    (let [text-from-stdin (str/join "\n" ["{\"query\": \"nike~\", \"text\": \"I am selling nikee\"}"
+                                           "{\"query\": \"nike (\", \"text\": \"nike for sale\"}"
+                                           "{\"query\": \"adidas\", \"text\": \"adidas for sale\"}"
+                                           "{\"query\": \"nike~\", \"text\": \"nike for sale\"}"])
+          errors (atom [])]
+      (with-redefs [lmgrep.print/to-err (fn [message] (swap! errors conj message))
+                    lmgrep.print/throwable (fn no-op [& _])]
+        (doseq [preserve-order [true false]]
+          (reset! errors [])
+          (is (= ["1:I am selling >nikee<" "3:>adidas< for sale" "4:>nike< for sale"]
+                 (sort (str/split-lines
+                         (with-in-str text-from-stdin
+                                      (with-out-str
+                                        (streamed/grep {:preserve-order preserve-order
+                                                        :batch-size     4
+                                                        :pre-tags       ">" :post-tags "<"
+                                                        :template       "{{line-number}}:{{highlighted-line}}"})))))))
+          (is (seq @errors)))))))
+
   (with-redefs [lmgrep.print/to-err (fn no-op [& _])
                 lmgrep.print/throwable (fn no-op [& _])]
     (doseq [options [{:preserve-order true
@@ -99,7 +134,12 @@
 
                      {:preserve-order false
                       :query-parser   "simple"
-                      :split          true}]]
+                      :split          true}
+
+                     {:preserve-order true
+                      :query-parser   "simple"
+                      :split          true
+                      :batch-size     3}]]
 
       (testing "JSON that doesn't contain the text"
         (let [text-from-stdin "{\"query\": \"AND nike~\"}"]